@@ -0,0 +1,128 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.FileMailboxStore;
+import com.example.mailserver.MailMessage;
+import com.example.mailserver.MailService;
+import com.example.mailserver.MailboxStore;
+import com.example.mailserver.MessageIdGenerator;
+import com.example.mailserver.SearchIndex;
+import com.example.mailserver.SegmentMailboxStore;
+import com.example.mailserver.ServerConfig;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Random;
+
+// Sinh dữ liệu thử nghiệm có thể lặp lại: cùng tham số và seed thì cùng account, cùng tên thư,
+// cùng tiêu đề/nội dung. Dữ liệu nằm trong <tmpdir>/mailserver-bench/<tên> và được tạo lại mỗi trial.
+final class BenchmarkDatasets {
+    static final long SEED = 20240501L;
+    // Mốc thời gian cố định cho tên thư email_<millis>.txt
+    private static final long BASE_MILLIS = 1_700_000_000_000L;
+    private static final String[] WORDS = {"họp", "báo cáo", "lịch", "dự án", "thông báo", "VKU", "tuần",
+            "kết quả", "đăng ký", "deadline", "review", "server", "mail", "khoa", "sinh viên", "hỗ trợ"};
+
+    private BenchmarkDatasets() {
+    }
+
+    static File directory(String name) {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "mailserver-bench/" + name);
+        deleteRecursively(dir);
+        dir.mkdirs();
+        return dir;
+    }
+
+    static MailboxStore openStore(String type, File dir) {
+        if ("segment".equals(type)) {
+            return new SegmentMailboxStore(new File(dir, "mailstore"), 64L * 1024 * 1024);
+        }
+        return new FileMailboxStore(new File(dir, "accounts"));
+    }
+
+    static String account(int index) {
+        return String.format("user%05d", index);
+    }
+
+    // accounts mailbox, mỗi mailbox messagesPerAccount thư; users.txt chứa mọi account (password "pw")
+    static void populate(MailboxStore store, File dir, int accounts, int messagesPerAccount, int bodySize)
+            throws IOException {
+        Random random = new Random(SEED);
+        try (Writer users = new FileWriter(usersFile(dir))) {
+            for (int a = 0; a < accounts; a++) {
+                String account = account(a);
+                store.createAccount(account);
+                users.write(account + ":pw\n");
+                for (int m = 0; m < messagesPerAccount; m++) {
+                    String name = "email_" + (BASE_MILLIS + m * 1000L) + ".txt";
+                    store.append(account, name, MailMessage.format(account(random.nextInt(accounts)), account,
+                            words(random, 3 + random.nextInt(5)), "Tue Nov 14 22:13:20 ICT 2023", "127.0.0.1",
+                            body(random, bodySize)));
+                }
+            }
+        }
+    }
+
+    static File usersFile(File dir) {
+        return new File(dir, "users.txt");
+    }
+
+    static MailService service(MailboxStore store, File dir) {
+        MailService service = new MailService(store, usersFile(dir),
+                new MessageIdGenerator(0, new File(dir, "message-id.state")),
+                new SearchIndex(store, new File(dir, "search-index"), ServerConfig.SEARCH_FLUSH_SECONDS,
+                        message -> { }).start(),
+                message -> { },
+                new MailService.Listener() {
+                    @Override
+                    public void accountCreated(String username) {
+                    }
+
+                    @Override
+                    public void emailsDelivered(long totalEmails) {
+                    }
+                });
+        service.loadUsers();
+        return service;
+    }
+
+    // Token phiên cho các lệnh cần đăng nhập (mật khẩu trong users.txt là văn bản thường, được băm lại ở lần này)
+    static String login(MailService service, String account) {
+        String reply = service.handleRequest("LOGIN|" + account + "|pw", "127.0.0.1");
+        if (!reply.startsWith("SUCCESS|")) {
+            throw new IllegalStateException("Cannot log in " + account + ": " + reply);
+        }
+        return reply.substring("SUCCESS|".length());
+    }
+
+    static String body(Random random, int size) {
+        StringBuilder body = new StringBuilder(size + 16);
+        while (body.length() < size) {
+            body.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? ".\n" : " ");
+        }
+        body.setLength(size);
+        return body.append('\n').toString();
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new UncheckedIOException(new IOException("Cannot delete " + file));
+        }
+    }
+}
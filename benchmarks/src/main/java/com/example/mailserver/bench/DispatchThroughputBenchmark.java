@@ -0,0 +1,71 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.RequestDispatcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Throughput của tầng dispatch: mỗi lần gọi đẩy BATCH request vào dispatcher và chờ đủ reply.
+// Handler giả lập một request thật: một chút CPU (parse/format) cộng thời gian chờ I/O file.
+// So sánh workers=1 (tương đương vòng lặp đơn luồng cũ) với nhiều worker / virtual thread.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchThroughputBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public RequestDispatcher.Mode mode;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    // Thời gian chờ I/O giả lập cho mỗi request (micro giây)
+    @Param({"0", "50"})
+    public int ioMicros;
+
+    @Param({"2000"})
+    public int cpuTokens;
+
+    private RequestDispatcher dispatcher;
+    private volatile CountDownLatch pending;
+    private final InetSocketAddress client = new InetSocketAddress("127.0.0.1", 40000);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RequestDispatcher.RequestHandler handler = (request, clientIP) -> {
+            Blackhole.consumeCPU(cpuTokens);
+            if (ioMicros > 0) {
+                LockSupport.parkNanos(ioMicros * 1000L);
+            }
+            return ("SUCCESS|" + request.length()).getBytes(StandardCharsets.UTF_8);
+        };
+        // Với virtual thread, "workers" chỉ ảnh hưởng đến giới hạn số request đang xử lý
+        dispatcher = new RequestDispatcher(mode, workers, BATCH * 2, handler,
+                (response, address) -> pending.countDown(), message -> { });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatchBatch() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(BATCH);
+        pending = latch;
+        for (int i = 0; i < BATCH; i++) {
+            dispatcher.dispatch("GET_EMAILS|user" + (i & 63), client);
+        }
+        latch.await();
+    }
+}
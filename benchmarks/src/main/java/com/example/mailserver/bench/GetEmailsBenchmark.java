@@ -0,0 +1,80 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.InboxIndex;
+import com.example.mailserver.MailService;
+import com.example.mailserver.MailboxStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// GET_EMAILS / GET_EMAILS_PAGE / GET_EMAIL trên một mailbox từ 10 đến 100k thư.
+//   getEmails, getEmailsPage - qua MailService.handleRequest (parse + chỉ mục đã nạp + format reply)
+//   coldIndexLoad            - nạp chỉ mục từ store lần đầu (đọc header mọi thư)
+//   getEmail                 - đọc nội dung một thư
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetEmailsBenchmark {
+    private static final String USER = BenchmarkDatasets.account(0);
+
+    @Param({"10", "1000", "100000"})
+    public int messages;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    private File dir;
+    private MailService service;
+    private MailboxStore mailboxStore;
+    private String getEmails;
+    private String getEmailsPage;
+    private String getEmail;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkDatasets.directory("get-emails-" + store + "-" + messages);
+        MailboxStore populate = BenchmarkDatasets.openStore(store, dir);
+        BenchmarkDatasets.populate(populate, dir, 1, messages, 512);
+        populate.close();
+
+        mailboxStore = BenchmarkDatasets.openStore(store, dir);
+        service = BenchmarkDatasets.service(mailboxStore, dir);
+        String token = BenchmarkDatasets.login(service, USER);
+        getEmails = "GET_EMAILS|" + token;
+        getEmailsPage = "GET_EMAILS_PAGE|" + token + "|50|";
+        getEmail = "GET_EMAIL|" + token + "|email_" + (1_700_000_000_000L + (messages / 2) * 1000L) + ".txt";
+        // Nạp chỉ mục trước để các phép đo "nóng" không tính lần quét đầu tiên
+        service.handleRequest(getEmails, "127.0.0.1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        service.close();
+        BenchmarkDatasets.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String getEmails() {
+        return service.handleRequest(getEmails, "127.0.0.1");
+    }
+
+    @Benchmark
+    public String getEmailsPage() {
+        return service.handleRequest(getEmailsPage, "127.0.0.1");
+    }
+
+    @Benchmark
+    public String getEmail() {
+        return service.handleRequest(getEmail, "127.0.0.1");
+    }
+
+    @Benchmark
+    public int coldIndexLoad() throws IOException {
+        return new InboxIndex(mailboxStore).count(USER);
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.BinaryProtocol;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Chi phí parse một SEND_EMAIL nằm sẵn trong buffer nhận (direct, như NioTransport):
+//   text              - decode UTF-8 cả packet rồi split("\\|") (đường cũ)
+//   binaryParse       - chỉ kiểm tra khung và ghi lại vị trí field (việc của thread nhận)
+//   binaryMaterialize - parse + tạo String cho mọi field (việc handler làm về sau)
+// Chạy với -prof gc để so sánh lượng cấp phát trên mỗi request.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolParseBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int bodySize;
+
+    private ByteBuffer textPacket;
+    private ByteBuffer binaryPacket;
+    private CharsetDecoder decoder;
+    private CharBuffer chars;
+    private final BinaryProtocol.Request request = new BinaryProtocol.Request();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder body = new StringBuilder(bodySize);
+        while (body.length() < bodySize) {
+            body.append("Nội dung thư số ").append(body.length()).append(". ");
+        }
+        body.setLength(bodySize);
+        String[] fields = {"alice", "bob", "Họp nhóm tuần này", body.toString()};
+
+        byte[] text = ("SEND_EMAIL|" + String.join("|", fields)).getBytes(StandardCharsets.UTF_8);
+        textPacket = ByteBuffer.allocateDirect(text.length).put(text).flip();
+        byte[] binary = BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEND_EMAIL, fields);
+        binaryPacket = ByteBuffer.allocateDirect(binary.length).put(binary).flip();
+
+        decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = CharBuffer.allocate(text.length);
+    }
+
+    @Benchmark
+    public void text(Blackhole bh) {
+        ByteBuffer packet = textPacket.duplicate();
+        decoder.reset();
+        chars.clear();
+        decoder.decode(packet, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        String[] parts = chars.toString().split("\\|");
+        bh.consume(parts[0]);
+        bh.consume(parts[4]);
+    }
+
+    @Benchmark
+    public void binaryParse(Blackhole bh) {
+        bh.consume(request.parse(binaryPacket));
+        bh.consume(request.opcode());
+        bh.consume(request.fieldLength(3));
+    }
+
+    @Benchmark
+    public void binaryMaterialize(Blackhole bh) {
+        request.parse(binaryPacket);
+        bh.consume(request.opcode());
+        for (int i = 0; i < request.fieldCount(); i++) {
+            bh.consume(request.field(i));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.DeliveryJournal;
+import com.example.mailserver.JournaledMailboxStore;
+import com.example.mailserver.MailService;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// SEND_EMAIL qua MailService.handleRequest với store thật có journal, đo số thư/giây
+// theo backend, mức bền vững và số người nhận mỗi request (fan-out).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class SendEmailBenchmark {
+    private static final int ACCOUNTS = 256;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    @Param({"NONE", "BATCH", "PER_MESSAGE"})
+    public DeliveryJournal.Durability durability;
+
+    @Param({"1", "100"})
+    public int recipients;
+
+    @Param({"1024"})
+    public int bodySize;
+
+    private File dir;
+    private MailService service;
+    private String body;
+    private String token;
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkDatasets.directory("send-email-" + store + "-" + durability + "-" + recipients);
+        JournaledMailboxStore journaled = new JournaledMailboxStore(BenchmarkDatasets.openStore(store, dir),
+                new DeliveryJournal(new File(dir, "journal"), durability, 0, 64L * 1024 * 1024));
+        BenchmarkDatasets.populate(journaled, dir, ACCOUNTS, 0, 0);
+        service = BenchmarkDatasets.service(journaled, dir);
+        body = BenchmarkDatasets.body(new Random(BenchmarkDatasets.SEED), bodySize);
+        token = BenchmarkDatasets.login(service, BenchmarkDatasets.account(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        service.close();
+        BenchmarkDatasets.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String sendEmail() {
+        int first = next.getAndAdd(recipients);
+        StringJoiner to = new StringJoiner(",");
+        for (int i = 0; i < recipients; i++) {
+            to.add(BenchmarkDatasets.account((first + i) % ACCOUNTS));
+        }
+        return service.handleRequest("SEND_EMAIL|" + token + "|" + to + "|Benchmark|" + body, "127.0.0.1");
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.NioTransport;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Load test qua loopback: nhiều client (mỗi thread JMH một socket, port nguồn khác nhau)
+// gửi request và chờ reply. Score = packets/s, so sánh theo số shard SO_REUSEPORT.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Dmailserver.executor=platform"})
+@Threads(32)
+public class ShardScalingBenchmark {
+    private static final int PORT = 29876;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"500"})
+    public int cpuTokens;
+
+    private static final byte[] REPLY = "SUCCESS|No emails".getBytes(StandardCharsets.UTF_8);
+
+    private NioTransport transport;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        transport = new NioTransport(PORT, shards, (request, clientIP) -> {
+            Blackhole.consumeCPU(cpuTokens);
+            return REPLY;
+        }, message -> { });
+        transport.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() {
+        transport.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        DatagramSocket socket;
+        DatagramPacket request;
+        DatagramPacket reply;
+
+        @Setup(Level.Trial)
+        public void open() throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(1000);
+            byte[] data = "GET_EMAILS|loadtest".getBytes(StandardCharsets.UTF_8);
+            request = new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), PORT);
+            reply = new DatagramPacket(new byte[4096], 4096);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            socket.close();
+        }
+    }
+
+    // Trả về false khi mất gói (timeout) để không làm hỏng cả lần đo
+    @Benchmark
+    public boolean requestReply(Client client) throws IOException {
+        client.socket.send(client.request);
+        try {
+            client.socket.receive(client.reply);
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+}
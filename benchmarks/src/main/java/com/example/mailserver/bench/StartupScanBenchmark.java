@@ -0,0 +1,68 @@
+package com.example.mailserver.bench;
+
+import com.example.mailserver.MailService;
+import com.example.mailserver.MailboxStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Khởi động server: mỗi lần đo mở store mới như khi server vừa chạy, rồi
+//   scanAccounts - liệt kê account và đếm thư của từng account (quét đối chiếu trên thread nền)
+//   openCatalog  - nạp MailCatalog được ghi sẵn trong setUp (những gì GUI hiện ngay khi mở)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StartupScanBenchmark {
+
+    @Param({"100", "1000"})
+    public int accounts;
+
+    @Param({"10", "100"})
+    public int messagesPerAccount;
+
+    @Param({"file", "segment"})
+    public String store;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkDatasets.directory("startup-" + store + "-" + accounts + "-" + messagesPerAccount);
+        MailboxStore populate = BenchmarkDatasets.openStore(store, dir);
+        BenchmarkDatasets.populate(populate, dir, accounts, messagesPerAccount, 256);
+        populate.close();
+
+        try (MailService service = BenchmarkDatasets.service(BenchmarkDatasets.openStore(store, dir), dir)) {
+            service.openCatalog(catalogFile(), 0);
+            service.scanAccounts();
+        }
+    }
+
+    private File catalogFile() {
+        return new File(dir, "catalog.bin");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkDatasets.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long scanAccounts() throws IOException {
+        try (MailService service = BenchmarkDatasets.service(BenchmarkDatasets.openStore(store, dir), dir)) {
+            return service.scanAccounts().totalEmails();
+        }
+    }
+
+    @Benchmark
+    public long openCatalog() throws IOException {
+        try (MailService service = BenchmarkDatasets.service(BenchmarkDatasets.openStore(store, dir), dir)) {
+            return service.openCatalog(catalogFile(), 0).totalEmails();
+        }
+    }
+}
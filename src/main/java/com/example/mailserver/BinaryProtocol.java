@@ -0,0 +1,277 @@
+package com.example.mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Giao thức nhị phân (phiên bản 1), dùng song song với giao thức văn bản "CMD|a|b".
+// Client gửi "HELLO|BIN1", server trả "SUCCESS|BIN1" thì client chuyển sang khung nhị phân:
+//
+//   request:  0xB1 | version | opcode | số field (u16) | (int32 độ dài + bytes UTF-8) * số field
+//   response: 0xB1 | version | status | số field (u16) | (int32 độ dài + bytes UTF-8) * số field
+//
+// Nội dung field có thể chứa '|', ';' mà không bị cắt như khi split văn bản.
+//
+// Client đề xuất thêm "DEFLATE1" trong HELLO và server đồng ý ("SUCCESS|BIN1|DEFLATE1") thì khung lớn hơn
+// ngưỡng có thể được gửi dưới dạng nén (Compression), theo từng thông điệp. Bit FLAG_DEFLATE trong opcode
+// báo server rằng client đọc được reply nén.
+public final class BinaryProtocol {
+    public static final byte MAGIC = (byte) 0xB1;
+    public static final byte VERSION = 1;
+    public static final String HELLO_TOKEN = "BIN1";
+    public static final String DEFLATE_TOKEN = "DEFLATE1";
+    public static final int FLAG_DEFLATE = 0x80;
+
+    public static final int OP_REGISTER = 1;
+    public static final int OP_LOGIN = 2;
+    public static final int OP_SEND_EMAIL = 3;
+    public static final int OP_GET_EMAILS = 4;
+    public static final int OP_GET_EMAIL = 5;
+    public static final int OP_GET_EMAILS_PAGE = 6;
+    public static final int OP_STATS = 7;
+    public static final int OP_LOGOUT = 8;
+    public static final int OP_GET_EMAILS_SINCE = 9;
+    public static final int OP_SUBSCRIBE = 10;
+    public static final int OP_SEARCH = 11;
+
+    public static final byte STATUS_SUCCESS = 0;
+    public static final byte STATUS_ERROR = 1;
+
+    private static final int HEADER_SIZE = 5;
+    // Giới hạn cho request; reply (danh sách thư) có thể có tới 65535 field
+    private static final int MAX_FIELDS = 16;
+
+    private BinaryProtocol() {
+    }
+
+    public interface Handler {
+        byte[] handle(Request request, InetSocketAddress client);
+    }
+
+    public static boolean isBinary(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_SIZE && packet.get(packet.position()) == MAGIC;
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data.length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    // Tên lệnh tương ứng với giao thức văn bản, dùng cho log
+    public static String opcodeName(int opcode) {
+        switch (opcode) {
+            case OP_REGISTER:
+                return "REGISTER";
+            case OP_LOGIN:
+                return "LOGIN";
+            case OP_SEND_EMAIL:
+                return "SEND_EMAIL";
+            case OP_GET_EMAILS:
+                return "GET_EMAILS";
+            case OP_GET_EMAIL:
+                return "GET_EMAIL";
+            case OP_GET_EMAILS_PAGE:
+                return "GET_EMAILS_PAGE";
+            case OP_STATS:
+                return "STATS";
+            case OP_LOGOUT:
+                return "LOGOUT";
+            case OP_GET_EMAILS_SINCE:
+                return "GET_EMAILS_SINCE";
+            case OP_SUBSCRIBE:
+                return "SUBSCRIBE";
+            case OP_SEARCH:
+                return "SEARCH";
+            default:
+                return "OP_" + opcode;
+        }
+    }
+
+    public static byte[] encodeRequest(int opcode, String... fields) {
+        return encode((byte) opcode, fields);
+    }
+
+    public static byte[] success(String... fields) {
+        return encode(STATUS_SUCCESS, fields);
+    }
+
+    public static byte[] error(String message) {
+        return encode(STATUS_ERROR, message);
+    }
+
+    public static byte[] success(List<String> fields) {
+        return encode(STATUS_SUCCESS, fields.toArray(new String[0]));
+    }
+
+    public static byte[] reply(boolean success, List<String> fields) {
+        return encode(success ? STATUS_SUCCESS : STATUS_ERROR, fields.toArray(new String[0]));
+    }
+
+    // Chuyển reply văn bản "SUCCESS|x" / "ERROR|x" của handler sang khung nhị phân
+    public static byte[] fromText(String response) {
+        int split = response.indexOf('|');
+        String status = split < 0 ? response : response.substring(0, split);
+        String payload = split < 0 ? "" : response.substring(split + 1);
+        return encode("SUCCESS".equals(status) ? STATUS_SUCCESS : STATUS_ERROR, payload);
+    }
+
+    private static byte[] encode(byte code, String... fields) {
+        if (fields.length > 0xFFFF) {
+            throw new IllegalArgumentException("Too many fields: " + fields.length);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(code);
+        out.write(fields.length >>> 8);
+        out.write(fields.length);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes.length >>> 24);
+            out.write(bytes.length >>> 16);
+            out.write(bytes.length >>> 8);
+            out.write(bytes.length);
+            out.writeBytes(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    // Reply đã giải mã phía client
+    public record Response(boolean success, String[] fields) {
+        public String message() {
+            return fields.length > 0 ? fields[0] : "";
+        }
+    }
+
+    // Reply văn bản (VD: "ERROR|Server busy" khi dispatcher quá tải) cũng được chấp nhận
+    public static Response decodeResponse(byte[] data) {
+        if (!isBinary(data)) {
+            String text = new String(data, StandardCharsets.UTF_8);
+            int split = text.indexOf('|');
+            return new Response(text.startsWith("SUCCESS"),
+                    new String[]{split < 0 ? "" : text.substring(split + 1)});
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.get(1) != VERSION) {
+            return new Response(false, new String[]{"Unsupported protocol version"});
+        }
+        String[] fields = new String[buffer.getShort(3) & 0xFFFF];
+        int cursor = HEADER_SIZE;
+        for (int i = 0; i < fields.length; i++) {
+            int length = cursor + 4 <= data.length ? buffer.getInt(cursor) : -1;
+            cursor += 4;
+            if (length < 0 || length > data.length - cursor) {
+                return new Response(false, new String[]{"Malformed response"});
+            }
+            fields[i] = new String(data, cursor, length, StandardCharsets.UTF_8);
+            cursor += length;
+        }
+        return new Response(data[2] == STATUS_SUCCESS, fields);
+    }
+
+    // Flyweight: parse() chỉ ghi lại vị trí các field trên buffer, không tạo String hay mảng mới.
+    // Field được chuyển thành String khi handler thực sự cần (field(i)).
+    public static final class Request {
+        private final int[] offsets = new int[MAX_FIELDS];
+        private final int[] lengths = new int[MAX_FIELDS];
+        private ByteBuffer source;
+        private int opcode;
+        private boolean acceptsCompressed;
+        private int fieldCount;
+        private int frameLength;
+
+        public boolean parse(ByteBuffer buffer) {
+            source = null;
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            if (limit - pos < HEADER_SIZE || buffer.get(pos) != MAGIC || buffer.get(pos + 1) != VERSION) {
+                return false;
+            }
+            int count = buffer.getShort(pos + 3) & 0xFFFF;
+            if (count > MAX_FIELDS) {
+                return false;
+            }
+
+            int cursor = pos + HEADER_SIZE;
+            for (int i = 0; i < count; i++) {
+                if (limit - cursor < 4) {
+                    return false;
+                }
+                int length = buffer.getInt(cursor);
+                cursor += 4;
+                if (length < 0 || length > limit - cursor) {
+                    return false;
+                }
+                offsets[i] = cursor;
+                lengths[i] = length;
+                cursor += length;
+            }
+
+            source = buffer;
+            opcode = buffer.get(pos + 2) & ~FLAG_DEFLATE & 0xFF;
+            acceptsCompressed = (buffer.get(pos + 2) & FLAG_DEFLATE) != 0;
+            fieldCount = count;
+            frameLength = cursor - pos;
+            return true;
+        }
+
+        // Copy khung sang mảng riêng để buffer nhận có thể được dùng lại (một lần cấp phát cho cả request)
+        public Request detach() {
+            int start = source.position();
+            byte[] copy = new byte[source.limit() - start];
+            source.get(start, copy);
+            Request detached = new Request();
+            detached.parse(ByteBuffer.wrap(copy));
+            return detached;
+        }
+
+        public int opcode() {
+            return opcode;
+        }
+
+        // Client đã thỏa thuận nén và đọc được reply nén
+        public boolean acceptsCompressed() {
+            return acceptsCompressed;
+        }
+
+        public int fieldCount() {
+            return fieldCount;
+        }
+
+        public int frameLength() {
+            return frameLength;
+        }
+
+        public int fieldLength(int index) {
+            return lengths[index];
+        }
+
+        public String field(int index) {
+            if (index >= fieldCount) {
+                throw new IllegalArgumentException("Missing field " + index);
+            }
+            if (source.hasArray()) {
+                return new String(source.array(), source.arrayOffset() + offsets[index], lengths[index],
+                        StandardCharsets.UTF_8);
+            }
+            byte[] bytes = new byte[lengths[index]];
+            source.get(offsets[index], bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // So sánh field với chuỗi ASCII mà không tạo String
+        public boolean fieldEquals(int index, String ascii) {
+            if (index >= fieldCount || lengths[index] != ascii.length()) {
+                return false;
+            }
+            int offset = offsets[index];
+            for (int i = 0; i < ascii.length(); i++) {
+                if (source.get(offset + i) != (byte) ascii.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
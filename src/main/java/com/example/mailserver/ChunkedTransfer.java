@@ -0,0 +1,330 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+
+// Truyền dữ liệu lớn hơn một datagram: chia thành các fragment đánh số, gửi theo cửa sổ trượt,
+// bên nhận trả ACK gồm số fragment liên tục đã nhận + danh sách nhận chọn lọc (SACK).
+// Dùng chung cho client và server.
+//
+//   FRAG|<transferId>|<index>|<total>|<payload bytes>
+//   FACK|<transferId>|<contiguous>|<i>,<j>,...
+public final class ChunkedTransfer {
+    // Giữ mỗi datagram dưới MTU Ethernet để tránh phân mảnh IP
+    public static final int FRAGMENT_PAYLOAD = 1200;
+    public static final int WINDOW = 64;
+    public static final long RETRANSMIT_MILLIS = 200;
+    // Không nhận được ACK mới nào trong khoảng này thì bỏ cuộc
+    public static final long TRANSFER_TIMEOUT_MILLIS = 5000;
+
+    private static final byte[] FRAG_PREFIX = "FRAG|".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ACK_PREFIX = "FACK|".getBytes(StandardCharsets.US_ASCII);
+
+    private ChunkedTransfer() {
+    }
+
+    public record Fragment(int transferId, int index, int total, ByteBuffer payload) {
+    }
+
+    public record Ack(int transferId, int contiguous, int[] selective) {
+    }
+
+    public static boolean isFragment(ByteBuffer packet) {
+        return startsWith(packet, FRAG_PREFIX);
+    }
+
+    public static boolean isAck(ByteBuffer packet) {
+        return startsWith(packet, ACK_PREFIX);
+    }
+
+    // Chia dữ liệu thành các datagram FRAG đã mã hóa sẵn
+    public static byte[][] split(int transferId, byte[] data) {
+        int total = Math.max(1, (data.length + FRAGMENT_PAYLOAD - 1) / FRAGMENT_PAYLOAD);
+        byte[][] packets = new byte[total][];
+        for (int i = 0; i < total; i++) {
+            int offset = i * FRAGMENT_PAYLOAD;
+            int length = Math.min(FRAGMENT_PAYLOAD, data.length - offset);
+            byte[] header = ("FRAG|" + transferId + "|" + i + "|" + total + "|").getBytes(StandardCharsets.US_ASCII);
+            byte[] packet = new byte[header.length + length];
+            System.arraycopy(header, 0, packet, 0, header.length);
+            System.arraycopy(data, offset, packet, header.length, length);
+            packets[i] = packet;
+        }
+        return packets;
+    }
+
+    // Payload trả về là view trên packet, bên nhận phải copy nếu cần giữ lại. Sai định dạng thì trả về null
+    public static Fragment parseFragment(ByteBuffer packet) {
+        ByteBuffer buffer = packet.duplicate();
+        buffer.position(buffer.position() + FRAG_PREFIX.length);
+        long transferId = readNumber(buffer);
+        long index = readNumber(buffer);
+        long total = readNumber(buffer);
+        if (transferId < 0 || index < 0 || total <= 0 || index >= total || total > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new Fragment((int) transferId, (int) index, (int) total, buffer.slice());
+    }
+
+    public static Ack parseAck(ByteBuffer packet) {
+        String text = StandardCharsets.US_ASCII.decode(packet.duplicate()).toString();
+        String[] parts = text.split("\\|", -1);
+        if (parts.length < 3) {
+            return null;
+        }
+        try {
+            int[] selective = new int[0];
+            if (parts.length > 3 && !parts[3].isEmpty()) {
+                String[] items = parts[3].split(",");
+                selective = new int[items.length];
+                for (int i = 0; i < items.length; i++) {
+                    selective[i] = Integer.parseInt(items[i]);
+                }
+            }
+            return new Ack(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), selective);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer packet, byte[] prefix) {
+        if (packet.remaining() < prefix.length) {
+            return false;
+        }
+        int start = packet.position();
+        for (int i = 0; i < prefix.length; i++) {
+            if (packet.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Đọc số nguyên không dấu kết thúc bằng '|', trả về -1 nếu sai định dạng
+    private static long readNumber(ByteBuffer buffer) {
+        long value = 0;
+        int digits = 0;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '|') {
+                return digits == 0 ? -1 : value;
+            }
+            if (b < '0' || b > '9' || ++digits > 10) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return -1;
+    }
+
+    // Phía nhận: ghép các fragment của một lần truyền
+    public static class Reassembly {
+        private final int transferId;
+        private final byte[][] parts;
+        private final BitSet received = new BitSet();
+        private int contiguous;
+        private int receivedCount;
+        private long lastActivity = System.currentTimeMillis();
+
+        public Reassembly(int transferId, int total) {
+            this.transferId = transferId;
+            this.parts = new byte[total][];
+        }
+
+        // Trả về true khi đã nhận đủ
+        public boolean add(Fragment fragment) {
+            lastActivity = System.currentTimeMillis();
+            int index = fragment.index();
+            if (fragment.total() == parts.length && !received.get(index)) {
+                byte[] payload = new byte[fragment.payload().remaining()];
+                fragment.payload().duplicate().get(payload);
+                parts[index] = payload;
+                received.set(index);
+                receivedCount++;
+                while (contiguous < parts.length && received.get(contiguous)) {
+                    contiguous++;
+                }
+            }
+            return isComplete();
+        }
+
+        public boolean isComplete() {
+            return receivedCount == parts.length;
+        }
+
+        public int total() {
+            return parts.length;
+        }
+
+        public long lastActivity() {
+            return lastActivity;
+        }
+
+        public byte[] assemble() {
+            int size = 0;
+            for (byte[] part : parts) {
+                size += part.length;
+            }
+            byte[] data = new byte[size];
+            int offset = 0;
+            for (byte[] part : parts) {
+                System.arraycopy(part, 0, data, offset, part.length);
+                offset += part.length;
+            }
+            return data;
+        }
+
+        public byte[] ack() {
+            StringBuilder sb = new StringBuilder("FACK|").append(transferId).append('|').append(contiguous).append('|');
+            int limit = Math.min(parts.length, contiguous + 2 * WINDOW);
+            boolean first = true;
+            for (int i = received.nextSetBit(contiguous); i >= 0 && i < limit; i = received.nextSetBit(i + 1)) {
+                if (!first) {
+                    sb.append(',');
+                }
+                sb.append(i);
+                first = false;
+            }
+            return sb.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public static byte[] completeAck(int transferId, int total) {
+            return ("FACK|" + transferId + "|" + total + "|").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public interface PacketSender {
+        void send(byte[] packet) throws IOException;
+    }
+
+    public interface AckWaiter {
+        void await(Outbound transfer, long millis) throws IOException;
+    }
+
+    // Phía gửi: cửa sổ trượt, gửi lại khi hết thời gian hoặc khi SACK cho thấy có lỗ hổng
+    public static class Outbound {
+        private final int transferId;
+        private final byte[][] packets;
+        private final BitSet acked = new BitSet();
+        private final long[] sentAt;
+        private int base;
+        private boolean finished;
+        private boolean signalled;
+        private int lastBase = -1;
+        private long lastProgress = System.currentTimeMillis();
+
+        public Outbound(int transferId, byte[] data) {
+            this.transferId = transferId;
+            this.packets = split(transferId, data);
+            this.sentAt = new long[packets.length];
+        }
+
+        public int transferId() {
+            return transferId;
+        }
+
+        public int fragmentCount() {
+            return packets.length;
+        }
+
+        public synchronized void onAck(Ack ack) {
+            int contiguous = Math.min(ack.contiguous(), packets.length);
+            acked.set(0, contiguous);
+            int highest = contiguous;
+            for (int index : ack.selective()) {
+                if (index >= 0 && index < packets.length) {
+                    acked.set(index);
+                    highest = Math.max(highest, index);
+                }
+            }
+            while (base < packets.length && acked.get(base)) {
+                base++;
+            }
+
+            // Fragment nằm dưới fragment cao nhất đã được SACK mà chưa tới: coi như mất, gửi lại ngay
+            long now = System.currentTimeMillis();
+            for (int i = acked.nextClearBit(base); i < highest; i = acked.nextClearBit(i + 1)) {
+                if (sentAt[i] != 0 && now - sentAt[i] > RETRANSMIT_MILLIS / 4) {
+                    sentAt[i] = 0;
+                }
+            }
+            signal();
+        }
+
+        // Bên nhận đã trả lời (VD: reply đến trước ACK cuối) thì không cần gửi tiếp
+        public synchronized void complete() {
+            finished = true;
+            signal();
+        }
+
+        public synchronized boolean isDone() {
+            return finished || base >= packets.length;
+        }
+
+        // Chờ ACK do thread nhận gói tin đưa vào qua onAck()
+        public synchronized void awaitAck(long millis) throws IOException {
+            try {
+                if (!signalled && !isDone()) {
+                    wait(millis);
+                }
+                signalled = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Transfer interrupted");
+            }
+        }
+
+        private void signal() {
+            signalled = true;
+            notifyAll();
+        }
+
+        // Gửi các fragment đến hạn trong cửa sổ rồi trả về ngay, true khi đã xong. Không chờ ACK nên
+        // server gọi được từ timer và từ thread nhận (khi có ACK mới) mà không giữ worker
+        public boolean pump(PacketSender sender) throws IOException {
+            if (isDone()) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            int from;
+            int to;
+            long idle;
+            synchronized (this) {
+                if (base != lastBase) {
+                    lastBase = base;
+                    lastProgress = now;
+                }
+                from = base;
+                to = Math.min(packets.length, base + WINDOW);
+                idle = now - lastProgress;
+            }
+            if (idle > TRANSFER_TIMEOUT_MILLIS) {
+                throw new SocketTimeoutException("Transfer " + transferId + " timed out at fragment " + from
+                        + "/" + packets.length);
+            }
+
+            for (int i = from; i < to; i++) {
+                boolean due;
+                synchronized (this) {
+                    due = !acked.get(i) && (sentAt[i] == 0 || now - sentAt[i] > RETRANSMIT_MILLIS);
+                    if (due) {
+                        sentAt[i] = now;
+                    }
+                }
+                if (due) {
+                    sender.send(packets[i]);
+                }
+            }
+            return false;
+        }
+
+        public void run(PacketSender sender, AckWaiter waiter) throws IOException {
+            while (!pump(sender)) {
+                waiter.await(this, RETRANSMIT_MILLIS);
+            }
+        }
+    }
+}
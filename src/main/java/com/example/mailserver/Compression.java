@@ -0,0 +1,171 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Nén DEFLATE dùng chung cho đường truyền (khung BinaryProtocol, sau khi thỏa thuận qua HELLO) và cho store.
+// Dữ liệu nén tự mô tả:  0xB2 | id từ điển (1 byte) | độ dài gốc (int32) | luồng deflate
+// Byte đầu 0xB2 không thể là đầu một khung nhị phân (0xB1) hay văn bản UTF-8, nên dữ liệu cũ (không nén)
+// vẫn đọc được như trước. Dữ liệu nhỏ hơn THRESHOLD (hoặc nén không nhỏ hơn) được giữ nguyên.
+// Deflater/Inflater giữ bộ nhớ native nên được dùng lại qua pool thay vì tạo mới cho mỗi thư.
+public final class Compression {
+    public static final byte MAGIC = (byte) 0xB2;
+    public static final int THRESHOLD = ServerConfig.COMPRESSION_THRESHOLD;
+    private static final int HEADER_SIZE = 6;
+    private static final int MAX_POOLED = 64;
+
+    // Từ điển có sẵn: những chuỗi gần như thư nào cũng có (header của MailMessage, ngày theo Date.toString(),
+    // thư chào mừng). Deflate tham chiếu phần cuối từ điển rẻ nhất nên header để cuối.
+    // Đổi nội dung từ điển thì phải dùng id mới (dữ liệu đã nén bằng từ điển cũ vẫn phải đọc được).
+    private static final byte DICTIONARY_ID = 1;
+    private static final byte[] DICTIONARY = ("Mon Tue Wed Thu Fri Sat Sun Jan Feb Mar Apr May Jun Jul Aug Sep Oct "
+            + "Nov Dec ICT UTC GMT 2025 2026 127.0.0.1 192.168. 10.0. Welcome to VKU Mail! System "
+            + "the and you for that this with Xin chào, cảm ơn bạn của và các được không có này "
+            + "\nFrom: System\nTo: \nSubject: \nDate: \nIP: \n" + MailMessage.SEPARATOR + "\n"
+            + "From: \nTo: \nSubject: Re: \nDate: \nIP: \n" + MailMessage.SEPARATOR + "\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED_DEFLATERS = new AtomicInteger();
+    private static final AtomicInteger POOLED_INFLATERS = new AtomicInteger();
+
+    private Compression() {
+    }
+
+    public static boolean isCompressed(byte[] data) {
+        return data.length >= HEADER_SIZE && data[0] == MAGIC;
+    }
+
+    public static boolean isCompressed(ByteBuffer data) {
+        return data.remaining() >= HEADER_SIZE && data.get(data.position()) == MAGIC;
+    }
+
+    // Nén nếu đủ lớn và có lợi, không thì trả về chính data (kể cả khi data đã được nén sẵn)
+    public static byte[] maybeCompress(byte[] data) {
+        if (data.length < THRESHOLD || isCompressed(data)) {
+            return data;
+        }
+        byte[] compressed = compress(data);
+        return compressed.length < data.length ? compressed : data;
+    }
+
+    public static byte[] compress(byte[] data) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        } else {
+            POOLED_DEFLATERS.decrementAndGet();
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[HEADER_SIZE + data.length / 2 + 64];
+            out[0] = MAGIC;
+            out[1] = DICTIONARY_ID;
+            ByteBuffer.wrap(out, 2, 4).putInt(data.length);
+            int length = HEADER_SIZE;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.reset();
+            release(deflater);
+        }
+    }
+
+    public static byte[] decompress(byte[] data, long maxLength) throws IOException {
+        return decompress(ByteBuffer.wrap(data), maxLength);
+    }
+
+    // maxLength: giới hạn kích thước sau khi giải nén (dữ liệu từ mạng có thể là "zip bomb")
+    public static byte[] decompress(ByteBuffer data, long maxLength) throws IOException {
+        ByteBuffer input = data.duplicate();
+        if (!isCompressed(input)) {
+            throw new IOException("Not compressed data");
+        }
+        input.get();
+        if (input.get() != DICTIONARY_ID) {
+            throw new IOException("Unknown compression dictionary");
+        }
+        int length = input.getInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Decompressed size " + length + " exceeds limit " + maxLength);
+        }
+
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        } else {
+            POOLED_INFLATERS.decrementAndGet();
+        }
+        try {
+            inflater.setInput(input);
+            byte[] out = new byte[length];
+            int filled = 0;
+            while (filled < length) {
+                int count = inflater.inflate(out, filled, length - filled);
+                if (count == 0) {
+                    if (!inflater.needsDictionary()) {
+                        // Hết dữ liệu vào (bị cắt) hoặc luồng kết thúc sớm hơn độ dài đã ghi
+                        break;
+                    }
+                    inflater.setDictionary(DICTIONARY);
+                }
+                filled += count;
+            }
+            if (filled != length || !inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                throw new IOException("Corrupt compressed data");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data", e);
+        } finally {
+            inflater.reset();
+            release(inflater);
+        }
+    }
+
+    // Nội dung lưu trong store: nén khi bật mailserver.storeCompression, đọc được cả hai dạng
+    public static byte[] encodeStored(String content) {
+        byte[] raw = content.getBytes(StandardCharsets.UTF_8);
+        return ServerConfig.STORE_COMPRESSION ? maybeCompress(raw) : raw;
+    }
+
+    public static String decodeStored(ByteBuffer data) throws IOException {
+        if (isCompressed(data)) {
+            return new String(decompress(data, Integer.MAX_VALUE - 8), StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(data.duplicate()).toString();
+    }
+
+    private static void release(Deflater deflater) {
+        if (POOLED_DEFLATERS.incrementAndGet() <= MAX_POOLED) {
+            DEFLATERS.offer(deflater);
+        } else {
+            POOLED_DEFLATERS.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    private static void release(Inflater inflater) {
+        if (POOLED_INFLATERS.incrementAndGet() <= MAX_POOLED) {
+            INFLATERS.offer(inflater);
+        } else {
+            POOLED_INFLATERS.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+// Journal ghi trước (write-ahead) cho việc gửi thư. Một thread duy nhất ghi journal: các thư đến
+// gần nhau được gom thành một lô, ghi một lần và fsync một lần (group commit), sau đó mới báo
+// cho các thread đang chờ. Khi server khởi động, thư trong journal được ghi lại vào store nếu store
+// chưa có thư đó hoặc bản trong store khác bản trong journal (rỗng/ghi dở do mất điện trước khi store
+// kịp fsync); thư đã có đủ thì bỏ qua, để backend segment không ghi thêm một bản nữa.
+//
+// File: <dir>/journal-<thế hệ>.log, mỗi bản ghi: length (int) | crc32 (int) | payload
+// payload: account (UTF) | tên thư (UTF) | độ dài nội dung (int) | nội dung UTF-8
+// File journal cũ được xoá sau khi mọi thư trong đó đã vào store và store đã fsync.
+public class DeliveryJournal implements Closeable {
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+    private static final int MAX_BATCH = 1024;
+    // Bản ghi dài nhất có thể có: thư lớn nhất nhận được qua mạng cộng header, tên account và tên thư.
+    // Độ dài lớn hơn chỉ có thể là phần đuôi bị ghi dở
+    private static final long MAX_RECORD_SIZE = ServerConfig.MAX_TRANSFER_SIZE + 64 * 1024;
+
+    public enum Durability {
+        // Ghi vào journal nhưng không fsync, không chờ (chỉ an toàn khi tiến trình chết, không phải khi mất điện)
+        NONE,
+        // Chờ fsync chung của lô
+        BATCH,
+        // Mỗi thư một lần fsync
+        PER_MESSAGE;
+
+        public static Durability parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    // Một thư đang chờ ghi; sequence dùng để biết khi nào file journal có thể xoá
+    private static final class Pending {
+        final long sequence;
+        final byte[] record;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Pending(long sequence, byte[] record) {
+            this.sequence = sequence;
+            this.record = record;
+        }
+    }
+
+    private static final Pending POISON = new Pending(-1, new byte[0]);
+
+    private record Retired(long generation, long maxSequence) {
+    }
+
+    private final File dir;
+    private final Durability durability;
+    private final long windowNanos;
+    private final long maxFileSize;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong sequences = new AtomicLong();
+    // Thư đã vào journal nhưng chưa được ghi xong vào store
+    private final ConcurrentSkipListSet<Long> unapplied = new ConcurrentSkipListSet<>();
+    private final List<Retired> retired = new ArrayList<>();
+    private final Thread writer;
+
+    private MailboxStore store;
+    private FileChannel channel;
+    private long generation;
+    private long maxSequence = -1;
+    private ByteBuffer batchBuffer = ByteBuffer.allocate(64 * 1024);
+
+    public DeliveryJournal(File dir, Durability durability, long windowMicros, long maxFileSize) {
+        this.dir = dir;
+        this.durability = durability;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.maxFileSize = maxFileSize;
+        this.writer = new Thread(this::writeLoop, "mail-journal-writer");
+        this.writer.setDaemon(true);
+    }
+
+    // Ghi lại các thư còn sót từ lần chạy trước vào store rồi bắt đầu nhận thư mới
+    public void open(MailboxStore target) throws IOException {
+        this.store = target;
+        dir.mkdirs();
+        generation = replay(target) + 1;
+        channel = openGeneration(generation);
+        writer.start();
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    // Trả về khi thư đã đạt mức bền vững đã chọn; sequence phải được trả lại qua applied().
+    // Thư đã xếp hàng thì thread ghi sẽ ghi nó vào journal (và replay sẽ giao nó), nên việc chờ không bị
+    // interrupt cắt ngang: báo lỗi cho client lúc này sẽ thành thư "ma" được giao sau khi khởi động lại.
+    public long append(String account, String messageName, String content) throws IOException {
+        long sequence = sequences.getAndIncrement();
+        Pending pending = new Pending(sequence, encode(account, messageName, content));
+        unapplied.add(sequence);
+        queue.add(pending);
+
+        if (durability == Durability.NONE) {
+            return sequence;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    pending.written.get();
+                    return sequence;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            unapplied.remove(sequence);
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Gọi sau khi thư đã được ghi vào store (kể cả khi ghi lỗi)
+    public void applied(long sequence) {
+        unapplied.remove(sequence);
+    }
+
+    private static byte[] encode(String account, String messageName, String content) throws IOException {
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeUTF(account);
+        out.writeUTF(messageName);
+        out.writeInt(body.length);
+        out.write(body);
+
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, record.length - 8);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(0, record.length - 8);
+        header.putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+                if (durability != Durability.PER_MESSAGE) {
+                    collect(batch);
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (batch.remove(POISON)) {
+                running = false;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            try {
+                write(batch);
+                for (Pending pending : batch) {
+                    pending.written.complete(null);
+                }
+            } catch (IOException e) {
+                for (Pending pending : batch) {
+                    pending.written.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+
+            try {
+                rollIfFull();
+                checkpoint();
+            } catch (IOException e) {
+                // Thử lại sau lô tiếp theo; journal cũ chỉ bị giữ lâu hơn
+            }
+        }
+    }
+
+    // Gom thêm các thư đã xếp hàng (và đến trong cửa sổ gom, nếu có)
+    private void collect(List<Pending> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < MAX_BATCH && batch.get(batch.size() - 1) != POISON) {
+            long wait = deadline - System.nanoTime();
+            Pending next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void write(List<Pending> batch) throws IOException {
+        int total = 0;
+        for (Pending pending : batch) {
+            total += pending.record.length;
+        }
+        if (batchBuffer.capacity() < total) {
+            batchBuffer = ByteBuffer.allocate(Math.max(total, batchBuffer.capacity() * 2));
+        }
+        batchBuffer.clear();
+        for (Pending pending : batch) {
+            batchBuffer.put(pending.record);
+            maxSequence = Math.max(maxSequence, pending.sequence);
+        }
+        batchBuffer.flip();
+
+        long start = channel.size();
+        try {
+            while (batchBuffer.hasRemaining()) {
+                channel.write(batchBuffer);
+            }
+            if (durability != Durability.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // Bỏ phần lô ghi dở để các lô sau vẫn đọc lại được khi replay
+            channel.truncate(start);
+            throw e;
+        }
+    }
+
+    private void rollIfFull() throws IOException {
+        if (channel.size() < maxFileSize) {
+            return;
+        }
+        channel.close();
+        retired.add(new Retired(generation, maxSequence));
+        generation++;
+        channel = openGeneration(generation);
+    }
+
+    // Xoá các file journal cũ mà mọi thư trong đó đã nằm trong store (đã fsync)
+    private void checkpoint() throws IOException {
+        if (retired.isEmpty()) {
+            return;
+        }
+        Long oldest = unapplied.isEmpty() ? null : unapplied.first();
+        List<Retired> done = new ArrayList<>();
+        for (Retired file : retired) {
+            if (oldest == null || oldest > file.maxSequence()) {
+                done.add(file);
+            }
+        }
+        if (done.isEmpty()) {
+            return;
+        }
+
+        store.sync();
+        for (Retired file : done) {
+            deleteFile(generationFile(file.generation()));
+        }
+        retired.removeAll(done);
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    // Trả về thế hệ journal lớn nhất đã thấy (-1 nếu chưa có)
+    private long replay(MailboxStore target) throws IOException {
+        File[] files = dir.listFiles((d, n) -> n.startsWith(PREFIX) && n.endsWith(SUFFIX));
+        if (files == null || files.length == 0) {
+            return -1;
+        }
+        Arrays.sort(files, Comparator.comparingLong(DeliveryJournal::generationOf));
+
+        for (File file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        break;
+                    }
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                    String account = record.readUTF();
+                    String name = record.readUTF();
+                    int bodyLength = record.readInt();
+                    if (bodyLength < 0 || bodyLength > record.available()) {
+                        break;
+                    }
+                    byte[] body = new byte[bodyLength];
+                    record.readFully(body);
+
+                    String content = new String(body, StandardCharsets.UTF_8);
+                    if (!alreadyStored(target, account, name, content)) {
+                        target.append(account, name, content);
+                    }
+                }
+            } catch (EOFException e) {
+                // Bản ghi cuối bị ghi dở: chưa từng được xác nhận với client
+            }
+        }
+
+        target.sync();
+        long last = -1;
+        for (File file : files) {
+            last = Math.max(last, generationOf(file));
+            deleteFile(file);
+        }
+        return last;
+    }
+
+    // Thư đã vào store trước khi dừng (trường hợp thường gặp) thì không ghi lại. Bản trong store rỗng,
+    // ghi dở hoặc không đọc được thì phải ghi lại từ journal. Backend file chuẩn hoá xuống dòng khi đọc
+    // nên có thể bị ghi đè lại đúng nội dung cũ; vô hại, vì chỉ backend segment ghi nối tiếp.
+    private static boolean alreadyStored(MailboxStore target, String account, String name, String content) {
+        try {
+            return content.equals(target.read(account, name));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private FileChannel openGeneration(long gen) throws IOException {
+        FileChannel opened = FileChannel.open(generationFile(gen).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        FileSync.forceDirectory(dir.toPath());
+        return opened;
+    }
+
+    private File generationFile(long gen) {
+        return new File(dir, String.format("%s%012d%s", PREFIX, gen, SUFFIX));
+    }
+
+    private static long generationOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    // Chờ ghi hết các thư đang xếp hàng; journal chỉ bị xoá nếu mọi thư đã vào store
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        queue.add(POISON);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        retired.add(new Retired(generation, maxSequence));
+        checkpoint();
+        channel = null;
+    }
+}
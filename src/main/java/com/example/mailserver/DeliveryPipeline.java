@@ -0,0 +1,103 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+// Phát một thư tới nhiều mailbox song song. Danh sách người nhận được chia thành các lô,
+// mỗi lô chạy trên executor riêng (không dùng chung worker của dispatcher để tránh
+// worker chờ chính pool của mình). Kết quả trả về theo đúng thứ tự người nhận.
+public class DeliveryPipeline {
+    // Lô nhỏ nhất: tránh tạo task cho từng người nhận khi danh sách dài
+    private static final int MIN_BATCH = 16;
+
+    public interface Delivery {
+        void deliver(String recipient) throws IOException;
+    }
+
+    public enum Status { OK, NO_SUCH_USER, FAILED }
+
+    public record Result(String recipient, Status status) {
+    }
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    public DeliveryPipeline(RequestDispatcher.Mode mode, int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        if (mode == RequestDispatcher.Mode.VIRTUAL) {
+            executor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("mail-delivery-", 0).factory());
+        } else {
+            executor = Executors.newFixedThreadPool(this.parallelism,
+                    Thread.ofPlatform().name("mail-delivery-", 0).daemon(true).factory());
+        }
+    }
+
+    public static DeliveryPipeline fromConfig() {
+        RequestDispatcher.Mode mode = "virtual".equalsIgnoreCase(ServerConfig.EXECUTOR)
+                ? RequestDispatcher.Mode.VIRTUAL : RequestDispatcher.Mode.PLATFORM;
+        return new DeliveryPipeline(mode, ServerConfig.DELIVERY_THREADS);
+    }
+
+    // Chặn thread gọi cho đến khi mọi người nhận đã có kết quả
+    public List<Result> deliver(List<String> recipients, Predicate<String> exists, Delivery delivery) {
+        Result[] results = new Result[recipients.size()];
+        int batch = Math.max(MIN_BATCH, (recipients.size() + parallelism - 1) / parallelism);
+
+        if (recipients.size() <= batch) {
+            deliverRange(recipients, 0, recipients.size(), exists, delivery, results);
+            return Arrays.asList(results);
+        }
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int start = 0; start < recipients.size(); start += batch) {
+            int from = start;
+            int to = Math.min(recipients.size(), start + batch);
+            futures.add(executor.submit(() -> deliverRange(recipients, from, to, exists, delivery, results)));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // Lỗi của từng người nhận đã được ghi vào results; phần còn thiếu sẽ là FAILED
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = new Result(recipients.get(i), Status.FAILED);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private static void deliverRange(List<String> recipients, int from, int to, Predicate<String> exists,
+                                     Delivery delivery, Result[] results) {
+        for (int i = from; i < to; i++) {
+            String recipient = recipients.get(i);
+            Status status;
+            if (!exists.test(recipient)) {
+                status = Status.NO_SUCH_USER;
+            } else {
+                try {
+                    delivery.deliver(recipient);
+                    status = Status.OK;
+                } catch (IOException | RuntimeException e) {
+                    status = Status.FAILED;
+                }
+            }
+            results[i] = new Result(recipient, status);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
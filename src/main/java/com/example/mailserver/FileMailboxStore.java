@@ -0,0 +1,104 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Backend mặc định: mỗi thư là một file riêng trong accounts/<user>/ (nén nếu bật mailserver.storeCompression)
+public class FileMailboxStore implements MailboxStore {
+    private final File rootDir;
+    // Thư đã ghi nhưng chưa fsync
+    private final Set<Path> dirty = ConcurrentHashMap.newKeySet();
+
+    public FileMailboxStore(File rootDir) {
+        this.rootDir = rootDir;
+        rootDir.mkdirs();
+    }
+
+    @Override
+    public void createAccount(String account) {
+        new File(rootDir, account).mkdirs();
+    }
+
+    @Override
+    public boolean hasAccount(String account) {
+        return new File(rootDir, account).isDirectory();
+    }
+
+    @Override
+    public List<String> listAccounts() {
+        List<String> accounts = new ArrayList<>();
+        File[] dirs = rootDir.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                accounts.add(dir.getName());
+            }
+        }
+        return accounts;
+    }
+
+    @Override
+    public void append(String account, String messageName, String content) throws IOException {
+        File accountDir = new File(rootDir, account);
+        accountDir.mkdirs();
+
+        File emailFile = new File(accountDir, messageName);
+        Files.write(emailFile.toPath(), Compression.encodeStored(content));
+        dirty.add(emailFile.toPath());
+    }
+
+    @Override
+    public String read(String account, String messageName) throws IOException {
+        File emailFile = new File(rootDir, account + "/" + messageName);
+        if (!emailFile.exists()) {
+            return null;
+        }
+
+        byte[] data = Files.readAllBytes(emailFile.toPath());
+        if (Compression.isCompressed(data)) {
+            return Compression.decodeStored(ByteBuffer.wrap(data));
+        }
+        StringBuilder content = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                content.append(line).append("\n");
+            }
+        }
+        return content.toString();
+    }
+
+    @Override
+    public List<String> listMessages(String account) {
+        List<String> names = new ArrayList<>();
+        File[] files = new File(rootDir, account).listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                names.add(file.getName());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public int countMessages(String account) {
+        File[] files = new File(rootDir, account).listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        FileSync.force(dirty);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+// fsync các file đã ghi (và thư mục chứa chúng, để tên file mới cũng bền vững)
+final class FileSync {
+
+    private FileSync() {
+    }
+
+    // Path được lấy ra khỏi tập trước khi fsync: lần ghi mới xảy ra sau đó sẽ thêm lại
+    static void force(Set<Path> dirty) throws IOException {
+        Set<Path> dirs = new HashSet<>();
+        Iterator<Path> it = dirty.iterator();
+        while (it.hasNext()) {
+            Path path = it.next();
+            it.remove();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            if (path.getParent() != null) {
+                dirs.add(path.getParent());
+            }
+        }
+        for (Path dir : dirs) {
+            forceDirectory(dir);
+        }
+    }
+
+    static void forceDirectory(Path dir) {
+        // Một số hệ điều hành (Windows) không cho mở thư mục như file
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Phía server của ChunkedTransfer: ghép request FRAG rồi đưa vào dispatcher,
+// reply của những request này được gửi lại theo fragment (cùng transferId).
+// handlePacket() chỉ được gọi từ thread nhận gói tin của transport.
+// Request đang ghép dở bị giới hạn số lượng và số byte (theo IP nguồn và tổng) để client không thể
+// giữ hết bộ nhớ của server bằng các FRAG không bao giờ gửi xong.
+// Reply không chiếm worker trong lúc chờ ACK: cửa sổ được đẩy tiếp khi ACK đến và gửi lại theo timer.
+public class FragmentHandler {
+    private static final long STALE_MILLIS = 30_000;
+    private static final int COMPLETED_HISTORY = 4096;
+
+    private static final ScheduledExecutorService RETRANSMITTER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mail-fragment-retransmit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface RawSender {
+        void send(byte[] packet, InetSocketAddress client) throws IOException;
+    }
+
+    private final RawSender rawSender;
+    private final RequestDispatcher dispatcher;
+    private final Consumer<String> logger;
+    private final int maxFragments;
+
+    private record Incoming(ChunkedTransfer.Reassembly reassembly, String source, long bytes) {
+    }
+
+    // Phần đã giữ của một IP nguồn
+    private static class Usage {
+        int transfers;
+        long bytes;
+    }
+
+    private record Sending(ChunkedTransfer.Outbound transfer, InetSocketAddress client) {
+    }
+
+    private final Map<String, Incoming> inbound = new HashMap<>();
+    private final Map<String, Usage> inboundBySource = new HashMap<>();
+    private long inboundBytes;
+    private long rejectedFragments;
+    // Các transfer vừa ghép xong: fragment gửi lại (do ACK bị mất) chỉ cần được ACK lại
+    private final Map<String, Integer> completed = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > COMPLETED_HISTORY;
+        }
+    };
+    private final ConcurrentHashMap<String, Sending> outbound = new ConcurrentHashMap<>();
+    // Chỉ chạy khi có reply đang gửi; guarded by this
+    private ScheduledFuture<?> retransmitTimer;
+    private long lastSweep = System.currentTimeMillis();
+
+    public FragmentHandler(RawSender rawSender, RequestDispatcher dispatcher, Consumer<String> logger) {
+        this.rawSender = rawSender;
+        this.dispatcher = dispatcher;
+        this.logger = logger;
+        this.maxFragments = (int) Math.min(Integer.MAX_VALUE,
+                ServerConfig.MAX_TRANSFER_SIZE / ChunkedTransfer.FRAGMENT_PAYLOAD + 1);
+    }
+
+    // Trả về false nếu packet không phải FRAG/FACK (request văn bản thông thường)
+    public boolean handlePacket(ByteBuffer packet, InetSocketAddress client) {
+        if (ChunkedTransfer.isFragment(packet)) {
+            onFragment(packet, client);
+            return true;
+        }
+        if (ChunkedTransfer.isAck(packet)) {
+            ChunkedTransfer.Ack ack = ChunkedTransfer.parseAck(packet);
+            if (ack != null) {
+                String key = key(client, ack.transferId());
+                Sending sending = outbound.get(key);
+                if (sending != null) {
+                    sending.transfer().onAck(ack);
+                    pump(key, sending);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void onFragment(ByteBuffer packet, InetSocketAddress client) {
+        ChunkedTransfer.Fragment fragment = ChunkedTransfer.parseFragment(packet);
+        if (fragment == null || fragment.total() > maxFragments
+                || fragment.payload().remaining() > ChunkedTransfer.FRAGMENT_PAYLOAD) {
+            return;
+        }
+        sweepStale();
+
+        String key = key(client, fragment.transferId());
+        Integer completedTotal = completed.get(key);
+        if (completedTotal != null) {
+            send(ChunkedTransfer.Reassembly.completeAck(fragment.transferId(), completedTotal), client);
+            return;
+        }
+
+        Incoming incoming = inbound.get(key);
+        if (incoming == null) {
+            incoming = admit(client, fragment);
+            if (incoming == null) {
+                // Không ACK: client hết thời gian chờ và báo lỗi, không phải giữ thêm gì cho nó
+                rejectedFragments++;
+                return;
+            }
+            inbound.put(key, incoming);
+        }
+        ChunkedTransfer.Reassembly reassembly = incoming.reassembly();
+        boolean complete = reassembly.add(fragment);
+        send(reassembly.ack(), client);
+
+        if (complete) {
+            inbound.remove(key);
+            release(incoming);
+            completed.put(key, reassembly.total());
+
+            int transferId = fragment.transferId();
+            byte[] data = reassembly.assemble();
+            if (Compression.isCompressed(data)) {
+                try {
+                    data = Compression.decompress(data, ServerConfig.MAX_TRANSFER_SIZE);
+                } catch (IOException e) {
+                    logger.accept("⚠️ Dropping request from " + client + ": " + e.getMessage());
+                    return;
+                }
+            }
+            if (BinaryProtocol.isBinary(data)) {
+                BinaryProtocol.Request request = new BinaryProtocol.Request();
+                if (request.parse(ByteBuffer.wrap(data))) {
+                    logReceived(client, BinaryProtocol.opcodeName(request.opcode()), reassembly.total());
+                    // Reply lớn (VD: GET_EMAIL) được nén nếu client đã thỏa thuận nén
+                    boolean compress = request.acceptsCompressed();
+                    dispatcher.dispatch(request, client,
+                            (response, target) -> sendChunked(
+                                    compress ? Compression.maybeCompress(response) : response, transferId, target),
+                            (response, target) -> sendUnacked(response, transferId, target));
+                }
+                return;
+            }
+
+            String request = new String(data, StandardCharsets.UTF_8);
+            int end = request.indexOf('|');
+            logReceived(client, end < 0 ? request : request.substring(0, end), reassembly.total());
+            dispatcher.dispatch(request, client, (response, target) -> sendChunked(response, transferId, target),
+                    (response, target) -> sendUnacked(response, transferId, target));
+        }
+    }
+
+    // Giữ chỗ cho transfer mới theo kích thước tối đa có thể (total fragment đầy); null nếu vượt giới hạn
+    private Incoming admit(InetSocketAddress client, ChunkedTransfer.Fragment fragment) {
+        String source = client.getAddress().getHostAddress();
+        long bytes = (long) fragment.total() * ChunkedTransfer.FRAGMENT_PAYLOAD;
+        Usage usage = inboundBySource.get(source);
+        int transfers = usage == null ? 0 : usage.transfers;
+        long sourceBytes = usage == null ? 0 : usage.bytes;
+        if (inbound.size() >= ServerConfig.MAX_INBOUND || inboundBytes + bytes > ServerConfig.MAX_INBOUND_BYTES
+                || transfers >= ServerConfig.MAX_INBOUND_PER_CLIENT
+                || sourceBytes + bytes > ServerConfig.MAX_INBOUND_BYTES_PER_CLIENT) {
+            return null;
+        }
+        if (usage == null) {
+            usage = new Usage();
+            inboundBySource.put(source, usage);
+        }
+        usage.transfers++;
+        usage.bytes += bytes;
+        inboundBytes += bytes;
+        return new Incoming(new ChunkedTransfer.Reassembly(fragment.transferId(), fragment.total()), source, bytes);
+    }
+
+    private void release(Incoming incoming) {
+        inboundBytes -= incoming.bytes();
+        Usage usage = inboundBySource.get(incoming.source());
+        usage.bytes -= incoming.bytes();
+        if (--usage.transfers == 0) {
+            inboundBySource.remove(incoming.source());
+        }
+    }
+
+    private void logReceived(InetSocketAddress client, String command, int fragments) {
+        ServerLog.debug(logger, () -> "📨 Received from " + client.getAddress().getHostAddress() + ":"
+                + client.getPort() + " - " + command + " (" + fragments + " fragments)");
+    }
+
+    // Gửi cửa sổ đầu tiên rồi trả về ngay; phần còn lại do ACK (thread nhận) và timer gửi lại đẩy tiếp,
+    // nên worker và chỗ trong hàng đợi của dispatcher được trả lại mà không phải chờ client
+    public void sendChunked(byte[] response, int transferId, InetSocketAddress client) throws IOException {
+        String key = key(client, transferId);
+        Sending sending = new Sending(new ChunkedTransfer.Outbound(transferId, response), client);
+        outbound.put(key, sending);
+        try {
+            if (sending.transfer().pump(packet -> rawSender.send(packet, client))) {
+                finished(key, sending);
+                return;
+            }
+        } catch (IOException e) {
+            outbound.remove(key, sending);
+            throw e;
+        }
+        startRetransmitTimer();
+    }
+
+    private void pump(String key, Sending sending) {
+        try {
+            if (sending.transfer().pump(packet -> rawSender.send(packet, sending.client()))) {
+                finished(key, sending);
+            }
+        } catch (IOException e) {
+            if (outbound.remove(key, sending)) {
+                logger.accept("❌ ERROR sending reply to " + sending.client() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void finished(String key, Sending sending) {
+        if (outbound.remove(key, sending)) {
+            ServerLog.debug(logger, () -> "📤 Sent response to " + sending.client().getAddress().getHostAddress()
+                    + " (" + sending.transfer().fragmentCount() + " fragments)");
+        }
+    }
+
+    private synchronized void startRetransmitTimer() {
+        if (retransmitTimer == null) {
+            retransmitTimer = RETRANSMITTER.scheduleWithFixedDelay(this::retransmit, ChunkedTransfer.RETRANSMIT_MILLIS,
+                    ChunkedTransfer.RETRANSMIT_MILLIS / 2, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void retransmit() {
+        for (Map.Entry<String, Sending> entry : outbound.entrySet()) {
+            pump(entry.getKey(), entry.getValue());
+        }
+        synchronized (this) {
+            // sendChunked() thêm transfer trước khi gọi startRetransmitTimer() nên không bị bỏ sót
+            if (outbound.isEmpty() && retransmitTimer != null) {
+                retransmitTimer.cancel(false);
+                retransmitTimer = null;
+            }
+        }
+    }
+
+    // Reply ngắn gửi ngay từ thread nhận, không chờ ACK (VD: "Server busy"): vẫn mang transferId
+    // để client đang có nhiều request song song biết reply thuộc request nào
+    private void sendUnacked(byte[] response, int transferId, InetSocketAddress client) {
+        for (byte[] packet : ChunkedTransfer.split(transferId, response)) {
+            send(packet, client);
+        }
+    }
+
+    private void send(byte[] packet, InetSocketAddress client) {
+        try {
+            rawSender.send(packet, client);
+        } catch (IOException e) {
+            logger.accept("❌ ERROR sending ACK to " + client + ": " + e.getMessage());
+        }
+    }
+
+    private void sweepStale() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < STALE_MILLIS / 3) {
+            return;
+        }
+        lastSweep = now;
+        Iterator<Incoming> it = inbound.values().iterator();
+        while (it.hasNext()) {
+            Incoming incoming = it.next();
+            if (now - incoming.reassembly().lastActivity() > STALE_MILLIS) {
+                it.remove();
+                release(incoming);
+            }
+        }
+        if (rejectedFragments > 0) {
+            logger.accept("⚠️ Dropped " + rejectedFragments + " fragments over the in-flight transfer limits");
+            rejectedFragments = 0;
+        }
+    }
+
+    private static String key(InetSocketAddress client, int transferId) {
+        return client.getAddress().getHostAddress() + ":" + client.getPort() + "#" + transferId;
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Chỉ mục hộp thư trong bộ nhớ: mỗi account giữ danh sách (filename, subject, sender, date, size).
+// Mỗi account chỉ quét mailbox một lần (lần đầu được truy cập), sau đó cập nhật khi có thư mới,
+// nên GET_EMAILS không còn phải mở từng file.
+// Thư được giữ theo thứ tự mới nhất trước, phân trang bằng cursor trỏ tới thư cuối của trang trước.
+// Đồng bộ tăng dần (GET_EMAILS_SINCE): mốc "epoch:n" = n thư đã được thêm kể từ khi chỉ mục được nạp;
+// chỉ mục bị nạp lại (thay đổi từ bên ngoài, server khởi động lại) có epoch mới nên client nhận lại toàn bộ.
+// Chỉ INBOX_DELTA_HISTORY thư được thêm gần nhất được nhớ: mốc cũ hơn cũng nhận lại toàn bộ.
+public class InboxIndex {
+
+    public record Entry(String filename, String subject, String sender, String date, long size, long timestamp) {
+    }
+
+    public record Page(List<Entry> entries, String nextCursor) {
+    }
+
+    // full = true: entries là toàn bộ hộp thư (mốc cũ không dùng được), ngược lại chỉ các thư mới
+    public record Delta(List<Entry> entries, boolean full, String mark) {
+    }
+
+    // Mốc trước và sau khi thêm một thư (thông báo NEW_MAIL của PushNotifier)
+    public record Change(String previousMark, String mark) {
+    }
+
+    // Cùng mili giây thì tên lớn hơn (ID msg_ có số thứ tự lớn hơn) là thư mới hơn
+    private static final Comparator<Entry> NEWEST_FIRST = Comparator.comparingLong(Entry::timestamp).reversed()
+            .thenComparing(Entry::filename, Comparator.reverseOrder());
+
+    private static class AccountInbox {
+        private final TreeSet<Entry> entries = new TreeSet<>(NEWEST_FIRST);
+        private final Map<String, Entry> byName = new HashMap<>();
+        // Các thư được thêm gần nhất sau khi nạp, theo thứ tự thêm (kể cả thư trễ giờ từ node khác);
+        // added.get(i) là thư thứ base + i
+        private final ArrayList<Entry> added = new ArrayList<>();
+        private long base;
+        private final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+        // Thư có sẵn lúc quét mailbox / nạp từ catalog
+        synchronized void load(Entry entry) {
+            Entry old = byName.put(entry.filename(), entry);
+            if (old != null) {
+                entries.remove(old);
+            }
+            entries.add(entry);
+        }
+
+        synchronized Change add(Entry entry) {
+            load(entry);
+            // Bỏ nửa cũ một lần thay vì từng phần tử để mỗi lần thêm vẫn là O(1) trung bình
+            if (added.size() >= 2 * ServerConfig.INBOX_DELTA_HISTORY) {
+                int drop = added.size() - ServerConfig.INBOX_DELTA_HISTORY;
+                added.subList(0, drop).clear();
+                base += drop;
+            }
+            added.add(entry);
+            long total = base + added.size();
+            return new Change(epoch + ":" + (total - 1), epoch + ":" + total);
+        }
+
+        // O(số thư mới) khi mốc hợp lệ
+        synchronized Delta since(String mark) {
+            long position = -1;
+            if (mark != null && mark.startsWith(epoch + ":")) {
+                try {
+                    position = Long.parseLong(mark.substring(epoch.length() + 1));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            long total = base + added.size();
+            String next = epoch + ":" + total;
+            // Mốc nằm trước phần còn nhớ: không biết các thư ở giữa nên trả về toàn bộ
+            if (position < base || position > total) {
+                return new Delta(new ArrayList<>(entries), true, next);
+            }
+            // Mới nhất trước; thư được thêm lại (cùng tên) chỉ trả về bản cuối
+            Map<String, Entry> delta = new LinkedHashMap<>();
+            for (int i = added.size() - 1; i >= position - base; i--) {
+                delta.putIfAbsent(added.get(i).filename(), added.get(i));
+            }
+            return new Delta(new ArrayList<>(delta.values()), false, next);
+        }
+
+        synchronized List<Entry> snapshot() {
+            return new ArrayList<>(entries);
+        }
+
+        // O(log n + limit), không phụ thuộc vào kích thước hộp thư
+        synchronized Page page(Entry after, int limit) {
+            SortedSet<Entry> tail = after == null ? entries : entries.tailSet(after, false);
+            List<Entry> result = new ArrayList<>(Math.min(limit, 64));
+            Iterator<Entry> it = tail.iterator();
+            while (it.hasNext() && result.size() < limit) {
+                result.add(it.next());
+            }
+            String next = it.hasNext() ? encodeCursor(result.get(result.size() - 1)) : "";
+            return new Page(result, next);
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private final MailboxStore store;
+    private final ConcurrentHashMap<String, AccountInbox> inboxes = new ConcurrentHashMap<>();
+
+    public InboxIndex(MailboxStore store) {
+        this.store = store;
+    }
+
+    public List<Entry> list(String username) throws IOException {
+        return inbox(username).snapshot();
+    }
+
+    // cursor rỗng = trang đầu tiên
+    public Page page(String username, String cursor, int limit) throws IOException {
+        return inbox(username).page(decodeCursor(cursor), Math.max(1, limit));
+    }
+
+    // mark rỗng = lần đồng bộ đầu tiên
+    public Delta since(String username, String mark) throws IOException {
+        return inbox(username).since(mark);
+    }
+
+    public int count(String username) throws IOException {
+        return inbox(username).size();
+    }
+
+    // Thư mới được giao: nếu account chưa được nạp thì lần nạp đầu tiên sẽ đọc thư này từ store (trả về null)
+    public Change add(String username, Entry entry) {
+        AccountInbox inbox = inboxes.get(username);
+        return inbox == null ? null : inbox.add(entry);
+    }
+
+    public void invalidate(String username) {
+        inboxes.remove(username);
+    }
+
+    // Chỉ mục đã nạp của account (để ghi vào MailCatalog), null nếu chưa nạp
+    public List<Entry> loadedEntries(String username) {
+        AccountInbox inbox = inboxes.get(username);
+        return inbox == null ? null : inbox.snapshot();
+    }
+
+    // Số thư trong chỉ mục đã nạp, -1 nếu chưa nạp (không kích hoạt việc quét mailbox như count())
+    public int loadedCount(String username) {
+        AccountInbox inbox = inboxes.get(username);
+        return inbox == null ? -1 : inbox.size();
+    }
+
+    // Nạp chỉ mục từ MailCatalog thay vì quét mailbox; bỏ qua nếu account đã được nạp
+    public void preload(String username, List<Entry> entries) {
+        AccountInbox inbox = new AccountInbox();
+        for (Entry entry : entries) {
+            inbox.load(entry);
+        }
+        inboxes.putIfAbsent(username, inbox);
+    }
+
+    private AccountInbox inbox(String username) throws IOException {
+        AccountInbox inbox = inboxes.get(username);
+        if (inbox != null) {
+            return inbox;
+        }
+        // Không giữ chỉ mục rỗng cho account chưa tồn tại
+        if (!store.hasAccount(username)) {
+            return new AccountInbox();
+        }
+        try {
+            return inboxes.computeIfAbsent(username, this::scan);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private AccountInbox scan(String username) {
+        AccountInbox inbox = new AccountInbox();
+        try {
+            for (String name : store.listMessages(username)) {
+                String content = store.read(username, name);
+                if (content != null) {
+                    inbox.load(parseEntry(name, content));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return inbox;
+    }
+
+    // Đọc phần header (trước dòng "-----") của một thư
+    public static Entry parseEntry(String name, String content) {
+        String subject = "No Subject";
+        String sender = "";
+        String date = "";
+
+        int start = 0;
+        while (start < content.length()) {
+            int end = content.indexOf('\n', start);
+            if (end < 0) {
+                end = content.length();
+            }
+            String line = content.substring(start, end > start && content.charAt(end - 1) == '\r' ? end - 1 : end);
+            if (line.startsWith("-----")) {
+                break;
+            } else if (line.startsWith("Subject: ")) {
+                subject = line.substring(9);
+            } else if (line.startsWith("From: ")) {
+                sender = line.substring(6);
+            } else if (line.startsWith("Date: ")) {
+                date = line.substring(6);
+            }
+            start = end + 1;
+        }
+
+        return new Entry(name, subject, sender, date, content.getBytes(StandardCharsets.UTF_8).length,
+                timestampOf(name, date));
+    }
+
+    // Thời điểm nhận thư: lấy từ ID trong tên "msg_<id>.txt" hoặc tên cũ "email_<millis>.txt",
+    // nếu không có thì từ header Date
+    static long timestampOf(String name, String date) {
+        long id = MessageIdGenerator.parseFileName(name);
+        if (id >= 0) {
+            return MessageIdGenerator.timestampMillis(id);
+        }
+        if (name.startsWith("email_") && name.endsWith(".txt")) {
+            try {
+                return Long.parseLong(name.substring(6, name.length() - 4));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (!date.isEmpty()) {
+            try {
+                return new SimpleDateFormat("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).parse(date).getTime();
+            } catch (ParseException ignored) {
+            }
+        }
+        return 0;
+    }
+
+    // Cursor là chuỗi mờ với client: base64 của "timestamp\nfilename" của thư cuối trang trước
+    static String encodeCursor(Entry last) {
+        String raw = last.timestamp() + "\n" + last.filename();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static Entry decodeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int split = raw.indexOf('\n');
+            return new Entry(raw.substring(split + 1), "", "", "", 0, Long.parseLong(raw.substring(0, split)));
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.util.List;
+
+// Bọc một backend: append() chỉ trả về (và handler mới gửi reply) sau khi thư đã vào
+// DeliveryJournal với mức bền vững đã cấu hình, rồi mới ghi vào backend như bình thường.
+// Các thao tác đọc đi thẳng tới backend.
+public class JournaledMailboxStore implements MailboxStore {
+    private final MailboxStore delegate;
+    private final DeliveryJournal journal;
+
+    public JournaledMailboxStore(MailboxStore delegate, DeliveryJournal journal) throws IOException {
+        this.delegate = delegate;
+        this.journal = journal;
+        journal.open(delegate);
+    }
+
+    @Override
+    public void createAccount(String account) throws IOException {
+        delegate.createAccount(account);
+    }
+
+    @Override
+    public boolean hasAccount(String account) {
+        return delegate.hasAccount(account);
+    }
+
+    @Override
+    public List<String> listAccounts() throws IOException {
+        return delegate.listAccounts();
+    }
+
+    @Override
+    public void append(String account, String messageName, String content) throws IOException {
+        long sequence = journal.append(account, messageName, content);
+        try {
+            delegate.append(account, messageName, content);
+        } finally {
+            journal.applied(sequence);
+        }
+    }
+
+    @Override
+    public String read(String account, String messageName) throws IOException {
+        return delegate.read(account, messageName);
+    }
+
+    @Override
+    public List<String> listMessages(String account) throws IOException {
+        return delegate.listMessages(account);
+    }
+
+    @Override
+    public int countMessages(String account) throws IOException {
+        return delegate.countMessages(account);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        delegate.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            journal.close();
+        } finally {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Cache phía client cho một account trên một server: danh sách thư (mới nhất trước) cùng mốc đồng bộ
+// của GET_EMAILS_SINCE, và nội dung các thư đã đọc. Thư không bao giờ bị sửa nên thư đã đọc được lấy
+// thẳng từ cache; danh sách chỉ tải phần thư mới, hộp thư không đổi tốn một reply rỗng.
+//
+// Có thư mục (mailclient.cacheDir, rỗng = chỉ trong bộ nhớ) thì cache còn lại sau khi tắt client:
+//   <dir>/<server>/<user>/listing.bin   mốc | số thư | (tên thư | tiêu đề) ...
+//   <dir>/<server>/<user>/bodies/<tên thư>
+// File được ghi trên một thread nền, qua file tạm rồi đổi tên. File hỏng thì coi như chưa có cache.
+public class MailCache {
+    public static final String CACHE_DIR = System.getProperty("mailclient.cacheDir", "mail-cache");
+    // Số thư giữ trong bộ nhớ; phần còn lại đọc lại từ đĩa khi cần
+    private static final int MAX_MEMORY_BODIES = 256;
+    private static final int LISTING_VERSION = 1;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mail-cache-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public record Item(String filename, String subject) {
+    }
+
+    private final File dir;
+    private List<Item> items = new ArrayList<>();
+    private String mark = "";
+    private final Map<String, String> bodies = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_MEMORY_BODIES;
+        }
+    };
+
+    // dir == null: chỉ trong bộ nhớ
+    public MailCache(File dir) {
+        this.dir = dir;
+        if (dir != null) {
+            readListing();
+        }
+    }
+
+    public static MailCache open(String server, String username) {
+        if (CACHE_DIR.isEmpty()) {
+            return new MailCache(null);
+        }
+        return new MailCache(new File(new File(CACHE_DIR, directoryName(server)), directoryName(username)));
+    }
+
+    // Tên thư mục an toàn cho mọi tên người dùng ("..", "/", ký tự Unicode...)
+    private static String directoryName(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+    }
+
+    public synchronized List<Item> items() {
+        return new ArrayList<>(items);
+    }
+
+    public synchronized String mark() {
+        return mark;
+    }
+
+    // Áp dụng reply của GET_EMAILS_SINCE; received theo thứ tự mới nhất trước
+    public synchronized void apply(String newMark, boolean full, List<Item> received) {
+        Map<String, Item> merged = new LinkedHashMap<>();
+        for (Item item : received) {
+            merged.putIfAbsent(item.filename(), item);
+        }
+        if (full) {
+            // Thư không còn trên server thì bỏ cả nội dung đã cache
+            bodies.keySet().retainAll(merged.keySet());
+            pruneBodies(merged.keySet());
+        } else {
+            for (Item item : items) {
+                merged.putIfAbsent(item.filename(), item);
+            }
+        }
+        boolean changed = full || !received.isEmpty() || !newMark.equals(mark);
+        items = new ArrayList<>(merged.values());
+        mark = newMark;
+        if (changed) {
+            writeListing();
+        }
+    }
+
+    // null nếu thư chưa được cache
+    public synchronized String body(String filename) {
+        String body = bodies.get(filename);
+        File file = bodyFile(filename);
+        if (body == null && file != null && file.isFile()) {
+            try {
+                body = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+                bodies.put(filename, body);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return body;
+    }
+
+    public synchronized void putBody(String filename, String content) {
+        bodies.put(filename, content);
+        File file = bodyFile(filename);
+        if (file != null) {
+            WRITER.execute(() -> {
+                try {
+                    write(file, content.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ignored) {
+                    // Chỉ là cache: lần sau tải lại từ server
+                }
+            });
+        }
+    }
+
+    // Tên thư do server đặt; tên lạ (có thể trỏ ra ngoài thư mục cache) chỉ được cache trong bộ nhớ
+    private File bodyFile(String filename) {
+        if (dir == null || !filename.matches("[A-Za-z0-9_\\-]+(\\.[A-Za-z0-9_\\-]+)*")) {
+            return null;
+        }
+        return new File(new File(dir, "bodies"), filename);
+    }
+
+    private void pruneBodies(Set<String> keep) {
+        if (dir == null) {
+            return;
+        }
+        Set<String> names = new HashSet<>(keep);
+        WRITER.execute(() -> {
+            File[] files = new File(dir, "bodies").listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!names.contains(file.getName())) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private void readListing() {
+        File file = new File(dir, "listing.bin");
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != LISTING_VERSION) {
+                return;
+            }
+            String savedMark = in.readUTF();
+            int count = in.readInt();
+            List<Item> saved = new ArrayList<>(Math.min(count, 64 * 1024));
+            for (int i = 0; i < count; i++) {
+                saved.add(new Item(in.readUTF(), in.readUTF()));
+            }
+            items = saved;
+            mark = savedMark;
+        } catch (IOException e) {
+            // File hỏng: đồng bộ lại toàn bộ từ server
+        }
+    }
+
+    private void writeListing() {
+        if (dir == null) {
+            return;
+        }
+        List<Item> snapshot = new ArrayList<>(items);
+        String snapshotMark = mark;
+        WRITER.execute(() -> {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + snapshot.size() * 64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(LISTING_VERSION);
+                out.writeUTF(snapshotMark);
+                out.writeInt(snapshot.size());
+                for (Item item : snapshot) {
+                    out.writeUTF(item.filename());
+                    out.writeUTF(item.subject());
+                }
+                out.flush();
+                write(new File(dir, "listing.bin"), bytes.toByteArray());
+            } catch (IOException ignored) {
+                // Chỉ là cache: lần sau đồng bộ lại
+            }
+        });
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        Files.write(temp.toPath(), data);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
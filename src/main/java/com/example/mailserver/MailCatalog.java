@@ -0,0 +1,134 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Ảnh chụp danh mục (catalog) của store: danh sách account, số thư mỗi account và chỉ mục
+// InboxIndex của các account đã được nạp. Khởi động đọc file này thay vì duyệt cả store;
+// sai lệch (thư giao sau lần chụp cuối, journal được ghi lại...) được đối chiếu sau, trên thread nền.
+//
+// File: magic (int) | version (int) | thời điểm chụp (long) | số account (int) | account... | crc32 (long)
+// account: tên | số thư (int) | số entry chỉ mục (int, -1 = chưa nạp) | entry...
+// entry: filename | subject | sender | date | size (long) | timestamp (long); chuỗi = độ dài (int) + UTF-8
+// Ghi qua file tạm, fsync rồi đổi tên, nên file luôn là bản đầy đủ của một lần chụp.
+public final class MailCatalog {
+    private static final int MAGIC = 0x4D434154; // "MCAT"
+    private static final int VERSION = 1;
+
+    // index == null nếu chỉ mục của account chưa được nạp lúc chụp
+    public record AccountState(String account, int messageCount, List<InboxIndex.Entry> index) {
+    }
+
+    public record Snapshot(long savedAtMillis, List<AccountState> accounts) {
+    }
+
+    private MailCatalog() {
+    }
+
+    public static void write(File file, List<AccountState> accounts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(accounts.size());
+        for (AccountState state : accounts) {
+            writeString(out, state.account());
+            out.writeInt(state.messageCount());
+            if (state.index() == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            out.writeInt(state.index().size());
+            for (InboxIndex.Entry entry : state.index()) {
+                writeString(out, entry.filename());
+                writeString(out, entry.subject());
+                writeString(out, entry.sender());
+                writeString(out, entry.date());
+                out.writeLong(entry.size());
+                out.writeLong(entry.timestamp());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            bytes.writeTo(stream);
+            stream.getFD().sync();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        if (parent != null) {
+            FileSync.forceDirectory(parent.toPath());
+        }
+    }
+
+    // null nếu chưa có file; IOException nếu file hỏng (khi đó người gọi quét lại toàn bộ store)
+    public static Snapshot read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 8) {
+            throw new IOException("Catalog truncated: " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        in.skipBytes(data.length - 8);
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("Catalog checksum mismatch: " + file);
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Unknown catalog format: " + file);
+        }
+        long savedAt = in.readLong();
+        int accountCount = in.readInt();
+        List<AccountState> accounts = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            String account = readString(in);
+            int messageCount = in.readInt();
+            int indexed = in.readInt();
+            List<InboxIndex.Entry> index = null;
+            if (indexed >= 0) {
+                index = new ArrayList<>(indexed);
+                for (int j = 0; j < indexed; j++) {
+                    index.add(new InboxIndex.Entry(readString(in), readString(in), readString(in), readString(in),
+                            in.readLong(), in.readLong()));
+                }
+            }
+            accounts.add(new AccountState(account, messageCount, index));
+        }
+        return new Snapshot(savedAt, accounts);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt catalog string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
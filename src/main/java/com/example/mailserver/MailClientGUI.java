@@ -1,5 +1,6 @@
 package com.example.mailserver;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -11,20 +12,43 @@ import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import java.net.*;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class MailClientGUI extends Application {
-    private static final int SERVER_PORT = 9876;
-    private DatagramSocket socket;
-    private InetAddress serverIP;
+    private static final int PAGE_SIZE = 50;
+    private MailConnection connection;
     private String currentUser = null;
+    // Token phiên do LOGIN trả về, gửi thay cho tên người dùng trong các lệnh sau
+    private String sessionToken = null;
     private String clientIP = "";
     private String serverAddress = "localhost"; // Có thể thay đổi
 
     private Stage primaryStage;
     private Scene loginScene;
     private Scene mainScene;
+    private Button loadMoreButton;
+    private Label inboxLabel;
+    // Cache danh sách/nội dung thư theo server + account, giữ lại qua các lần đăng nhập
+    private final Map<String, MailCache> caches = new HashMap<>();
+    private MailCache cache;
+    // Số thư đang hiện trong danh sách; "Xem thêm" hiện thêm PAGE_SIZE thư từ cache
+    private int shown;
+    // Reply có thể về không theo thứ tự gửi: chỉ áp dụng reply của lần tải danh sách / mở thư gần nhất.
+    // Các field giao diện chỉ được đọc/ghi trên FX thread.
+    private int inboxGeneration;
+    private int readGeneration;
+    private int searchGeneration;
+    // Đang xem kết quả tìm kiếm (null = hộp thư) và cursor của trang kết quả tiếp theo
+    private String searchQuery;
+    private String searchCursor = "";
+    // Hẹn giờ gửi lại SUBSCRIBE (keepalive) trước khi đăng ký nhận NEW_MAIL hết hạn
+    private PauseTransition keepalive;
 
     @Override
     public void start(Stage stage) {
@@ -32,7 +56,7 @@ public class MailClientGUI extends Application {
         primaryStage.setTitle("VKU Mail Client");
 
         try {
-            socket = new DatagramSocket();
+            connection = new MailConnection();
 
             // Get client IP
             try (DatagramSocket tempSocket = new DatagramSocket()) {
@@ -171,9 +195,12 @@ public class MailClientGUI extends Application {
         leftPanel.setPrefWidth(350);
         leftPanel.setStyle("-fx-background-color: white;");
 
-        Label inboxLabel = new Label("📥 Hộp thư đến");
+        inboxLabel = new Label("📥 Hộp thư đến");
         inboxLabel.setFont(Font.font("Arial", FontWeight.BOLD, 16));
 
+        TextField searchField = new TextField();
+        searchField.setPromptText("🔎 Tìm kiếm (from:..., subject:...)");
+
         ListView<EmailItem> emailListView = new ListView<>();
         emailListView.setPrefHeight(400);
         emailListView.setCellFactory(lv -> new EmailCell());
@@ -181,9 +208,20 @@ public class MailClientGUI extends Application {
         Button refreshButton = new Button("🔄 Làm mới");
         refreshButton.setPrefWidth(320);
         refreshButton.setStyle("-fx-background-color: #667eea; -fx-text-fill: white; -fx-font-weight: bold;");
-        refreshButton.setOnAction(e -> loadEmails(emailListView));
+        refreshButton.setOnAction(e -> {
+            searchField.clear();
+            leaveSearch();
+            loadEmails(emailListView);
+        });
+        searchField.setOnAction(e -> searchEmails(searchField.getText(), emailListView, false));
 
-        leftPanel.getChildren().addAll(inboxLabel, emailListView, refreshButton);
+        loadMoreButton = new Button("⬇️ Xem thêm");
+        loadMoreButton.setPrefWidth(320);
+        loadMoreButton.setStyle("-fx-background-color: #95a5a6; -fx-text-fill: white; -fx-font-weight: bold;");
+        loadMoreButton.setDisable(true);
+        loadMoreButton.setOnAction(e -> loadMoreEmails(emailListView));
+
+        leftPanel.getChildren().addAll(inboxLabel, searchField, emailListView, refreshButton, loadMoreButton);
 
         VBox rightPanel = new VBox(15);
         rightPanel.setPadding(new Insets(15));
@@ -200,7 +238,7 @@ public class MailClientGUI extends Application {
         Label toLabel = new Label("Người nhận:");
         toLabel.setFont(Font.font("Arial", FontWeight.BOLD, 14));
         TextField toField = new TextField();
-        toField.setPromptText("Nhập username người nhận");
+        toField.setPromptText("Nhập username người nhận (nhiều người: cách nhau bởi dấu phẩy)");
 
         Label subjectLabel = new Label("Tiêu đề:");
         subjectLabel.setFont(Font.font("Arial", FontWeight.BOLD, 14));
@@ -219,7 +257,7 @@ public class MailClientGUI extends Application {
                 "-fx-font-size: 14px; -fx-font-weight: bold; -fx-padding: 10;");
         sendButton.setOnAction(e -> handleSendEmail(toField.getText(), subjectField.getText(),
                 contentArea.getText(),toField, subjectField,
-                contentArea, emailListView));
+                contentArea, emailListView, sendButton));
 
         composeBox.getChildren().addAll(toLabel, toField, subjectLabel, subjectField,
                 contentLabel, contentArea, sendButton);
@@ -260,6 +298,8 @@ public class MailClientGUI extends Application {
 
         mainScene = new Scene(root, 1000, 650);
         loadEmails(emailListView);
+        connection.setPushListener(push -> Platform.runLater(() -> onNewMail(push, emailListView)));
+        subscribe(emailListView);
     }
 
     private static class EmailItem {
@@ -300,31 +340,23 @@ public class MailClientGUI extends Application {
         }
     }
 
-    private String sendRequest(String request) {
-        try {
-            // Connect to server
-            if (serverIP == null) {
-                serverIP = InetAddress.getByName(serverAddress);
+    // Gửi lệnh theo giao thức đã thỏa thuận, không chặn FX thread (nhiều lệnh có thể cùng chờ reply);
+    // onReply chạy trên FX thread. Với giao thức văn bản, fields chỉ có phần sau "STATUS|"
+    private void sendCommand(Consumer<BinaryProtocol.Response> onReply, int opcode, String command,
+                             String... args) {
+        String token = sessionToken;
+        connection.sendAsync(opcode, command, args).thenAcceptAsync(response -> {
+            // Phiên hết hạn (hoặc server khởi động lại): quay về màn hình đăng nhập
+            if (!response.success() && token != null && token.equals(sessionToken)
+                    && "Invalid or expired session".equals(response.message())) {
+                sessionToken = null;
+                showAlert("Phiên đăng nhập", "Phiên đăng nhập đã hết hạn, vui lòng đăng nhập lại.",
+                        Alert.AlertType.WARNING);
+                handleLogout();
+                return;
             }
-
-            byte[] sendData = request.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(
-                    sendData, sendData.length, serverIP, SERVER_PORT);
-            socket.send(sendPacket);
-
-            byte[] receiveData = new byte[4096];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            socket.setSoTimeout(5000); // 5 seconds timeout
-            socket.receive(receivePacket);
-
-            return new String(receivePacket.getData(), 0, receivePacket.getLength());
-        } catch (UnknownHostException e) {
-            return "ERROR|Cannot connect to server: Invalid address";
-        } catch (SocketTimeoutException e) {
-            return "ERROR|Connection timeout: Server not responding";
-        } catch (IOException e) {
-            return "ERROR|Connection failed: " + e.getMessage();
-        }
+            onReply.accept(response);
+        }, Platform::runLater);
     }
 
     private void handleRegister(String username, String password) {
@@ -338,17 +370,15 @@ public class MailClientGUI extends Application {
             return;
         }
 
-        serverIP = null; // Reset server IP
-        String request = "REGISTER|" + username + "|" + password;
-        String response = sendRequest(request);
-        String[] parts = response.split("\\|");
-
-        if (parts[0].equals("SUCCESS")) {
-            showAlert("Thành công", "Đăng ký tài khoản thành công!\nBạn có thể đăng nhập ngay.",
-                    Alert.AlertType.INFORMATION);
-        } else {
-            showAlert("Lỗi", parts.length > 1 ? parts[1] : "Đăng ký thất bại", Alert.AlertType.ERROR);
-        }
+        connection.connectAsync(serverAddress, MailConnection.SERVER_PORT).thenRun(() -> sendCommand(response -> {
+            if (response.success()) {
+                showAlert("Thành công", "Đăng ký tài khoản thành công!\nBạn có thể đăng nhập ngay.",
+                        Alert.AlertType.INFORMATION);
+            } else {
+                showAlert("Lỗi", response.message().isEmpty() ? "Đăng ký thất bại" : response.message(),
+                        Alert.AlertType.ERROR);
+            }
+        }, BinaryProtocol.OP_REGISTER, "REGISTER", username, password));
     }
 
     private void handleLogin(String username, String password) {
@@ -362,25 +392,40 @@ public class MailClientGUI extends Application {
             return;
         }
 
-        serverIP = null; // Reset server IP
-        String request = "LOGIN|" + username + "|" + password;
-        String response = sendRequest(request);
-        String[] parts = response.split("\\|");
-
-        if (parts[0].equals("SUCCESS")) {
-            currentUser = username;
-            createMainScene();
-            primaryStage.setScene(mainScene);
-            primaryStage.setWidth(1000);
-            primaryStage.setHeight(650);
-        } else {
-            showAlert("Lỗi", parts.length > 1 ? parts[1] : "Đăng nhập thất bại", Alert.AlertType.ERROR);
-        }
+        connection.connectAsync(serverAddress, MailConnection.SERVER_PORT).thenRun(() -> sendCommand(response -> {
+            if (response.success()) {
+                currentUser = username;
+                sessionToken = response.message();
+                cache = caches.computeIfAbsent(serverAddress + "/" + username,
+                        key -> MailCache.open(serverAddress, username));
+                shown = PAGE_SIZE;
+                createMainScene();
+                primaryStage.setScene(mainScene);
+                primaryStage.setWidth(1000);
+                primaryStage.setHeight(650);
+            } else {
+                showAlert("Lỗi", response.message().isEmpty() ? "Đăng nhập thất bại" : response.message(),
+                        Alert.AlertType.ERROR);
+            }
+        }, BinaryProtocol.OP_LOGIN, "LOGIN", username, password));
     }
 
     private void handleLogout() {
+        if (sessionToken != null) {
+            // Không chờ reply
+            connection.sendAsync(BinaryProtocol.OP_LOGOUT, "LOGOUT", sessionToken);
+        }
         currentUser = null;
-        serverIP = null;
+        sessionToken = null;
+        connection.setPushListener(null);
+        if (keepalive != null) {
+            keepalive.stop();
+            keepalive = null;
+        }
+        // Reply của danh sách / thư đang chờ thuộc phiên cũ: bỏ qua
+        inboxGeneration++;
+        readGeneration++;
+        leaveSearch();
         primaryStage.setScene(loginScene);
         primaryStage.setWidth(550);
         primaryStage.setHeight(550);
@@ -388,57 +433,258 @@ public class MailClientGUI extends Application {
 
     private void handleSendEmail(String recipient, String subject, String content,
                                  TextField toField, TextField subjectField, TextArea contentArea,
-                                 ListView<EmailItem> emailListView) {
+                                 ListView<EmailItem> emailListView, Button sendButton) {
         if (recipient.trim().isEmpty() || subject.trim().isEmpty() || content.trim().isEmpty()) {
             showAlert("Lỗi", "Vui lòng nhập đầy đủ thông tin!", Alert.AlertType.ERROR);
             return;
         }
 
-        String request = "SEND_EMAIL|" + currentUser + "|" + recipient + "|" + subject + "|" + content;
-        String response = sendRequest(request);
-        String[] parts = response.split("\\|");
+        sendButton.setDisable(true);
+        sendCommand(response -> {
+            sendButton.setDisable(false);
+            String failed = failedRecipients(response);
+            if (response.success()) {
+                String summary = response.message().split("\\|")[0];
+                showAlert("Thành công", failed.isEmpty() ? "Gửi email thành công!"
+                        : "Gửi email thành công (" + summary + ")\nKhông gửi được: " + failed,
+                        Alert.AlertType.INFORMATION);
+                toField.clear();
+                subjectField.clear();
+                contentArea.clear();
+                loadEmails(emailListView);
+            } else {
+                showAlert("Lỗi", response.message().isEmpty() ? "Gửi email thất bại"
+                        : failed.isEmpty() ? response.message() : "Không gửi được: " + failed, Alert.AlertType.ERROR);
+            }
+        }, BinaryProtocol.OP_SEND_EMAIL, "SEND_EMAIL", sessionToken, recipient, subject, content);
+    }
 
-        if (parts[0].equals("SUCCESS")) {
-            showAlert("Thành công", "Gửi email thành công!", Alert.AlertType.INFORMATION);
-            toField.clear();
-            subjectField.clear();
-            contentArea.clear();
-            loadEmails(emailListView);
-        } else {
-            showAlert("Lỗi", parts.length > 1 ? parts[1] : "Gửi email thất bại", Alert.AlertType.ERROR);
+    // Reply gửi nhiều người nhận: văn bản "n/m delivered|user=STATUS;...", nhị phân từng cặp user / STATUS
+    private String failedRecipients(BinaryProtocol.Response response) {
+        StringBuilder failed = new StringBuilder();
+        String[] fields = response.fields();
+        if (connection.binaryProtocol()) {
+            for (int i = 1; i + 1 < fields.length; i += 2) {
+                if (!"OK".equals(fields[i + 1])) {
+                    failed.append(failed.length() > 0 ? ", " : "")
+                            .append(fields[i]).append(" (").append(fields[i + 1]).append(")");
+                }
+            }
+        } else if (response.message().contains("|")) {
+            for (String entry : response.message().split("\\|", 2)[1].split(";")) {
+                String[] status = entry.split("=");
+                if (status.length == 2 && !"OK".equals(status[1])) {
+                    failed.append(failed.length() > 0 ? ", " : "")
+                            .append(status[0]).append(" (").append(status[1]).append(")");
+                }
+            }
         }
+        return failed.toString();
     }
 
+    // Hiện ngay danh sách trong cache rồi chỉ tải các thư mới kể từ lần đồng bộ trước
     private void loadEmails(ListView<EmailItem> emailListView) {
-        String request = "GET_EMAILS|" + currentUser;
-        String response = sendRequest(request);
-        String[] parts = response.split("\\|");
+        int generation = ++inboxGeneration;
+        MailCache target = cache;
+        showEmails(emailListView);
+        sendCommand(response -> {
+            // Đã đăng xuất (hoặc một lần làm mới khác đã bắt đầu) trong lúc chờ
+            if (generation != inboxGeneration || !response.success()) {
+                return;
+            }
+            String[] fields = response.fields();
+            List<MailCache.Item> received = new ArrayList<>();
+            String mark;
+            boolean full;
+            if (connection.binaryProtocol()) {
+                // mốc mới, FULL/DELTA, rồi từng cặp tên thư / tiêu đề
+                if (fields.length < 2) {
+                    return;
+                }
+                mark = fields[0];
+                full = "FULL".equals(fields[1]);
+                for (int i = 2; i + 1 < fields.length; i += 2) {
+                    received.add(new MailCache.Item(fields[i], fields[i + 1]));
+                }
+            } else {
+                String[] parts = response.message().split("\\|", 3);
+                if (parts.length < 2) {
+                    return;
+                }
+                mark = parts[0];
+                full = "FULL".equals(parts[1]);
+                for (String email : parts.length > 2 ? parts[2].split(";") : new String[0]) {
+                    String[] emailParts = email.split(":::");
+                    if (emailParts.length == 2) {
+                        received.add(new MailCache.Item(emailParts[0], emailParts[1]));
+                    }
+                }
+            }
+            target.apply(mark, full, received);
+            if (!full) {
+                // Thư mới được thêm lên đầu, các thư đang hiện vẫn được giữ
+                shown += received.size();
+            }
+            showEmails(emailListView);
+        }, BinaryProtocol.OP_GET_EMAILS_SINCE, "GET_EMAILS_SINCE", sessionToken, target.mark());
+    }
 
-        emailListView.getItems().clear();
+    // Đăng ký nhận NEW_MAIL rồi gửi lại sau mỗi ttl/3. Reply NEW (đăng ký cũ đã hết hạn, server khởi động lại)
+    // nghĩa là có thể đã lỡ thông báo: đồng bộ lại danh sách
+    private void subscribe(ListView<EmailItem> emailListView) {
+        String token = sessionToken;
+        sendCommand(response -> {
+            // Đã đăng xuất trong lúc chờ
+            if (token == null || !token.equals(sessionToken)) {
+                return;
+            }
+            long ttlSeconds = 90;
+            if (response.success()) {
+                String[] fields = connection.binaryProtocol() ? response.fields() : response.message().split("\\|");
+                try {
+                    ttlSeconds = Long.parseLong(fields[0]);
+                } catch (RuntimeException ignored) {
+                    // Giữ mặc định
+                }
+                if (fields.length > 1 && "NEW".equals(fields[1]) && keepalive != null) {
+                    loadEmails(emailListView);
+                }
+            }
+            keepalive = new PauseTransition(Duration.seconds(Math.max(1, ttlSeconds / 3)));
+            keepalive.setOnFinished(e -> subscribe(emailListView));
+            keepalive.play();
+        }, BinaryProtocol.OP_SUBSCRIBE, "SUBSCRIBE", token);
+    }
+
+    // Thông báo nối tiếp đúng mốc đang có thì thêm thư ngay, không thì (lỡ thông báo) đồng bộ lại
+    private void onNewMail(MailConnection.Push push, ListView<EmailItem> emailListView) {
+        if (sessionToken == null) {
+            return;
+        }
+        if (push.filename() != null && !push.previousMark().isEmpty() && push.previousMark().equals(cache.mark())) {
+            cache.apply(push.mark(), false, List.of(new MailCache.Item(push.filename(), push.subject())));
+            shown++;
+            showEmails(emailListView);
+        } else {
+            loadEmails(emailListView);
+        }
+    }
+
+    // Danh sách đã có đủ trong cache: "Xem thêm" không cần request (trừ khi đang xem kết quả tìm kiếm)
+    private void loadMoreEmails(ListView<EmailItem> emailListView) {
+        if (searchQuery != null) {
+            searchEmails(searchQuery, emailListView, true);
+            return;
+        }
+        shown += PAGE_SIZE;
+        showEmails(emailListView);
+    }
 
-        if (parts[0].equals("SUCCESS") && parts.length > 1 && !parts[1].equals("No emails")) {
-            String[] emails = parts[1].split(";");
-            for (String email : emails) {
-                if (!email.trim().isEmpty()) {
+    // Tìm trên server (SEARCH), mới nhất trước; query rỗng thì quay lại hộp thư.
+    // more = true: thêm trang kết quả tiếp theo vào danh sách đang hiện
+    private void searchEmails(String query, ListView<EmailItem> emailListView, boolean more) {
+        if (query.trim().isEmpty()) {
+            leaveSearch();
+            showEmails(emailListView);
+            return;
+        }
+        int generation = ++searchGeneration;
+        searchQuery = query;
+        loadMoreButton.setDisable(true);
+        sendCommand(response -> {
+            if (generation != searchGeneration) {
+                return;
+            }
+            if (!response.success()) {
+                showAlert("Tìm kiếm", response.message(), Alert.AlertType.WARNING);
+                return;
+            }
+            List<EmailItem> hits = new ArrayList<>();
+            String next;
+            String total;
+            if (connection.binaryProtocol()) {
+                // nextCursor, tổng số thư khớp, rồi từng cặp tên thư / tiêu đề
+                String[] fields = response.fields();
+                if (fields.length < 2) {
+                    return;
+                }
+                next = fields[0];
+                total = fields[1];
+                for (int i = 2; i + 1 < fields.length; i += 2) {
+                    hits.add(new EmailItem(fields[i], fields[i + 1]));
+                }
+            } else {
+                String[] parts = response.message().split("\\|", 3);
+                if (parts.length < 2) {
+                    return;
+                }
+                next = parts[0];
+                total = parts[1];
+                for (String email : parts.length > 2 ? parts[2].split(";") : new String[0]) {
                     String[] emailParts = email.split(":::");
                     if (emailParts.length == 2) {
-                        emailListView.getItems().add(new EmailItem(emailParts[0], emailParts[1]));
+                        hits.add(new EmailItem(emailParts[0], emailParts[1]));
                     }
                 }
             }
+            searchCursor = next;
+            inboxLabel.setText("🔎 " + total + " kết quả");
+            if (more) {
+                emailListView.getItems().addAll(hits);
+            } else {
+                emailListView.getItems().setAll(hits);
+            }
+            loadMoreButton.setDisable(next.isEmpty());
+        }, BinaryProtocol.OP_SEARCH, "SEARCH", sessionToken, query.replace('|', ' '), String.valueOf(PAGE_SIZE),
+                more ? searchCursor : "");
+    }
+
+    private void leaveSearch() {
+        searchGeneration++;
+        searchQuery = null;
+        searchCursor = "";
+        if (inboxLabel != null) {
+            inboxLabel.setText("📥 Hộp thư đến");
         }
     }
 
-    private void loadEmailContent(String filename, TextArea readArea) {
-        String request = "GET_EMAIL|" + currentUser + "|" + filename;
-        String response = sendRequest(request);
-        String[] parts = response.split("\\|", 2);
+    private void showEmails(ListView<EmailItem> emailListView) {
+        // Danh sách (và cache) vẫn được cập nhật, chỉ hiện lại khi thoát tìm kiếm
+        if (searchQuery != null) {
+            return;
+        }
+        List<MailCache.Item> items = cache.items();
+        List<EmailItem> visible = new ArrayList<>(Math.min(shown, items.size()));
+        for (MailCache.Item item : items.subList(0, Math.min(shown, items.size()))) {
+            visible.add(new EmailItem(item.filename(), item.subject()));
+        }
+        emailListView.getItems().setAll(visible);
+        loadMoreButton.setDisable(shown >= items.size());
+    }
 
-        if (parts[0].equals("SUCCESS") && parts.length > 1) {
-            readArea.setText(parts[1]);
-        } else {
-            readArea.setText("Không thể đọc email!");
+    private void loadEmailContent(String filename, TextArea readArea) {
+        int request = ++readGeneration;
+        MailCache target = cache;
+        String cached = target.body(filename);
+        if (cached != null) {
+            readArea.setText(cached);
+            return;
         }
+        readArea.setText("Đang tải...");
+        sendCommand(response -> {
+            if (response.success()) {
+                target.putBody(filename, response.message());
+            }
+            // Người dùng đã mở thư khác trong lúc chờ
+            if (request != readGeneration) {
+                return;
+            }
+            if (response.success()) {
+                readArea.setText(response.message());
+            } else {
+                readArea.setText("Không thể đọc email!");
+            }
+        }, BinaryProtocol.OP_GET_EMAIL, "GET_EMAIL", sessionToken, filename);
     }
 
     private void showAlert(String title, String message, Alert.AlertType type) {
@@ -453,8 +699,8 @@ public class MailClientGUI extends Application {
 
     @Override
     public void stop() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        if (connection != null) {
+            connection.close();
         }
     }
 
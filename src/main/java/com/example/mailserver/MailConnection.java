@@ -0,0 +1,335 @@
+package com.example.mailserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Phía client của giao thức: một socket UDP, thỏa thuận giao thức bằng HELLO rồi gửi lệnh
+// (nhị phân nếu server hỗ trợ, không thì văn bản); request/reply đi qua ChunkedTransfer.
+// Dùng chung cho MailClientGUI và MailLoadGenerator.
+//
+// Nhiều request được gửi song song trên cùng socket: mỗi request có transferId riêng, một thread nhận duy nhất
+// chuyển FACK/FRAG tới đúng request theo transferId. sendAsync() trả về CompletableFuture, send()/call()
+// chờ kết quả cho người gọi không cần bất đồng bộ.
+public class MailConnection implements Closeable {
+    public static final int SERVER_PORT = 9876;
+    private static final String PUSH_PREFIX = PushNotifier.NEW_MAIL + "|";
+
+    // Thông báo NEW_MAIL server chủ động gửi (sau SUBSCRIBE); filename/subject == null nếu không kèm thư
+    public record Push(String previousMark, String mark, String filename, String subject) {
+    }
+
+    // Một request đang chờ reply; reassembly chỉ được thread nhận dùng.
+    // reply: bytes nhận được (có thể nén), result: reply đã giải nén trả cho người gọi
+    private static final class Exchange {
+        final int transferId;
+        final ChunkedTransfer.Outbound outbound;
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        ChunkedTransfer.Reassembly reassembly;
+        volatile long lastProgress = System.currentTimeMillis();
+
+        Exchange(int transferId, byte[] request) {
+            this.transferId = transferId;
+            this.outbound = new ChunkedTransfer.Outbound(transferId, request);
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final Map<Integer, Exchange> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger transferIds = new AtomicInteger(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    private final Thread receiver;
+    private volatile long timeoutMillis;
+    private volatile String host = "localhost";
+    private volatile int port = SERVER_PORT;
+    private volatile InetSocketAddress server;
+    // Server đã đồng ý dùng BinaryProtocol (qua HELLO) hay vẫn là giao thức văn bản
+    private volatile boolean binaryProtocol = false;
+    // Server đồng ý nén (DEFLATE1): request lớn được nén, reply có thể về dạng nén
+    private volatile boolean compression = false;
+    // Chạy trên thread nhận: không được chặn
+    private volatile Consumer<Push> pushListener;
+
+    public MailConnection() throws SocketException {
+        this(ChunkedTransfer.TRANSFER_TIMEOUT_MILLIS);
+    }
+
+    public MailConnection(long timeoutMillis) throws SocketException {
+        this.socket = new DatagramSocket();
+        this.timeoutMillis = timeoutMillis;
+        this.receiver = Thread.ofVirtual().name("mail-client-receiver").start(this::receiveLoop);
+    }
+
+    // Đổi server rồi thỏa thuận lại giao thức; server cũ không biết HELLO (trả ERROR) thì dùng văn bản
+    public void connect(String host, int port) {
+        connectAsync(host, port).join();
+    }
+
+    // Lệnh gửi sau khi future hoàn thành mới dùng giao thức đã thỏa thuận
+    public CompletableFuture<Boolean> connectAsync(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.server = null;
+        binaryProtocol = false;
+        compression = false;
+        String hello = "HELLO|" + BinaryProtocol.HELLO_TOKEN + "|" + BinaryProtocol.DEFLATE_TOKEN;
+        return exchangeAsync(hello.getBytes(StandardCharsets.UTF_8))
+                .handle((bytes, error) -> {
+                    BinaryProtocol.Response response = BinaryProtocol.decodeResponse(
+                            bytes != null ? bytes : errorReply(error));
+                    List<String> accepted = Arrays.asList(response.message().split("\\|"));
+                    binaryProtocol = response.success() && accepted.contains(BinaryProtocol.HELLO_TOKEN);
+                    compression = binaryProtocol && accepted.contains(BinaryProtocol.DEFLATE_TOKEN);
+                    return binaryProtocol;
+                });
+    }
+
+    public void setTimeout(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public boolean binaryProtocol() {
+        return binaryProtocol;
+    }
+
+    public boolean compression() {
+        return compression;
+    }
+
+    public void setPushListener(Consumer<Push> listener) {
+        this.pushListener = listener;
+    }
+
+    // Lỗi mạng được trả về như một reply ERROR (dùng cho GUI); future không bao giờ hoàn thành với exception
+    public CompletableFuture<BinaryProtocol.Response> sendAsync(int opcode, String command, String... args) {
+        return exchangeAsync(encode(opcode, command, args))
+                .handle((bytes, error) -> BinaryProtocol.decodeResponse(bytes != null ? bytes : errorReply(error)));
+    }
+
+    public BinaryProtocol.Response send(int opcode, String command, String... args) {
+        return sendAsync(opcode, command, args).join();
+    }
+
+    // Như send() nhưng lỗi mạng/timeout được ném ra để người gọi phân biệt với lỗi từ server
+    public BinaryProtocol.Response call(int opcode, String command, String... args) throws IOException {
+        return BinaryProtocol.decodeResponse(exchangeOrThrow(encode(opcode, command, args)));
+    }
+
+    private byte[] encode(int opcode, String command, String... args) {
+        if (!binaryProtocol) {
+            return (command + "|" + String.join("|", args)).getBytes(StandardCharsets.UTF_8);
+        }
+        if (!compression) {
+            return BinaryProtocol.encodeRequest(opcode, args);
+        }
+        // VD: SEND_EMAIL với nội dung dài được nén; lệnh ngắn vẫn gửi nguyên dạng
+        return Compression.maybeCompress(BinaryProtocol.encodeRequest(opcode | BinaryProtocol.FLAG_DEFLATE, args));
+    }
+
+    public byte[] exchange(byte[] request) {
+        try {
+            return exchangeOrThrow(request);
+        } catch (IOException e) {
+            return errorReply(e);
+        }
+    }
+
+    private static byte[] errorReply(Throwable error) {
+        Throwable cause = error;
+        while (cause.getCause() != null && !(cause instanceof IOException)) {
+            cause = cause.getCause();
+        }
+        String message;
+        if (cause instanceof UnknownHostException) {
+            message = "ERROR|Cannot connect to server: Invalid address";
+        } else if (cause instanceof SocketTimeoutException) {
+            message = "ERROR|Connection timeout: Server not responding";
+        } else {
+            message = "ERROR|Connection failed: " + cause.getMessage();
+        }
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] exchangeOrThrow(byte[] request) throws IOException {
+        try {
+            return exchangeAsync(request).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request interrupted");
+        }
+    }
+
+    // Request/reply được chia fragment nên không bị giới hạn bởi kích thước một datagram.
+    // Việc gửi (và gửi lại) chạy trên một virtual thread riêng cho mỗi request.
+    public CompletableFuture<byte[]> exchangeAsync(byte[] request) {
+        int transferId = transferIds.getAndIncrement() & Integer.MAX_VALUE;
+        Exchange exchange = new Exchange(transferId, request);
+        pending.put(transferId, exchange);
+        Thread.ofVirtual().name("mail-client-request-" + transferId).start(() -> run(exchange));
+        return exchange.result;
+    }
+
+    private void run(Exchange exchange) {
+        try {
+            InetSocketAddress target = server();
+            exchange.outbound.run(packet -> socket.send(new DatagramPacket(packet, packet.length, target)),
+                    ChunkedTransfer.Outbound::awaitAck);
+            // Server nhận đủ request rồi; chờ reply, mỗi fragment/ACK mới tính lại thời gian chờ
+            while (!exchange.reply.isDone()) {
+                long idle = System.currentTimeMillis() - exchange.lastProgress;
+                if (idle > timeoutMillis) {
+                    throw new SocketTimeoutException("No reply for transfer " + exchange.transferId);
+                }
+                try {
+                    exchange.reply.get(timeoutMillis - idle, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException | ExecutionException ignored) {
+                    // Vòng lặp kiểm tra lại
+                }
+            }
+            // Giải nén trên thread của request, không chiếm thread nhận
+            byte[] reply = exchange.reply.join();
+            exchange.result.complete(Compression.isCompressed(reply)
+                    ? Compression.decompress(reply, ServerConfig.MAX_TRANSFER_SIZE) : reply);
+        } catch (CompletionException e) {
+            exchange.result.completeExceptionally(e.getCause());
+        } catch (IOException e) {
+            exchange.reply.completeExceptionally(e);
+            exchange.result.completeExceptionally(e);
+        } catch (InterruptedException e) {
+            IOException interrupted = new InterruptedIOException("Request interrupted");
+            exchange.reply.completeExceptionally(interrupted);
+            exchange.result.completeExceptionally(interrupted);
+        } finally {
+            pending.remove(exchange.transferId);
+        }
+    }
+
+    private InetSocketAddress server() throws UnknownHostException {
+        InetSocketAddress current = server;
+        if (current == null) {
+            current = new InetSocketAddress(InetAddress.getByName(host), port);
+            server = current;
+        }
+        return current;
+    }
+
+    // Thread nhận duy nhất: chuyển ACK và fragment reply tới request có cùng transferId
+    private void receiveLoop() {
+        DatagramPacket packet = new DatagramPacket(new byte[64 * 1024], 64 * 1024);
+        while (!socket.isClosed()) {
+            try {
+                socket.receive(packet);
+                dispatch(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), packet.getSocketAddress());
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    break;
+                }
+            }
+        }
+        IOException closed = new SocketException("Connection closed");
+        pending.values().forEach(exchange -> {
+            exchange.reply.completeExceptionally(closed);
+            exchange.result.completeExceptionally(closed);
+        });
+    }
+
+    private void dispatch(ByteBuffer data, SocketAddress from) throws IOException {
+        if (ChunkedTransfer.isAck(data)) {
+            ChunkedTransfer.Ack ack = ChunkedTransfer.parseAck(data);
+            Exchange exchange = ack == null ? null : pending.get(ack.transferId());
+            if (exchange != null) {
+                exchange.lastProgress = System.currentTimeMillis();
+                exchange.outbound.onAck(ack);
+            }
+        } else if (ChunkedTransfer.isFragment(data)) {
+            ChunkedTransfer.Fragment fragment = ChunkedTransfer.parseFragment(data);
+            if (fragment == null) {
+                return;
+            }
+            Exchange exchange = pending.get(fragment.transferId());
+            if (exchange == null || exchange.reply.isDone()) {
+                // Reply đến muộn của request đã bỏ cuộc: vẫn ACK để server không giữ worker chờ tới hết hạn
+                send(ChunkedTransfer.Reassembly.completeAck(fragment.transferId(), fragment.total()), from);
+                return;
+            }
+            exchange.lastProgress = System.currentTimeMillis();
+            // Reply đã đến nghĩa là server nhận đủ request
+            exchange.outbound.complete();
+            if (exchange.reassembly == null) {
+                exchange.reassembly = new ChunkedTransfer.Reassembly(fragment.transferId(), fragment.total());
+            }
+            boolean complete = exchange.reassembly.add(fragment);
+            send(exchange.reassembly.ack(), from);
+            if (complete) {
+                exchange.reply.complete(exchange.reassembly.assemble());
+            }
+        } else if (isPush(data)) {
+            Consumer<Push> listener = pushListener;
+            // Chỉ nhận thông báo từ server đang kết nối
+            if (listener != null && from.equals(server)) {
+                String[] parts = StandardCharsets.UTF_8.decode(data).toString().split("\\|", 5);
+                listener.accept(new Push(parts.length > 1 ? parts[1] : "", parts.length > 2 ? parts[2] : "",
+                        parts.length > 4 ? parts[3] : null, parts.length > 4 ? parts[4] : null));
+            }
+        } else if (pending.size() == 1) {
+            // Reply văn bản không theo fragment (server cũ) không mang transferId: chỉ gán được khi có một request
+            for (Exchange exchange : pending.values()) {
+                byte[] reply = new byte[data.remaining()];
+                data.get(reply);
+                exchange.outbound.complete();
+                exchange.reply.complete(reply);
+            }
+        }
+    }
+
+    private static boolean isPush(ByteBuffer data) {
+        if (data.remaining() < PUSH_PREFIX.length()) {
+            return false;
+        }
+        for (int i = 0; i < PUSH_PREFIX.length(); i++) {
+            if (data.get(data.position() + i) != PUSH_PREFIX.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void send(byte[] packet, SocketAddress to) throws IOException {
+        socket.send(new DatagramPacket(packet, packet.length, to));
+    }
+
+    @Override
+    public void close() {
+        if (!socket.isClosed()) {
+            socket.close();
+        }
+        receiver.interrupt();
+    }
+}
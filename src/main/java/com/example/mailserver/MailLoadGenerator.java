@@ -0,0 +1,336 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Công cụ tạo tải không giao diện: mô phỏng nhiều người dùng ảo (mỗi người một MailConnection chạy
+// trên một virtual thread) gửi hỗn hợp LOGIN / SEND_EMAIL / GET_EMAILS_PAGE / GET_EMAIL với tốc độ
+// mục tiêu cố định (open-loop), VD:
+//   java -cp MailServer.jar com.example.mailserver.MailLoadGenerator --rate=2000 --users=1000 --duration=60
+//
+// Thời điểm gửi của từng request được lên lịch trước, độ trễ tính từ thời điểm dự kiến chứ không
+// phải lúc gửi thật: khi server chậm làm người dùng ảo trễ lịch, thời gian chờ đó vẫn được tính
+// (hiệu chỉnh coordinated omission). Cột "svc" là thời gian tính từ lúc gửi thật, để so sánh.
+// Request hết thời gian chờ cũng được tính vào độ trễ (ít nhất bằng --timeout), không bị bỏ khỏi percentile.
+// Mỗi người dùng ảo giữ một socket nên cần ulimit -n lớn hơn --users.
+public class MailLoadGenerator {
+    private static final String PASSWORD = "loadtest";
+    // REGISTER/LOGIN băm mật khẩu (chậm) nên giai đoạn chuẩn bị dùng timeout dài hơn và ít request song song
+    private static final long SETUP_TIMEOUT_MILLIS = 60_000;
+    private static final int SETUP_CONCURRENCY = 16;
+
+    enum Op {
+        LOGIN, SEND, LIST, READ
+    }
+
+    record Options(String host, int port, int users, double rate, int durationSeconds, int warmupSeconds,
+                   long timeoutMillis, int bodySize, String prefix, Map<Op, Integer> mix) {
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("Invalid argument: " + arg);
+                }
+                values.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+
+            Map<Op, Integer> mix = new EnumMap<>(Op.class);
+            for (String entry : values.getOrDefault("mix", "login=5,send=20,list=45,read=30").split(",")) {
+                String[] pair = entry.split("=");
+                mix.put(Op.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(pair[1].trim()));
+            }
+            Options options = new Options(values.getOrDefault("host", "localhost"),
+                    Integer.parseInt(values.getOrDefault("port", String.valueOf(MailConnection.SERVER_PORT))),
+                    Integer.parseInt(values.getOrDefault("users", "500")),
+                    Double.parseDouble(values.getOrDefault("rate", "1000")),
+                    Integer.parseInt(values.getOrDefault("duration", "30")),
+                    Integer.parseInt(values.getOrDefault("warmup", "5")),
+                    Long.parseLong(values.getOrDefault("timeout", "2000")),
+                    Integer.parseInt(values.getOrDefault("body", "1024")),
+                    values.getOrDefault("prefix", "load"), mix);
+            if (options.users() <= 0 || options.rate() <= 0 || options.durationSeconds() <= 0) {
+                throw new IllegalArgumentException("users, rate and duration must be positive");
+            }
+            if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+                throw new IllegalArgumentException("Empty operation mix");
+            }
+            return options;
+        }
+    }
+
+    private static final class OpStats {
+        // Tính từ thời điểm dự kiến (đã hiệu chỉnh) và từ lúc gửi thật
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram service = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+    }
+
+    private final Options options;
+    private final Map<Op, OpStats> stats = new EnumMap<>(Op.class);
+    private final Op[] weightedOps;
+    private final String body;
+    private final LongAdder setupFailures = new LongAdder();
+    // Request đã lên lịch trong thời gian đo nhưng chưa kịp gửi khi hết giờ (client/server không theo kịp)
+    private final LongAdder unsent = new LongAdder();
+    private volatile boolean binaryProtocol;
+
+    public MailLoadGenerator(Options options) {
+        this.options = options;
+        List<Op> weighted = new ArrayList<>();
+        for (Map.Entry<Op, Integer> entry : options.mix().entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                weighted.add(entry.getKey());
+            }
+        }
+        this.weightedOps = weighted.toArray(new Op[0]);
+        for (Op op : Op.values()) {
+            stats.put(op, new OpStats());
+        }
+        StringBuilder text = new StringBuilder(options.bodySize());
+        while (text.length() < options.bodySize()) {
+            text.append("Nội dung thư kiểm thử tải. ");
+        }
+        text.setLength(options.bodySize());
+        this.body = text.toString();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: MailLoadGenerator [--host=localhost] [--port=9876] [--users=500] "
+                    + "[--rate=1000] [--duration=30] [--warmup=5] [--timeout=2000] [--body=1024] "
+                    + "[--prefix=load] [--mix=login=5,send=20,list=45,read=30]");
+            System.exit(1);
+            return;
+        }
+        new MailLoadGenerator(options).run();
+    }
+
+    public void run() throws InterruptedException {
+        List<VirtualUser> users = new ArrayList<>();
+        for (int i = 0; i < options.users(); i++) {
+            users.add(new VirtualUser(i));
+        }
+
+        // Tạo account và thư đầu tiên cho mỗi người dùng ảo, giới hạn số request đồng thời khi chuẩn bị
+        System.out.println("Preparing " + options.users() + " virtual users on " + options.host() + ":"
+                + options.port() + " ...");
+        Semaphore setupPermits = new Semaphore(SETUP_CONCURRENCY);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (VirtualUser user : users) {
+                executor.execute(() -> {
+                    setupPermits.acquireUninterruptibly();
+                    try {
+                        user.setUp();
+                    } finally {
+                        setupPermits.release();
+                    }
+                });
+            }
+        }
+        users.removeIf(user -> !user.ready);
+        if (users.isEmpty()) {
+            System.err.println("No virtual user could connect to the server");
+            return;
+        }
+
+        long start = System.nanoTime() + 100_000_000L;
+        long measureFrom = start + options.warmupSeconds() * 1_000_000_000L;
+        long end = measureFrom + options.durationSeconds() * 1_000_000_000L;
+        // Mỗi người dùng gửi đều đặn với chu kỳ users / rate, lệch pha ngẫu nhiên để tải không dồn cục
+        long period = (long) (users.size() * 1e9 / options.rate());
+        System.out.printf("Running %.0f req/s for %d s (+%d s warmup), %d users, %s protocol%n",
+                options.rate(), options.durationSeconds(), options.warmupSeconds(), users.size(),
+                binaryProtocol ? "binary" : "text");
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (VirtualUser user : users) {
+                executor.execute(() -> user.run(start, measureFrom, end, period));
+            }
+        }
+        users.forEach(VirtualUser::close);
+        System.out.print(report());
+    }
+
+    String report() {
+        double seconds = options.durationSeconds();
+        StringBuilder report = new StringBuilder();
+        if (setupFailures.sum() > 0) {
+            report.append("Setup failures: ").append(setupFailures.sum()).append('\n');
+        }
+        report.append(String.format("%-6s %9s %8s %8s %9s %9s %9s %9s %9s %9s | %9s %9s%n", "op", "ok", "errors",
+                "timeouts", "req/s", "p50_ms", "p90_ms", "p99_ms", "p999_ms", "max_ms", "svc_p50", "svc_p99"));
+        long total = 0;
+        for (Op op : Op.values()) {
+            OpStats opStats = stats.get(op);
+            LatencyHistogram.Snapshot latency = opStats.latency.snapshot();
+            LatencyHistogram.Snapshot service = opStats.service.snapshot();
+            long sent = latency.count();
+            if (sent == 0) {
+                continue;
+            }
+            total += sent;
+            report.append(String.format(Locale.ROOT,
+                    "%-6s %9d %8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f | %9.2f %9.2f%n", op,
+                    sent - opStats.errors.sum() - opStats.timeouts.sum(), opStats.errors.sum(), opStats.timeouts.sum(),
+                    sent / seconds, millis(latency.percentile(0.50)), millis(latency.percentile(0.90)),
+                    millis(latency.percentile(0.99)), millis(latency.percentile(0.999)), millis(latency.max()),
+                    millis(service.percentile(0.50)), millis(service.percentile(0.99))));
+        }
+        report.append(String.format(Locale.ROOT, "Total %.1f req/s (target %.1f), %d scheduled requests not sent; "
+                + "timeouts are included in the latency columns%n", total / seconds, options.rate(),
+                unsent.sum()));
+        return report.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    static String userName(String prefix, int index) {
+        return String.format("%s%05d", prefix, index);
+    }
+
+    private final class VirtualUser {
+        private final int index;
+        private final String name;
+        private final SplittableRandom random;
+        private MailConnection connection;
+        private String lastMessage;
+        private String token;
+        private boolean ready;
+
+        VirtualUser(int index) {
+            this.index = index;
+            this.name = userName(options.prefix(), index);
+            this.random = new SplittableRandom(index);
+        }
+
+        // Account có thể đã tồn tại từ lần chạy trước (cùng prefix), khi đó REGISTER báo lỗi nhưng LOGIN vẫn được
+        void setUp() {
+            try {
+                connection = new MailConnection(SETUP_TIMEOUT_MILLIS);
+                connection.connect(options.host(), options.port());
+                connection.call(BinaryProtocol.OP_REGISTER, "REGISTER", name, PASSWORD);
+                if (!login()) {
+                    throw new IOException("Login failed for " + name);
+                }
+                connection.call(BinaryProtocol.OP_SEND_EMAIL, "SEND_EMAIL", token, name, "Warm-up", body);
+                list();
+                connection.setTimeout(options.timeoutMillis());
+                binaryProtocol = connection.binaryProtocol();
+                ready = true;
+            } catch (IOException e) {
+                setupFailures.increment();
+                close();
+            }
+        }
+
+        void run(long start, long measureFrom, long end, long period) {
+            long intended = start + random.nextLong(Math.max(1, period));
+            while (intended < end) {
+                // Bị trễ lịch tới hết giờ thì dừng, phần còn lại được báo là chưa gửi
+                if (System.nanoTime() >= end) {
+                    long from = Math.max(intended, measureFrom);
+                    unsent.add((end - from + period - 1) / period);
+                    return;
+                }
+                long wait;
+                while ((wait = intended - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                Op op = weightedOps[random.nextInt(weightedOps.length)];
+                OpStats opStats = stats.get(op);
+                long sent = System.nanoTime();
+                boolean success = false;
+                boolean timeout = false;
+                try {
+                    success = execute(op);
+                } catch (SocketTimeoutException e) {
+                    timeout = true;
+                } catch (IOException e) {
+                    success = false;
+                }
+                long done = System.nanoTime();
+
+                if (intended >= measureFrom) {
+                    // Bỏ request hết giờ khỏi histogram sẽ làm p99 trông tốt hơn đúng lúc server quá tải
+                    opStats.latency.record(done - intended);
+                    opStats.service.record(done - sent);
+                    if (timeout) {
+                        opStats.timeouts.increment();
+                    } else if (!success) {
+                        opStats.errors.increment();
+                    }
+                }
+                intended += period;
+            }
+        }
+
+        private boolean execute(Op op) throws IOException {
+            return switch (op) {
+                case LOGIN -> login();
+                case SEND -> connection.call(BinaryProtocol.OP_SEND_EMAIL, "SEND_EMAIL", token,
+                        userName(options.prefix(), random.nextInt(options.users())), "Load " + index, body)
+                        .success();
+                case LIST -> list();
+                case READ -> lastMessage == null ? list() : connection.call(BinaryProtocol.OP_GET_EMAIL,
+                        "GET_EMAIL", token, lastMessage).success();
+            };
+        }
+
+        // Mỗi LOGIN cấp phiên mới; các lệnh sau dùng token của lần đăng nhập gần nhất
+        private boolean login() throws IOException {
+            BinaryProtocol.Response response = connection.call(BinaryProtocol.OP_LOGIN, "LOGIN", name, PASSWORD);
+            if (response.success()) {
+                token = response.message();
+            }
+            return response.success();
+        }
+
+        // Trang đầu của hộp thư; nhớ thư mới nhất để các lệnh READ sau đọc lại
+        private boolean list() throws IOException {
+            BinaryProtocol.Response response = connection.call(BinaryProtocol.OP_GET_EMAILS_PAGE, "GET_EMAILS_PAGE",
+                    token, "50", "");
+            if (!response.success()) {
+                return false;
+            }
+            String[] fields = response.fields();
+            if (connection.binaryProtocol()) {
+                // nextCursor, rồi từng cặp tên thư / tiêu đề
+                if (fields.length > 1) {
+                    lastMessage = fields[1];
+                }
+            } else if (response.message().contains("|")) {
+                String first = response.message().split("\\|", 2)[1].split(";")[0];
+                if (first.contains(":::")) {
+                    lastMessage = first.substring(0, first.indexOf(":::"));
+                }
+            }
+            return true;
+        }
+
+        void close() {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.mailserver;
+
+// Định dạng nội dung một thư khi lưu: các dòng header, dòng phân cách, rồi đến nội dung
+public final class MailMessage {
+    public static final String SEPARATOR = "-----------------------------------";
+
+    private MailMessage() {
+    }
+
+    public static String format(String from, String to, String subject, String date, String ip, String body) {
+        return "From: " + from + "\n"
+                + "To: " + to + "\n"
+                + "Subject: " + subject + "\n"
+                + "Date: " + date + "\n"
+                + "IP: " + ip + "\n"
+                + SEPARATOR + "\n"
+                + body;
+    }
+}
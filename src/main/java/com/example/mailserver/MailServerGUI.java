@@ -1,5 +1,8 @@
 package com.example.mailserver;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -11,47 +14,96 @@ import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MailServerGUI extends Application {
     private static final int PORT = 9876;
-    private static final String ACCOUNTS_DIR = "accounts/";
     private static final String USERS_FILE = "users.txt";
+    private static final int LOG_REFRESH_MILLIS = 100;
     private DatagramSocket socket;
-    private Map<String, String> userCredentials; // username -> password
-    private Map<String, List<String>> userEmails;
-    private boolean serverRunning = false;
+    private MailService mailService;
+    private volatile boolean serverRunning = false;
     private Thread serverThread;
+    private volatile RequestDispatcher dispatcher;
+    private FragmentHandler fragmentHandler;
+    private volatile NioTransport nioTransport;
+    private final ServerLog serverLog = ServerLog.fromConfig();
 
     // GUI Components
     private TextArea logArea;
+    // Các dòng đang hiển thị trong logArea (tối đa LOG_VIEW_LINES), chỉ dùng trên FX thread
+    private final ArrayDeque<String> visibleLogLines = new ArrayDeque<>();
+    private long shownDropped;
     private Label statusLabel;
     private Label portLabel;
     private Label ipLabel;
     private Label accountsLabel;
     private Label emailsLabel;
+    private Label metricsLabel;
     private Button startButton;
     private Button stopButton;
     private Button clearButton;
     private ListView<String> accountListView;
+    // accountList và shownAccounts chỉ được đọc/ghi trên FX thread
     private ObservableList<String> accountList;
-    private int totalEmails = 0;
+    private final Set<String> shownAccounts = new HashSet<>();
+    // Thread xử lý request chỉ xếp thay đổi vào đây; mỗi lúc có tối đa một runLater đang chờ cho mỗi loại
+    private final Queue<String> createdAccounts = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean accountsUpdatePending = new AtomicBoolean();
+    private final AtomicBoolean emailsUpdatePending = new AtomicBoolean();
 
     @Override
     public void start(Stage primaryStage) {
         primaryStage.setTitle("VKU Mail Server");
 
-        userCredentials = new HashMap<>();
-        userEmails = new HashMap<>();
+        try {
+            mailService = new MailService(MailboxStore.fromConfig(), new File(USERS_FILE), this::log,
+                    new MailService.Listener() {
+                        @Override
+                        public void accountCreated(String username) {
+                            createdAccounts.add(username);
+                            if (accountsUpdatePending.compareAndSet(false, true)) {
+                                Platform.runLater(() -> showCreatedAccounts());
+                            }
+                        }
+
+                        @Override
+                        public void accountRemoved(String username) {
+                            Platform.runLater(() -> {
+                                if (shownAccounts.remove(username)) {
+                                    accountList.remove(username);
+                                    accountsLabel.setText("👥 Accounts: " + accountList.size());
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void emailsDelivered(long totalEmails) {
+                            if (emailsUpdatePending.compareAndSet(false, true)) {
+                                Platform.runLater(() -> {
+                                    emailsUpdatePending.set(false);
+                                    emailsLabel.setText("✉️ Emails: " + mailService.totalEmails());
+                                });
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open mailbox store", e);
+        }
+        mailService.setQueueDepth(this::queueDepth);
         accountList = FXCollections.observableArrayList();
 
         // Load users from file
-        loadUsers();
+        mailService.loadUsers();
 
         BorderPane root = new BorderPane();
         root.setStyle("-fx-background-color: #2c3e50;");
@@ -72,9 +124,33 @@ public class MailServerGUI extends Application {
             if (serverRunning) {
                 stopServer();
             }
+            try {
+                mailService.close();
+            } catch (IOException ignored) {
+            }
+            serverLog.close();
         });
 
-        loadExistingAccounts();
+        // Log được đưa lên GUI theo lô, 10 lần mỗi giây, thay vì một runLater cho mỗi dòng
+        Timeline logRefresh = new Timeline(new KeyFrame(Duration.millis(LOG_REFRESH_MILLIS), e -> refreshLogView()));
+        logRefresh.setCycleCount(Animation.INDEFINITE);
+        logRefresh.play();
+
+        Timeline metricsRefresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> refreshMetrics()));
+        metricsRefresh.setCycleCount(Animation.INDEFINITE);
+        metricsRefresh.play();
+
+        // Danh sách account và số thư hiện ngay từ catalog; quét store để sửa sai lệch chạy trên thread nền
+        long catalogStart = System.nanoTime();
+        MailService.AccountScan cached = mailService.openCatalog(new File(ServerConfig.CATALOG_FILE),
+                ServerConfig.CATALOG_INTERVAL_SECONDS);
+        if (cached != null) {
+            addAccounts(cached.accounts());
+            emailsLabel.setText("✉️ Emails: " + cached.totalEmails());
+            log("📂 Loaded catalog: " + cached.accounts().size() + " accounts, " + cached.totalEmails()
+                    + " total emails in " + (System.nanoTime() - catalogStart) / 1_000_000 + " ms");
+        }
+        loadExistingAccounts(true);
     }
 
     private VBox createTopPanel() {
@@ -149,7 +225,7 @@ public class MailServerGUI extends Application {
         Button refreshAccountsBtn = new Button("🔄 Làm mới");
         refreshAccountsBtn.setPrefWidth(220);
         refreshAccountsBtn.setStyle("-fx-background-color: #667eea; -fx-text-fill: white; -fx-font-weight: bold;");
-        refreshAccountsBtn.setOnAction(e -> loadExistingAccounts());
+        refreshAccountsBtn.setOnAction(e -> refreshAccounts());
 
         leftPanel.getChildren().addAll(accountsTitle, accountListView, refreshAccountsBtn);
 
@@ -161,14 +237,31 @@ public class MailServerGUI extends Application {
         Label logTitle = new Label("📊 Server Log");
         logTitle.setFont(Font.font("Arial", FontWeight.BOLD, 16));
 
+        // DEBUG hiện cả từng gói tin nhận/gửi; chọn INFO để bỏ các dòng này khi tải cao
+        ComboBox<ServerLog.Level> levelBox = new ComboBox<>(
+                FXCollections.observableArrayList(ServerLog.Level.values()));
+        levelBox.setValue(serverLog.level());
+        levelBox.setOnAction(e -> serverLog.setLevel(levelBox.getValue()));
+
+        HBox logHeader = new HBox(10, logTitle, levelBox);
+        logHeader.setAlignment(Pos.CENTER_LEFT);
+
         logArea = new TextArea();
         logArea.setEditable(false);
         logArea.setWrapText(true);
         logArea.setStyle("-fx-font-family: 'Courier New'; -fx-font-size: 12px; " +
                 "-fx-control-inner-background: #1e1e1e; -fx-text-fill: #00ff00;");
-        logArea.setPrefHeight(500);
+        logArea.setPrefHeight(360);
+
+        Label metricsTitle = new Label("📈 Metrics");
+        metricsTitle.setFont(Font.font("Arial", FontWeight.BOLD, 16));
 
-        rightPanel.getChildren().addAll(logTitle, logArea);
+        metricsLabel = new Label();
+        metricsLabel.setFont(Font.font("Courier New", 12));
+        metricsLabel.setMinHeight(130);
+        metricsLabel.setAlignment(Pos.TOP_LEFT);
+
+        rightPanel.getChildren().addAll(logHeader, logArea, metricsTitle, metricsLabel);
         centerPanel.getChildren().addAll(leftPanel, rightPanel);
 
         return centerPanel;
@@ -197,7 +290,10 @@ public class MailServerGUI extends Application {
         clearButton.setPrefWidth(150);
         clearButton.setStyle("-fx-background-color: #95a5a6; -fx-text-fill: white; " +
                 "-fx-font-size: 14px; -fx-font-weight: bold; -fx-padding: 10;");
-        clearButton.setOnAction(e -> logArea.clear());
+        clearButton.setOnAction(e -> {
+            logArea.clear();
+            visibleLogLines.clear();
+        });
 
         bottomPanel.getChildren().addAll(startButton, stopButton, clearButton);
 
@@ -206,7 +302,17 @@ public class MailServerGUI extends Application {
 
     private void startServer() {
         try {
-            socket = new DatagramSocket(PORT);
+            if ("nio".equalsIgnoreCase(ServerConfig.TRANSPORT)) {
+                nioTransport = new NioTransport(PORT, ServerConfig.SHARDS, mailService::handleEncodedRequest,
+                        mailService::handleBinaryRequest, serverLog);
+                nioTransport.start();
+                mailService.setPushSender(nioTransport::send);
+            } else {
+                DatagramSocket serverSocket = new DatagramSocket(PORT);
+                socket = serverSocket;
+                mailService.setPushSender((packet, client) ->
+                        serverSocket.send(new DatagramPacket(packet, packet.length, client)));
+            }
             serverRunning = true;
 
             Platform.runLater(() -> {
@@ -216,13 +322,23 @@ public class MailServerGUI extends Application {
                 stopButton.setDisable(false);
             });
 
-            log("✅ Server started on port " + PORT);
+            log("✅ Server started on port " + PORT + " (transport: " + ServerConfig.TRANSPORT
+                    + ", executor: " + ServerConfig.EXECUTOR + ", durability: " + ServerConfig.DURABILITY + ")");
 
-            serverThread = new Thread(() -> runServer());
-            serverThread.setDaemon(true);
-            serverThread.start();
+            if (nioTransport == null) {
+                dispatcher = RequestDispatcher.fromConfig(ServerConfig.WORKER_THREADS,
+                        mailService::handleEncodedRequest, mailService::handleBinaryRequest, this::sendPacket,
+                        serverLog);
+                fragmentHandler = new FragmentHandler(
+                        (packet, client) -> socket.send(new DatagramPacket(packet, packet.length, client)),
+                        dispatcher, serverLog);
 
-        } catch (SocketException e) {
+                serverThread = new Thread(() -> runServer());
+                serverThread.setDaemon(true);
+                serverThread.start();
+            }
+
+        } catch (IOException e) {
             log("❌ ERROR: Cannot start server - " + e.getMessage());
             Platform.runLater(() -> {
                 Alert alert = new Alert(Alert.AlertType.ERROR);
@@ -236,9 +352,18 @@ public class MailServerGUI extends Application {
 
     private void stopServer() {
         serverRunning = false;
+        mailService.setPushSender(null);
         if (socket != null && !socket.isClosed()) {
             socket.close();
         }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+        if (nioTransport != null) {
+            nioTransport.stop();
+            nioTransport = null;
+        }
 
         Platform.runLater(() -> {
             statusLabel.setText("⚫ Server Stopped");
@@ -251,30 +376,44 @@ public class MailServerGUI extends Application {
     }
 
     private void runServer() {
-        byte[] receiveData = new byte[2048];
+        // Một buffer đủ cho datagram lớn nhất, dùng lại cho mọi gói: request được copy trước khi sang worker
+        byte[] receiveData = new byte[ServerConfig.PACKET_BUFFER_SIZE];
+        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
 
         while (serverRunning) {
             try {
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+                receivePacket.setLength(receiveData.length);
                 socket.receive(receivePacket);
 
-                String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
-                InetAddress clientAddress = receivePacket.getAddress();
-                int clientPort = receivePacket.getPort();
-                String clientIP = clientAddress.getHostAddress();
-
-                log("📨 Received from " + clientIP + ":" + clientPort + " - " + message.split("\\|")[0]);
+                InetSocketAddress client = (InetSocketAddress) receivePacket.getSocketAddress();
+                // FRAG/FACK của request lớn (ChunkedTransfer), fragment đã được copy nên dùng lại buffer
+                if (fragmentHandler.handlePacket(
+                        ByteBuffer.wrap(receivePacket.getData(), 0, receivePacket.getLength()), client)) {
+                    continue;
+                }
 
-                String response = handleRequest(message, clientIP);
+                ByteBuffer packet = ByteBuffer.wrap(receivePacket.getData(), 0, receivePacket.getLength());
+                if (BinaryProtocol.isBinary(packet)) {
+                    if (request.parse(packet)) {
+                        if (serverLog.isEnabled(ServerLog.Level.DEBUG)) {
+                            log("📨 Received from " + client.getAddress().getHostAddress() + ":" + client.getPort()
+                                    + " - " + BinaryProtocol.opcodeName(request.opcode()));
+                        }
+                        dispatcher.dispatch(request.detach(), client, this::sendPacket);
+                    }
+                    continue;
+                }
 
-                byte[] sendData = response.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(
-                        sendData, sendData.length, clientAddress, clientPort);
-                socket.send(sendPacket);
+                String message = new String(receivePacket.getData(), 0, receivePacket.getLength());
 
-                log("📤 Sent response to " + clientIP);
+                if (serverLog.isEnabled(ServerLog.Level.DEBUG)) {
+                    log("📨 Received from " + client.getAddress().getHostAddress() + ":" + client.getPort()
+                            + " - " + message.split("\\|")[0]);
+                }
 
-                receiveData = new byte[2048];
+                // Handler và việc gửi reply chạy trên worker thread của dispatcher
+                dispatcher.dispatch(message, client);
 
             } catch (IOException e) {
                 if (serverRunning) {
@@ -284,256 +423,151 @@ public class MailServerGUI extends Application {
         }
     }
 
-    private String handleRequest(String request, String clientIP) {
-        String[] parts = request.split("\\|");
-        String command = parts[0];
+    private void sendPacket(byte[] packet, InetSocketAddress client) throws IOException {
+        socket.send(new DatagramPacket(packet, packet.length, client));
 
-        try {
-            switch (command) {
-                case "REGISTER":
-                    return handleRegister(parts[1], parts[2]);
-                case "LOGIN":
-                    return handleLogin(parts[1], parts[2]);
-                case "SEND_EMAIL":
-                    return handleSendEmail(parts[1], parts[2], parts[3], parts[4], clientIP);
-                case "GET_EMAILS":
-                    return handleGetEmails(parts[1]);
-                case "GET_EMAIL":
-                    return handleGetEmail(parts[1], parts[2]);
-                default:
-                    return "ERROR|Unknown command";
-            }
-        } catch (Exception e) {
-            return "ERROR|" + e.getMessage();
+        ServerLog.debug(serverLog, () -> "📤 Sent response to " + client.getAddress().getHostAddress());
+    }
+
+    private int queueDepth() {
+        NioTransport nio = nioTransport;
+        RequestDispatcher socketDispatcher = dispatcher;
+        if (nio != null) {
+            return nio.queueDepth();
         }
+        return socketDispatcher == null ? 0 : socketDispatcher.queueDepth();
     }
 
-    private void loadUsers() {
-        try {
-            File usersFile = new File(USERS_FILE);
-            if (usersFile.exists()) {
-                BufferedReader reader = new BufferedReader(new FileReader(usersFile));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(":");
-                    if (parts.length == 2) {
-                        userCredentials.put(parts[0], parts[1]);
+    // Quét store trên thread nền (đối chiếu với catalog), kết quả được đưa lên FX thread.
+    // Lần đầu (startup) còn bật theo dõi thư mục accounts/ trước khi quét để không bỏ sót thay đổi.
+    private void loadExistingAccounts(boolean startWatching) {
+        Thread scanner = new Thread(() -> {
+            try {
+                if (startWatching && !"segment".equalsIgnoreCase(ServerConfig.STORE)) {
+                    if (mailService.watchStore(Paths.get(ServerConfig.ACCOUNTS_DIR))) {
+                        log("👀 Watching " + ServerConfig.ACCOUNTS_DIR + " for changes made outside the server");
                     }
                 }
-                reader.close();
+                MailService.AccountScan scan = mailService.scanAccounts();
+                Platform.runLater(() -> {
+                    // Account không bị xoá nên chỉ thêm: account vừa tạo trong lúc quét vẫn được giữ lại
+                    addAccounts(scan.accounts());
+                    emailsLabel.setText("✉️ Emails: " + scan.totalEmails());
+                });
+                log("📂 Scanned " + scan.accounts().size() + " accounts, " + scan.totalEmails() + " total emails, "
+                        + scan.changedAccounts() + " changed since last known state");
+            } catch (IOException e) {
+                log("⚠️ Cannot load accounts: " + e.getMessage());
             }
-        } catch (IOException e) {
-            log("⚠️ Cannot load users file");
-        }
+        }, "mail-account-scan");
+        scanner.setDaemon(true);
+        scanner.start();
     }
 
-    private void saveUser(String username, String password) {
-        try {
-            FileWriter writer = new FileWriter(USERS_FILE, true);
-            writer.write(username + ":" + password + "\n");
-            writer.close();
-        } catch (IOException e) {
-            log("❌ Cannot save user");
+    // FX thread. Danh sách account và số thư đã được cập nhật theo từng thay đổi (thư được giao, watcher),
+    // nên làm mới chỉ đồng bộ danh sách hiển thị với MailService; chỉ quét store khi không theo dõi được
+    private void refreshAccounts() {
+        if (!mailService.watchingStore()) {
+            loadExistingAccounts(false);
+            return;
         }
-    }
-
-    private String handleRegister(String username, String password) {
-        try {
-            if (userCredentials.containsKey(username)) {
-                log("⚠️ Registration failed: Account '" + username + "' already exists");
-                return "ERROR|Account already exists";
+        Set<String> known = new HashSet<>(mailService.accounts());
+        Set<String> removed = new HashSet<>();
+        for (String username : shownAccounts) {
+            if (!known.contains(username)) {
+                removed.add(username);
             }
-
-            File accountDir = new File(ACCOUNTS_DIR + username);
-            accountDir.mkdirs();
-
-            File newEmailFile = new File(accountDir, "welcome.txt");
-            FileWriter writer = new FileWriter(newEmailFile);
-            writer.write("From: System\n");
-            writer.write("To: " + username + "\n");
-            writer.write("Subject: Welcome to VKU Mail!\n");
-            writer.write("Date: " + new Date() + "\n");
-            writer.write("IP: Server\n");
-            writer.write("-----------------------------------\n");
-            writer.write("Thank you for using this service. We hope that you will feel comfortable........\n");
-            writer.close();
-
-            userCredentials.put(username, password);
-            saveUser(username, password);
-            userEmails.put(username, new ArrayList<>());
-
-            log("✅ Account created: " + username);
-
-            Platform.runLater(() -> loadExistingAccounts());
-
-            return "SUCCESS|Account created successfully";
-
-        } catch (IOException e) {
-            log("❌ ERROR creating account: " + e.getMessage());
-            return "ERROR|Cannot create account";
         }
+        shownAccounts.removeAll(removed);
+        accountList.removeAll(removed);
+        addAccounts(known);
+        emailsLabel.setText("✉️ Emails: " + mailService.totalEmails());
     }
 
-    private String handleLogin(String username, String password) {
-        if (!userCredentials.containsKey(username)) {
-            log("⚠️ Login failed: Account '" + username + "' does not exist");
-            return "ERROR|Account does not exist";
-        }
-
-        if (!userCredentials.get(username).equals(password)) {
-            log("⚠️ Login failed: Wrong password for '" + username + "'");
-            return "ERROR|Wrong password";
+    // FX thread
+    private void showCreatedAccounts() {
+        accountsUpdatePending.set(false);
+        List<String> created = new ArrayList<>();
+        String username;
+        while ((username = createdAccounts.poll()) != null) {
+            created.add(username);
         }
-
-        log("✅ User '" + username + "' logged in successfully");
-        return "SUCCESS|Login successful";
+        addAccounts(created);
     }
 
-    private String handleSendEmail(String sender, String recipient, String subject, String emailContent, String clientIP) {
-        try {
-            if (!userCredentials.containsKey(recipient)) {
-                log("⚠️ Send failed: Recipient '" + recipient + "' does not exist");
-                return "ERROR|Recipient account does not exist";
-            }
-
-            File accountDir = new File(ACCOUNTS_DIR + recipient);
-
-            String emailFileName = "email_" + System.currentTimeMillis() + ".txt";
-            File emailFile = new File(accountDir, emailFileName);
-
-            FileWriter writer = new FileWriter(emailFile);
-            writer.write("From: " + sender + "\n");
-            writer.write("To: " + recipient + "\n");
-            writer.write("Subject: " + subject + "\n");
-            writer.write("Date: " + new Date() + "\n");
-            writer.write("IP: " + clientIP + "\n");
-            writer.write("-----------------------------------\n");
-            writer.write(emailContent);
-            writer.close();
-
-            if (!userEmails.containsKey(recipient)) {
-                userEmails.put(recipient, new ArrayList<>());
+    // FX thread
+    private void addAccounts(Collection<String> usernames) {
+        List<String> added = new ArrayList<>();
+        for (String username : usernames) {
+            if (shownAccounts.add(username)) {
+                added.add(username);
             }
-            userEmails.get(recipient).add(emailFileName);
-
-            totalEmails++;
-            Platform.runLater(() -> emailsLabel.setText("✉️ Emails: " + totalEmails));
-
-            log("📧 Email sent: From=" + sender + " [" + clientIP + "], To=" + recipient + ", Subject=" + subject);
-
-            return "SUCCESS|Email sent successfully";
-
-        } catch (IOException e) {
-            log("❌ ERROR sending email: " + e.getMessage());
-            return "ERROR|Cannot send email";
         }
+        accountList.addAll(added);
+        accountsLabel.setText("👥 Accounts: " + accountList.size());
     }
 
-    private String handleGetEmails(String username) {
-        try {
-            File accountDir = new File(ACCOUNTS_DIR + username);
-
-            if (!accountDir.exists()) {
-                return "SUCCESS|No emails";
-            }
-
-            File[] files = accountDir.listFiles();
-            if (files == null || files.length == 0) {
-                return "SUCCESS|No emails";
-            }
-
-            StringBuilder fileList = new StringBuilder("SUCCESS|");
-            for (File file : files) {
-                try {
-                    BufferedReader reader = new BufferedReader(new FileReader(file));
-                    String line;
-                    String subject = "No Subject";
-
-                    while ((line = reader.readLine()) != null) {
-                        if (line.startsWith("Subject: ")) {
-                            subject = line.substring(9);
-                            break;
-                        }
-                    }
-                    reader.close();
-
-                    fileList.append(file.getName()).append(":::").append(subject).append(";");
-                } catch (IOException e) {
-                    fileList.append(file.getName()).append(":::No Subject;");
-                }
-            }
-
-            log("📥 User '" + username + "' retrieved " + files.length + " emails");
-            return fileList.toString();
+    // Gọi được từ mọi thread, không chờ: dòng log được ServerLog đưa lên GUI theo lô
+    private void log(String message) {
+        serverLog.log(message);
+    }
 
-        } catch (Exception e) {
-            log("❌ ERROR retrieving emails: " + e.getMessage());
-            return "ERROR|Cannot retrieve emails";
+    // FX thread, mỗi giây một lần
+    private void refreshMetrics() {
+        ServerMetrics metrics = mailService.metrics();
+        StringBuilder text = new StringBuilder(String.format("Queue: %d   In: %s   Out: %s   Uptime: %d s%n",
+                queueDepth(), formatBytes(metrics.bytesIn()), formatBytes(metrics.bytesOut()),
+                metrics.uptimeSeconds()));
+        text.append(String.format("%-16s %9s %7s %9s %9s %9s%n", "Command", "Requests", "Errors",
+                "p50(µs)", "p99(µs)", "p999(µs)"));
+        for (ServerMetrics.CommandStats stats : metrics.snapshot()) {
+            text.append(String.format("%-16s %9d %7d %9d %9d %9d%n", stats.command(), stats.requests(),
+                    stats.errors(), stats.p50Micros(), stats.p99Micros(), stats.p999Micros()));
         }
+        ReplyCache.Stats cache = mailService.replyCache().stats();
+        text.append(String.format("Reply cache: %.1f%% hits   %d entries   %s / %s%n", cache.hitRate() * 100,
+                cache.entries(), formatBytes(cache.bytes()), formatBytes(cache.capacity())));
+        metricsLabel.setText(text.toString());
     }
 
-    private String handleGetEmail(String username, String filename) {
-        try {
-            File emailFile = new File(ACCOUNTS_DIR + username + "/" + filename);
-
-            if (!emailFile.exists()) {
-                log("⚠️ Email not found: " + filename);
-                return "ERROR|Email not found";
-            }
-
-            BufferedReader reader = new BufferedReader(new FileReader(emailFile));
-            StringBuilder content = new StringBuilder();
-            String line;
-
-            while ((line = reader.readLine()) != null) {
-                content.append(line).append("\n");
-            }
-            reader.close();
-
-            log("📖 Email read: " + filename + " by " + username);
-
-            return "SUCCESS|" + content.toString();
-
-        } catch (IOException e) {
-            log("❌ ERROR reading email: " + e.getMessage());
-            return "ERROR|Cannot read email";
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
         }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
     }
 
-    private void loadExistingAccounts() {
-        File accountsDir = new File(ACCOUNTS_DIR);
-        accountsDir.mkdirs();
-
-        File[] accounts = accountsDir.listFiles(File::isDirectory);
-
-        accountList.clear();
-        totalEmails = 0;
-
-        if (accounts != null) {
-            for (File account : accounts) {
-                accountList.add(account.getName());
+    // FX thread: nối các dòng mới vào logArea, chỉ giữ LOG_VIEW_LINES dòng gần nhất
+    private void refreshLogView() {
+        List<String> lines = new ArrayList<>();
+        serverLog.takeViewLines(lines);
+        long dropped = serverLog.dropped();
+        if (dropped > shownDropped) {
+            lines.add("⚠️ " + (dropped - shownDropped) + " log lines dropped (log buffer full)");
+            shownDropped = dropped;
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
 
-                File[] emails = account.listFiles();
-                if (emails != null) {
-                    totalEmails += emails.length;
-                }
+        boolean trimmed = false;
+        for (String line : lines) {
+            visibleLogLines.addLast(line);
+            if (visibleLogLines.size() > ServerConfig.LOG_VIEW_LINES) {
+                visibleLogLines.pollFirst();
+                trimmed = true;
             }
         }
 
-        Platform.runLater(() -> {
-            accountsLabel.setText("👥 Accounts: " + accountList.size());
-            emailsLabel.setText("✉️ Emails: " + totalEmails);
-        });
-
-        log("📂 Loaded " + accountList.size() + " accounts, " + totalEmails + " total emails");
-    }
-
-    private void log(String message) {
-        Platform.runLater(() -> {
-            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-            String timestamp = sdf.format(new Date());
-            logArea.appendText("[" + timestamp + "] " + message + "\n");
-        });
+        if (trimmed) {
+            logArea.setText(String.join("\n", visibleLogLines) + "\n");
+            logArea.positionCaret(logArea.getLength());
+        } else {
+            logArea.appendText(String.join("\n", lines) + "\n");
+        }
     }
 
     public static void main(String[] args) {
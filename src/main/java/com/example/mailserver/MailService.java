@@ -0,0 +1,1072 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+// Xử lý các lệnh của mail server (REGISTER, LOGIN, SEND_EMAIL, ...), tách khỏi GUI để chạy được
+// không cần JavaFX (benchmark, công cụ kiểm thử tải). Thay đổi cần hiển thị được báo qua Listener.
+public class MailService implements Closeable {
+    private static final int MAX_PAGE_SIZE = 500;
+    private static final byte[] ERROR_PREFIX = "ERROR".getBytes(StandardCharsets.US_ASCII);
+
+    public interface Listener {
+        void accountCreated(String username);
+
+        // Gọi từ thread xử lý request, có thể rất dày khi tải cao
+        void emailsDelivered(long totalEmails);
+
+        // Thư mục account bị xoá khỏi store từ bên ngoài server
+        default void accountRemoved(String username) {
+        }
+    }
+
+    // changedAccounts: số account có số thư khác với những gì server đang biết (catalog cũ, thư giao thêm...)
+    public record AccountScan(List<String> accounts, long totalEmails, int changedAccounts) {
+    }
+
+    // Handler chạy song song trên nhiều thread nên dùng map an toàn đa luồng
+    private final Map<String, String> userCredentials = new ConcurrentHashMap<>(); // username -> mật khẩu đã băm
+    private final SessionCache sessions = SessionCache.fromConfig();
+    // Endpoint đã SUBSCRIBE của từng account, nhận NEW_MAIL khi có thư được giao
+    private final PushNotifier pushNotifier;
+    private final MailboxStore mailboxStore;
+    private final InboxIndex inboxIndex;
+    // Chỉ mục tìm kiếm (SEARCH) theo người gửi, tiêu đề, nội dung
+    private final SearchIndex searchIndex;
+    // Reply của GET_EMAIL đã mã hoá, theo account và tên thư
+    private final ReplyCache replyCache = ReplyCache.fromConfig();
+    private final DeliveryPipeline deliveryPipeline;
+    private final MailboxLocks mailboxLocks = new MailboxLocks(ServerConfig.LOCK_STRIPES);
+    private final ServerMetrics metrics = new ServerMetrics();
+    // Mọi lần gửi đều cộng vào đây: LongAdder để các thread gửi không tranh nhau một biến
+    private final LongAdder totalEmails = new LongAdder();
+    // Số thư mỗi account (kể cả thư chào mừng), cập nhật dưới khóa ghi của mailbox; nội dung của MailCatalog
+    private final Map<String, AtomicInteger> messageCounts = new ConcurrentHashMap<>();
+    private volatile File catalogFile;
+    // Chỉ ghi catalog khi messageCounts đã đầy đủ (nạp từ catalog hoặc đã quét xong store)
+    // và có thay đổi từ lần ghi trước (server rảnh thì không ghi lại)
+    private volatile boolean catalogComplete;
+    private volatile boolean catalogDirty;
+    private ScheduledExecutorService catalogWriter;
+    // Khi đang theo dõi store (MailboxWatcher): "account/tên thư" và "account/" do server vừa ghi,
+    // để watcher bỏ qua sự kiện của chính server
+    private volatile MailboxWatcher watcher;
+    private final Set<String> ownWrites = ConcurrentHashMap.newKeySet();
+    // Tên thư msg_<id>.txt: ID không bao giờ trùng nên hai thư trong cùng mili giây không ghi đè nhau
+    private final MessageIdGenerator messageIds;
+    private final File usersFile;
+    private final Consumer<String> logger;
+    private final Listener listener;
+    private volatile IntSupplier queueDepth = () -> 0;
+
+    public MailService(MailboxStore mailboxStore, File usersFile, Consumer<String> logger, Listener listener) {
+        this(mailboxStore, usersFile, MessageIdGenerator.fromConfig(), logger, listener);
+    }
+
+    public MailService(MailboxStore mailboxStore, File usersFile, MessageIdGenerator messageIds,
+                       Consumer<String> logger, Listener listener) {
+        this(mailboxStore, usersFile, messageIds, SearchIndex.fromConfig(mailboxStore, logger), logger, listener);
+    }
+
+    // searchIndex phải dùng cùng mailboxStore; được đóng cùng MailService
+    public MailService(MailboxStore mailboxStore, File usersFile, MessageIdGenerator messageIds,
+                       SearchIndex searchIndex, Consumer<String> logger, Listener listener) {
+        this.mailboxStore = mailboxStore;
+        this.messageIds = messageIds;
+        this.inboxIndex = new InboxIndex(mailboxStore);
+        this.searchIndex = searchIndex;
+        this.deliveryPipeline = DeliveryPipeline.fromConfig();
+        this.usersFile = usersFile;
+        this.logger = logger;
+        this.listener = listener;
+        this.pushNotifier = PushNotifier.fromConfig(sessions, logger);
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public ReplyCache replyCache() {
+        return replyCache;
+    }
+
+    public MailboxStore store() {
+        return mailboxStore;
+    }
+
+    public long totalEmails() {
+        return totalEmails.sum();
+    }
+
+    // Socket của transport đang chạy, dùng để gửi NEW_MAIL; null khi server dừng
+    public void setPushSender(PushNotifier.Sender sender) {
+        pushNotifier.setSender(sender);
+    }
+
+    // Độ sâu hàng đợi của transport đang chạy, dùng trong STATS
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    // Đo thời gian xử lý, lỗi và số byte của từng lệnh (xem STATS)
+    public String handleRequest(String request, InetSocketAddress client) {
+        return handleRequest(request, client.getAddress().getHostAddress(), client);
+    }
+
+    // Gọi trực tiếp (benchmark, công cụ kiểm thử): không có endpoint nên không SUBSCRIBE được
+    public String handleRequest(String request, String clientIP) {
+        return handleRequest(request, clientIP, null);
+    }
+
+    private String handleRequest(String request, String clientIP, InetSocketAddress endpoint) {
+        long start = System.nanoTime();
+        String response = processRequest(request, clientIP, endpoint);
+        int end = request.indexOf('|');
+        metrics.record(end < 0 ? request : request.substring(0, end), System.nanoTime() - start,
+                response.startsWith("ERROR"), ServerMetrics.utf8Length(request), ServerMetrics.utf8Length(response));
+        return response;
+    }
+
+    // Cho transport: reply đã mã hoá UTF-8. GET_EMAIL trả thẳng mảng byte trong ReplyCache, không qua String
+    public byte[] handleEncodedRequest(String request, InetSocketAddress client) {
+        long start = System.nanoTime();
+        byte[] response = request.startsWith("GET_EMAIL|") ? processGetEmail(request) : null;
+        if (response == null) {
+            response = processRequest(request, client.getAddress().getHostAddress(), client)
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        int end = request.indexOf('|');
+        metrics.record(end < 0 ? request : request.substring(0, end), System.nanoTime() - start,
+                startsWith(response, ERROR_PREFIX), ServerMetrics.utf8Length(request), response.length);
+        return response;
+    }
+
+    private byte[] processGetEmail(String request) {
+        String[] parts = request.split("\\|");
+        try {
+            String username = authenticate(parts[1]);
+            return withMailbox(username, false, () -> encodedGetEmail(username, parts[2]));
+        } catch (Exception e) {
+            return ("ERROR|" + e.getMessage()).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        return data.length >= prefix.length && Arrays.equals(data, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    public byte[] handleBinaryRequest(BinaryProtocol.Request request, InetSocketAddress client) {
+        return handleBinaryRequest(request, client.getAddress().getHostAddress(), client);
+    }
+
+    public byte[] handleBinaryRequest(BinaryProtocol.Request request, String clientIP) {
+        return handleBinaryRequest(request, clientIP, null);
+    }
+
+    private byte[] handleBinaryRequest(BinaryProtocol.Request request, String clientIP, InetSocketAddress endpoint) {
+        long start = System.nanoTime();
+        byte[] response = processBinaryRequest(request, clientIP, endpoint);
+        // Reply đã nén (lấy từ ReplyCache) luôn là reply thành công
+        metrics.record(BinaryProtocol.opcodeName(request.opcode()), System.nanoTime() - start,
+                !Compression.isCompressed(response) && response[2] != BinaryProtocol.STATUS_SUCCESS,
+                request.frameLength(), response.length);
+        return response;
+    }
+
+    private String processRequest(String request, String clientIP, InetSocketAddress endpoint) {
+        String[] parts = request.split("\\|");
+        String command = parts[0];
+
+        try {
+            switch (command) {
+                case "HELLO": {
+                    // Client đề xuất giao thức; server chọn bản nhị phân nếu client hỗ trợ, kèm nén nếu cả hai bên bật
+                    List<String> offered = Arrays.asList(parts);
+                    if (!offered.contains(BinaryProtocol.HELLO_TOKEN)) {
+                        return "SUCCESS|TEXT";
+                    }
+                    return "SUCCESS|" + BinaryProtocol.HELLO_TOKEN
+                            + (ServerConfig.WIRE_COMPRESSION && offered.contains(BinaryProtocol.DEFLATE_TOKEN)
+                            ? "|" + BinaryProtocol.DEFLATE_TOKEN : "");
+                }
+                case "STATS":
+                    return "SUCCESS|" + statsReport();
+                case "REGISTER": {
+                    // Băm mật khẩu (chậm) trước khi giữ khóa mailbox
+                    String stored = PasswordHasher.hash(parts[2]);
+                    return withMailbox(parts[1], true, () -> handleRegister(parts[1], stored));
+                }
+                case "LOGIN":
+                    return handleLogin(parts[1], parts[2]);
+                case "LOGOUT":
+                    logout(parts[1], endpoint);
+                    return "SUCCESS|Logged out";
+                // Các lệnh sau nhận token phiên (từ LOGIN) ở vị trí tên người dùng
+                case "SUBSCRIBE": {
+                    boolean created = subscribe(authenticate(parts[1]), parts[1], endpoint);
+                    return "SUCCESS|" + pushNotifier.ttlSeconds() + (created ? "|NEW" : "|RENEWED");
+                }
+                case "SEND_EMAIL":
+                    return handleSendEmail(authenticate(parts[1]), parts[2], parts[3], parts[4], clientIP);
+                case "GET_EMAILS": {
+                    String username = authenticate(parts[1]);
+                    return withMailbox(username, false, () -> handleGetEmails(username));
+                }
+                case "GET_EMAILS_PAGE": {
+                    String username = authenticate(parts[1]);
+                    return withMailbox(username, false, () -> handleGetEmailsPage(username,
+                            Integer.parseInt(parts[2]), parts.length > 3 ? parts[3] : ""));
+                }
+                case "GET_EMAILS_SINCE": {
+                    String username = authenticate(parts[1]);
+                    return withMailbox(username, false, () -> handleGetEmailsSince(username,
+                            parts.length > 2 ? parts[2] : ""));
+                }
+                case "GET_EMAIL": {
+                    String username = authenticate(parts[1]);
+                    return withMailbox(username, false, () -> handleGetEmail(username, parts[2]));
+                }
+                case "SEARCH": {
+                    String username = authenticate(parts[1]);
+                    return withMailbox(username, false, () -> handleSearch(username, parts[2],
+                            Integer.parseInt(parts[3]), parts.length > 4 ? parts[4] : ""));
+                }
+                default:
+                    return "ERROR|Unknown command";
+            }
+        } catch (Exception e) {
+            return "ERROR|" + e.getMessage();
+        }
+    }
+
+    // Cùng các handler như giao thức văn bản; field đọc trực tiếp theo vị trí nên nội dung
+    // chứa '|' hay ';' không làm lệch tham số. Danh sách thư trả về mỗi field một giá trị.
+    private byte[] processBinaryRequest(BinaryProtocol.Request request, String clientIP,
+                                        InetSocketAddress endpoint) {
+        try {
+            switch (request.opcode()) {
+                case BinaryProtocol.OP_REGISTER: {
+                    String username = request.field(0);
+                    String stored = PasswordHasher.hash(request.field(1));
+                    return BinaryProtocol.fromText(withMailbox(username, true,
+                            () -> handleRegister(username, stored)));
+                }
+                case BinaryProtocol.OP_LOGIN:
+                    return BinaryProtocol.fromText(handleLogin(request.field(0), request.field(1)));
+                case BinaryProtocol.OP_LOGOUT:
+                    logout(request.field(0), endpoint);
+                    return BinaryProtocol.success("Logged out");
+                case BinaryProtocol.OP_SUBSCRIBE: {
+                    String token = request.field(0);
+                    boolean created = subscribe(authenticate(token), token, endpoint);
+                    return BinaryProtocol.success(String.valueOf(pushNotifier.ttlSeconds()),
+                            created ? "NEW" : "RENEWED");
+                }
+                case BinaryProtocol.OP_SEND_EMAIL:
+                    return handleBinarySendEmail(authenticate(request.field(0)), request.field(1), request.field(2),
+                            request.field(3), clientIP);
+                case BinaryProtocol.OP_GET_EMAILS: {
+                    String username = authenticate(request.field(0));
+                    return withMailbox(username, false, () -> handleBinaryListing(username, null, 0));
+                }
+                case BinaryProtocol.OP_GET_EMAILS_PAGE: {
+                    String username = authenticate(request.field(0));
+                    int limit = Math.min(Integer.parseInt(request.field(1)), MAX_PAGE_SIZE);
+                    String cursor = request.fieldCount() > 2 ? request.field(2) : "";
+                    return withMailbox(username, false, () -> handleBinaryListing(username, cursor, limit));
+                }
+                case BinaryProtocol.OP_GET_EMAILS_SINCE: {
+                    String username = authenticate(request.field(0));
+                    String mark = request.fieldCount() > 1 ? request.field(1) : "";
+                    return withMailbox(username, false, () -> handleBinarySince(username, mark));
+                }
+                case BinaryProtocol.OP_GET_EMAIL: {
+                    String username = authenticate(request.field(0));
+                    // Client nhận được reply nén (FLAG_DEFLATE): cache luôn khung đã nén
+                    boolean deflate = request.acceptsCompressed() && ServerConfig.WIRE_COMPRESSION;
+                    return withMailbox(username, false,
+                            () -> handleBinaryGetEmail(username, request.field(1), deflate));
+                }
+                case BinaryProtocol.OP_SEARCH: {
+                    String username = authenticate(request.field(0));
+                    int limit = Math.min(Integer.parseInt(request.field(2)), MAX_PAGE_SIZE);
+                    String cursor = request.fieldCount() > 3 ? request.field(3) : "";
+                    return withMailbox(username, false,
+                            () -> handleBinarySearch(username, request.field(1), limit, cursor));
+                }
+                case BinaryProtocol.OP_STATS:
+                    return BinaryProtocol.success(statsReport());
+                default:
+                    return BinaryProtocol.error("Unknown command");
+            }
+        } catch (IllegalArgumentException e) {
+            return BinaryProtocol.error(e.getMessage());
+        } catch (Exception e) {
+            return BinaryProtocol.error(String.valueOf(e.getMessage()));
+        }
+    }
+
+    // Reply: [nextCursor,] tên thư, tiêu đề, tên thư, tiêu đề, ...
+    // cursor = null: toàn bộ hộp thư (GET_EMAILS), ngược lại là một trang (GET_EMAILS_PAGE)
+    private byte[] handleBinaryListing(String username, String cursor, int limit) {
+        try {
+            List<String> fields = new ArrayList<>();
+            List<InboxIndex.Entry> emails;
+            if (cursor == null) {
+                emails = inboxIndex.list(username);
+            } else {
+                InboxIndex.Page page = inboxIndex.page(username, cursor, limit);
+                emails = page.entries();
+                fields.add(page.nextCursor());
+            }
+            for (InboxIndex.Entry email : emails) {
+                fields.add(email.filename());
+                fields.add(email.subject());
+            }
+
+            log("📥 User '" + username + "' retrieved " + emails.size() + " emails");
+            return BinaryProtocol.success(fields);
+
+        } catch (IllegalArgumentException e) {
+            return BinaryProtocol.error("Invalid cursor");
+        } catch (Exception e) {
+            log("❌ ERROR retrieving emails: " + e.getMessage());
+            return BinaryProtocol.error("Cannot retrieve emails");
+        }
+    }
+
+    // Reply: mốc mới, FULL/DELTA, rồi từng cặp tên thư / tiêu đề (mới nhất trước)
+    private byte[] handleBinarySince(String username, String mark) {
+        try {
+            InboxIndex.Delta delta = inboxIndex.since(username, mark);
+            List<String> fields = new ArrayList<>(2 + delta.entries().size() * 2);
+            fields.add(delta.mark());
+            fields.add(delta.full() ? "FULL" : "DELTA");
+            for (InboxIndex.Entry email : delta.entries()) {
+                fields.add(email.filename());
+                fields.add(email.subject());
+            }
+            logSync(username, delta);
+            return BinaryProtocol.success(fields);
+
+        } catch (Exception e) {
+            log("❌ ERROR retrieving emails: " + e.getMessage());
+            return BinaryProtocol.error("Cannot retrieve emails");
+        }
+    }
+
+    // SUBSCRIBE|token -> SUCCESS|ttl giây|NEW hoặc RENEWED. Client gửi lại trước khi hết ttl (keepalive);
+    // NEW nghĩa là đăng ký trước đó đã hết hạn (hoặc server khởi động lại), client nên đồng bộ lại danh sách
+    private boolean subscribe(String username, String token, InetSocketAddress endpoint) {
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Subscriptions need a UDP endpoint");
+        }
+        return pushNotifier.subscribe(username, token, endpoint);
+    }
+
+    private void logout(String token, InetSocketAddress endpoint) {
+        String username = sessions.resolve(token);
+        sessions.invalidate(token);
+        if (username != null && endpoint != null) {
+            pushNotifier.unsubscribe(username, endpoint);
+        }
+    }
+
+    // Token hết hạn/không hợp lệ: lệnh trả về ERROR|Invalid or expired session
+    private String authenticate(String token) {
+        String username = sessions.resolve(token);
+        if (username == null) {
+            throw new SecurityException("Invalid or expired session");
+        }
+        return username;
+    }
+
+    // Request có thể đến từ nhiều worker/shard cùng lúc: ghi vào cùng mailbox phải tuần tự
+    private <T> T withMailbox(String account, boolean write, Supplier<T> action) {
+        Lock lock = write ? mailboxLocks.forAccount(account).writeLock()
+                : mailboxLocks.forAccount(account).readLock();
+        lock.lock();
+        try {
+            return action.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void loadUsers() {
+        try {
+            if (usersFile.exists()) {
+                BufferedReader reader = new BufferedReader(new FileReader(usersFile));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(":", 2);
+                    if (parts.length == 2) {
+                        userCredentials.put(parts[0], parts[1]);
+                    }
+                }
+                reader.close();
+            }
+        } catch (IOException e) {
+            log("⚠️ Cannot load users file");
+        }
+    }
+
+    private synchronized void saveUser(String username, String stored) {
+        try {
+            FileWriter writer = new FileWriter(usersFile, true);
+            writer.write(username + ":" + stored + "\n");
+            writer.close();
+        } catch (IOException e) {
+            log("❌ Cannot save user");
+        }
+    }
+
+    // Ghi lại toàn bộ users.txt (sau khi băm lại mật khẩu cũ) qua file tạm rồi đổi tên
+    private synchronized void rewriteUsers() {
+        File temp = new File(usersFile.getPath() + ".tmp");
+        try (FileWriter writer = new FileWriter(temp)) {
+            for (Map.Entry<String, String> user : userCredentials.entrySet()) {
+                writer.write(user.getKey() + ":" + user.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            log("❌ Cannot save users");
+            return;
+        }
+        if (!temp.renameTo(usersFile) && !(usersFile.delete() && temp.renameTo(usersFile))) {
+            log("❌ Cannot replace users file");
+        }
+    }
+
+    private String handleRegister(String username, String stored) {
+        try {
+            if (userCredentials.containsKey(username)) {
+                log("⚠️ Registration failed: Account '" + username + "' already exists");
+                return "ERROR|Account already exists";
+            }
+
+            if (watchingStore()) {
+                ownWrites.add(username + "/");
+            }
+            mailboxStore.createAccount(username);
+
+            String welcome = MailMessage.format("System", username, "Welcome to VKU Mail!", new Date().toString(),
+                    "Server", "Thank you for using this service. We hope that you will feel comfortable........\n");
+            mailboxStore.append(username, "welcome.txt", welcome);
+            messageCount(username).incrementAndGet();
+            totalEmails.increment();
+            catalogDirty = true;
+
+            userCredentials.put(username, stored);
+            saveUser(username, stored);
+            InboxIndex.Entry entry = InboxIndex.parseEntry("welcome.txt", welcome);
+            inboxIndex.add(username, entry);
+            searchIndex.add(username, entry, welcome);
+
+            log("✅ Account created: " + username);
+
+            listener.accountCreated(username);
+            listener.emailsDelivered(totalEmails.sum());
+
+            return "SUCCESS|Account created successfully";
+
+        } catch (IOException e) {
+            log("❌ ERROR creating account: " + e.getMessage());
+            return "ERROR|Cannot create account";
+        }
+    }
+
+    private String handleLogin(String username, String password) {
+        if (!userCredentials.containsKey(username)) {
+            log("⚠️ Login failed: Account '" + username + "' does not exist");
+            return "ERROR|Account does not exist";
+        }
+
+        String stored = userCredentials.get(username);
+        if (!PasswordHasher.verify(password, stored)) {
+            log("⚠️ Login failed: Wrong password for '" + username + "'");
+            return "ERROR|Wrong password";
+        }
+        if (PasswordHasher.needsRehash(stored)
+                && userCredentials.replace(username, stored, PasswordHasher.hash(password))) {
+            rewriteUsers();
+        }
+
+        log("✅ User '" + username + "' logged in successfully");
+        return "SUCCESS|" + sessions.create(username);
+    }
+
+    // SEND_EMAIL|token|user1,user2,...|subject|body (sender là người dùng của phiên)
+    // Một người nhận: reply như trước. Nhiều người nhận: SUCCESS|<n>/<tổng> delivered|user=OK;user=NO_SUCH_USER;...
+    // (ERROR nếu không gửi được cho ai)
+    private String handleSendEmail(String sender, String recipientList, String subject, String emailContent,
+                                   String clientIP) {
+        List<String> recipients = parseRecipients(recipientList);
+        String invalid = validateRecipients(recipients);
+        if (invalid != null) {
+            return invalid;
+        }
+
+        List<DeliveryPipeline.Result> results = deliverEmail(sender, recipients, subject, emailContent, clientIP);
+        if (results.size() == 1) {
+            return singleRecipientReply(results.get(0));
+        }
+
+        int delivered = countDelivered(results);
+        StringBuilder reply = new StringBuilder(delivered > 0 ? "SUCCESS|" : "ERROR|")
+                .append(delivered).append('/').append(results.size()).append(" delivered|");
+        for (DeliveryPipeline.Result result : results) {
+            reply.append(result.recipient()).append('=').append(result.status()).append(';');
+        }
+        return reply.toString();
+    }
+
+    // Reply nhị phân nhiều người nhận: "<n>/<tổng> delivered", rồi từng cặp người nhận / trạng thái
+    private byte[] handleBinarySendEmail(String sender, String recipientList, String subject, String emailContent,
+                                         String clientIP) {
+        List<String> recipients = parseRecipients(recipientList);
+        String invalid = validateRecipients(recipients);
+        if (invalid != null) {
+            return BinaryProtocol.fromText(invalid);
+        }
+
+        List<DeliveryPipeline.Result> results = deliverEmail(sender, recipients, subject, emailContent, clientIP);
+        if (results.size() == 1) {
+            return BinaryProtocol.fromText(singleRecipientReply(results.get(0)));
+        }
+
+        int delivered = countDelivered(results);
+        List<String> fields = new ArrayList<>(results.size() * 2 + 1);
+        fields.add(delivered + "/" + results.size() + " delivered");
+        for (DeliveryPipeline.Result result : results) {
+            fields.add(result.recipient());
+            fields.add(result.status().name());
+        }
+        return BinaryProtocol.reply(delivered > 0, fields);
+    }
+
+    private static List<String> parseRecipients(String recipientList) {
+        Set<String> recipients = new LinkedHashSet<>();
+        for (String recipient : recipientList.split(",")) {
+            if (!recipient.trim().isEmpty()) {
+                recipients.add(recipient.trim());
+            }
+        }
+        return new ArrayList<>(recipients);
+    }
+
+    private static String validateRecipients(List<String> recipients) {
+        if (recipients.isEmpty()) {
+            return "ERROR|No recipients";
+        }
+        if (recipients.size() > ServerConfig.MAX_RECIPIENTS) {
+            return "ERROR|Too many recipients (max " + ServerConfig.MAX_RECIPIENTS + ")";
+        }
+        return null;
+    }
+
+    private static int countDelivered(List<DeliveryPipeline.Result> results) {
+        int delivered = 0;
+        for (DeliveryPipeline.Result result : results) {
+            if (result.status() == DeliveryPipeline.Status.OK) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    private String singleRecipientReply(DeliveryPipeline.Result result) {
+        switch (result.status()) {
+            case OK:
+                return "SUCCESS|Email sent successfully";
+            case NO_SUCH_USER:
+                log("⚠️ Send failed: Recipient '" + result.recipient() + "' does not exist");
+                return "ERROR|Recipient account does not exist";
+            default:
+                return "ERROR|Cannot send email";
+        }
+    }
+
+    // Ghi thư vào từng mailbox song song (DeliveryPipeline), mỗi mailbox dưới khóa ghi của nó
+    private List<DeliveryPipeline.Result> deliverEmail(String sender, List<String> recipients, String subject,
+                                                       String emailContent, String clientIP) {
+        String date = new Date().toString();
+        List<DeliveryPipeline.Result> results = deliveryPipeline.deliver(recipients, userCredentials::containsKey,
+                recipient -> deliverTo(sender, recipient, subject, date, emailContent, clientIP));
+
+        int delivered = countDelivered(results);
+        if (delivered > 0) {
+            totalEmails.add(delivered);
+            listener.emailsDelivered(totalEmails.sum());
+        }
+
+        if (recipients.size() == 1) {
+            if (delivered == 1) {
+                log("📧 Email sent: From=" + sender + " [" + clientIP + "], To=" + recipients.get(0)
+                        + ", Subject=" + subject);
+            }
+        } else {
+            log("📧 Email sent: From=" + sender + " [" + clientIP + "], To=" + delivered + "/" + recipients.size()
+                    + " recipients, Subject=" + subject);
+        }
+        return results;
+    }
+
+    private void deliverTo(String sender, String recipient, String subject, String date, String emailContent,
+                           String clientIP) throws IOException {
+        Lock lock = mailboxLocks.forAccount(recipient).writeLock();
+        InboxIndex.Entry entry;
+        InboxIndex.Change change;
+        lock.lock();
+        try {
+            String emailFileName = MessageIdGenerator.fileName(messageIds.next());
+            String email = MailMessage.format(sender, recipient, subject, date, clientIP, emailContent);
+            if (watchingStore()) {
+                ownWrites.add(recipient + "/" + emailFileName);
+            }
+            mailboxStore.append(recipient, emailFileName, email);
+            messageCount(recipient).incrementAndGet();
+            catalogDirty = true;
+
+            entry = InboxIndex.parseEntry(emailFileName, email);
+            change = inboxIndex.add(recipient, entry);
+            searchIndex.add(recipient, entry, email);
+        } catch (IOException e) {
+            log("❌ ERROR sending email to " + recipient + ": " + e.getMessage());
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        pushNotifier.notify(recipient, change, entry);
+    }
+
+    private String handleGetEmails(String username) {
+        try {
+            // Danh sách lấy từ chỉ mục trong bộ nhớ, không mở file nào
+            List<InboxIndex.Entry> emails = inboxIndex.list(username);
+            if (emails.isEmpty()) {
+                return "SUCCESS|No emails";
+            }
+
+            StringBuilder fileList = new StringBuilder("SUCCESS|");
+            for (InboxIndex.Entry email : emails) {
+                fileList.append(email.filename()).append(":::").append(email.subject()).append(";");
+            }
+
+            log("📥 User '" + username + "' retrieved " + emails.size() + " emails");
+            return fileList.toString();
+
+        } catch (Exception e) {
+            log("❌ ERROR retrieving emails: " + e.getMessage());
+            return "ERROR|Cannot retrieve emails";
+        }
+    }
+
+    // GET_EMAILS_PAGE|token|limit|cursor -> SUCCESS|nextCursor|name:::subject;...
+    // Thư mới nhất trước; nextCursor rỗng nghĩa là đã hết
+    private String handleGetEmailsPage(String username, int limit, String cursor) {
+        try {
+            InboxIndex.Page page = inboxIndex.page(username, cursor, Math.min(limit, MAX_PAGE_SIZE));
+
+            StringBuilder fileList = new StringBuilder("SUCCESS|").append(page.nextCursor()).append("|");
+            for (InboxIndex.Entry email : page.entries()) {
+                fileList.append(email.filename()).append(":::").append(email.subject()).append(";");
+            }
+
+            log("📥 User '" + username + "' retrieved page of " + page.entries().size() + " emails");
+            return fileList.toString();
+
+        } catch (IllegalArgumentException e) {
+            return "ERROR|Invalid cursor";
+        } catch (Exception e) {
+            log("❌ ERROR retrieving emails: " + e.getMessage());
+            return "ERROR|Cannot retrieve emails";
+        }
+    }
+
+    // GET_EMAILS_SINCE|token|mark -> SUCCESS|mark mới|FULL hoặc DELTA|name:::subject;...
+    // Hộp thư không đổi: "SUCCESS|mark|DELTA|"; mark rỗng/cũ thì trả về toàn bộ (FULL)
+    private String handleGetEmailsSince(String username, String mark) {
+        try {
+            InboxIndex.Delta delta = inboxIndex.since(username, mark);
+
+            StringBuilder fileList = new StringBuilder("SUCCESS|").append(delta.mark())
+                    .append(delta.full() ? "|FULL|" : "|DELTA|");
+            for (InboxIndex.Entry email : delta.entries()) {
+                fileList.append(email.filename()).append(":::").append(email.subject()).append(";");
+            }
+
+            logSync(username, delta);
+            return fileList.toString();
+
+        } catch (Exception e) {
+            log("❌ ERROR retrieving emails: " + e.getMessage());
+            return "ERROR|Cannot retrieve emails";
+        }
+    }
+
+    private void logSync(String username, InboxIndex.Delta delta) {
+        if (delta.full()) {
+            log("📥 User '" + username + "' synced all " + delta.entries().size() + " emails");
+        } else if (!delta.entries().isEmpty()) {
+            log("📥 User '" + username + "' synced " + delta.entries().size() + " new emails");
+        }
+    }
+
+    // SEARCH|token|query|limit|cursor -> SUCCESS|nextCursor|tổng số thư khớp|name:::subject;...
+    // Mọi từ trong query phải có trong thư; "from:" / "subject:" chỉ tìm trong người gửi / tiêu đề
+    private String handleSearch(String username, String query, int limit, String cursor) {
+        try {
+            SearchIndex.Result result = searchIndex.search(username, query, cursor, Math.min(limit, MAX_PAGE_SIZE));
+
+            StringBuilder fileList = new StringBuilder("SUCCESS|").append(result.nextCursor()).append("|")
+                    .append(result.total()).append("|");
+            for (SearchIndex.Hit hit : result.hits()) {
+                fileList.append(hit.filename()).append(":::").append(hit.subject()).append(";");
+            }
+
+            logSearch(username, result);
+            return fileList.toString();
+
+        } catch (IllegalArgumentException e) {
+            return "ERROR|" + e.getMessage();
+        } catch (Exception e) {
+            log("❌ ERROR searching emails: " + e.getMessage());
+            return "ERROR|Cannot search emails";
+        }
+    }
+
+    // Reply: nextCursor, tổng số thư khớp, rồi từng cặp tên thư / tiêu đề (mới nhất trước)
+    private byte[] handleBinarySearch(String username, String query, int limit, String cursor) {
+        try {
+            SearchIndex.Result result = searchIndex.search(username, query, cursor, limit);
+            List<String> fields = new ArrayList<>(2 + result.hits().size() * 2);
+            fields.add(result.nextCursor());
+            fields.add(String.valueOf(result.total()));
+            for (SearchIndex.Hit hit : result.hits()) {
+                fields.add(hit.filename());
+                fields.add(hit.subject());
+            }
+            logSearch(username, result);
+            return BinaryProtocol.success(fields);
+
+        } catch (IllegalArgumentException e) {
+            return BinaryProtocol.error(e.getMessage());
+        } catch (Exception e) {
+            log("❌ ERROR searching emails: " + e.getMessage());
+            return BinaryProtocol.error("Cannot search emails");
+        }
+    }
+
+    private void logSearch(String username, SearchIndex.Result result) {
+        log("🔎 User '" + username + "' searched: " + result.total() + " matches");
+    }
+
+    private String handleGetEmail(String username, String filename) {
+        return new String(encodedGetEmail(username, filename), StandardCharsets.UTF_8);
+    }
+
+    // Reply văn bản của GET_EMAIL đã mã hoá UTF-8; lần đọc sau lấy nguyên mảng này từ ReplyCache
+    private byte[] encodedGetEmail(String username, String filename) {
+        byte[] cached = replyCache.text(username, filename);
+        if (cached != null) {
+            log("📖 Email read: " + filename + " by " + username);
+            return cached;
+        }
+        long generation = replyCache.generation();
+        String reply = readEmail(username, filename);
+        byte[] encoded = reply.getBytes(StandardCharsets.UTF_8);
+        if (reply.startsWith("SUCCESS|")) {
+            replyCache.putText(username, filename, encoded, generation);
+        }
+        return encoded;
+    }
+
+    private byte[] handleBinaryGetEmail(String username, String filename, boolean deflate) {
+        byte[] cached = replyCache.frame(username, filename, deflate);
+        if (cached != null) {
+            log("📖 Email read: " + filename + " by " + username);
+            return cached;
+        }
+        long generation = replyCache.generation();
+        String reply = readEmail(username, filename);
+        byte[] frame = BinaryProtocol.fromText(reply);
+        if (!reply.startsWith("SUCCESS|")) {
+            return frame;
+        }
+        if (deflate) {
+            frame = Compression.maybeCompress(frame);
+        }
+        replyCache.putFrame(username, filename, deflate, frame, generation);
+        return frame;
+    }
+
+    private String readEmail(String username, String filename) {
+        try {
+            String content = mailboxStore.read(username, filename);
+
+            if (content == null) {
+                log("⚠️ Email not found: " + filename);
+                return "ERROR|Email not found";
+            }
+
+            log("📖 Email read: " + filename + " by " + username);
+
+            return "SUCCESS|" + content;
+
+        } catch (IOException e) {
+            log("❌ ERROR reading email: " + e.getMessage());
+            return "ERROR|Cannot read email";
+        }
+    }
+
+    private String statsReport() {
+        ReplyCache.Stats cache = replyCache.stats();
+        return metrics.report(queueDepth.getAsInt()) + String.format(Locale.ROOT,
+                "reply_cache hits=%d misses=%d hit_rate=%.3f entries=%d bytes=%d capacity=%d evictions=%d%n",
+                cache.hits(), cache.misses(), cache.hitRate(), cache.entries(), cache.bytes(), cache.capacity(),
+                cache.evictions());
+    }
+
+    private AtomicInteger messageCount(String account) {
+        return messageCounts.computeIfAbsent(account, a -> new AtomicInteger());
+    }
+
+    // Khởi động nhanh: nạp danh sách account, số thư và chỉ mục từ catalog thay vì duyệt store, rồi ghi lại
+    // catalog mỗi intervalSeconds (0 = chỉ khi đóng). Trả về null nếu chưa có catalog hoặc catalog hỏng;
+    // trong mọi trường hợp scanAccounts() vẫn cần chạy (trên thread nền) để sửa sai lệch.
+    public AccountScan openCatalog(File file, long intervalSeconds) {
+        catalogFile = file;
+        if (intervalSeconds > 0) {
+            catalogWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mail-catalog-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            catalogWriter.scheduleWithFixedDelay(() -> {
+                try {
+                    saveCatalog();
+                } catch (IOException e) {
+                    log("⚠️ Cannot save catalog: " + e.getMessage());
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        MailCatalog.Snapshot snapshot;
+        try {
+            snapshot = MailCatalog.read(file);
+        } catch (IOException e) {
+            log("⚠️ Ignoring catalog: " + e.getMessage());
+            return null;
+        }
+        if (snapshot == null) {
+            return null;
+        }
+        List<String> accounts = new ArrayList<>(snapshot.accounts().size());
+        long emailCount = 0;
+        for (MailCatalog.AccountState state : snapshot.accounts()) {
+            accounts.add(state.account());
+            // Account có thể vừa được tạo (trước khi catalog được nạp) thì giữ số đang có
+            if (messageCounts.putIfAbsent(state.account(), new AtomicInteger(state.messageCount())) == null) {
+                emailCount += state.messageCount();
+                if (state.index() != null) {
+                    inboxIndex.preload(state.account(), state.index());
+                }
+            }
+        }
+        totalEmails.add(emailCount);
+        catalogComplete = true;
+        return new AccountScan(accounts, totalEmails.sum(), 0);
+    }
+
+    // Ghi ảnh chụp catalog; mỗi account được chụp dưới khóa đọc để số thư khớp với chỉ mục
+    public synchronized void saveCatalog() throws IOException {
+        File file = catalogFile;
+        if (file == null || !catalogComplete || !catalogDirty) {
+            return;
+        }
+        catalogDirty = false;
+        List<MailCatalog.AccountState> states = new ArrayList<>(messageCounts.size());
+        for (Map.Entry<String, AtomicInteger> count : messageCounts.entrySet()) {
+            String account = count.getKey();
+            states.add(withMailbox(account, false, () -> new MailCatalog.AccountState(account,
+                    count.getValue().get(), inboxIndex.loadedEntries(account))));
+        }
+        try {
+            MailCatalog.write(file, states);
+        } catch (IOException e) {
+            catalogDirty = true;
+            throw e;
+        }
+    }
+
+    // Duyệt toàn bộ account trong store, đếm thư và sửa số đã biết (từ catalog hoặc lần quét trước).
+    // Chạy được khi server đang nhận thư: mỗi account được đếm dưới khóa ghi của mailbox đó.
+    public AccountScan scanAccounts() throws IOException {
+        List<String> accounts = mailboxStore.listAccounts();
+        int changed = 0;
+        for (String account : accounts) {
+            if (reconcileAccount(account)) {
+                changed++;
+            }
+        }
+        // Account có trong catalog nhưng không còn trong store
+        Set<String> listed = new HashSet<>(accounts);
+        for (String account : new ArrayList<>(messageCounts.keySet())) {
+            if (!listed.contains(account) && reconcileAccount(account)) {
+                changed++;
+            }
+        }
+        catalogComplete = true;
+        if (changed > 0) {
+            listener.emailsDelivered(totalEmails.sum());
+        }
+        return new AccountScan(accounts, totalEmails.sum(), changed);
+    }
+
+    // Đếm lại thư của một account dưới khóa ghi và sửa số đã biết; account mới xuất hiện hoặc đã mất
+    // được báo qua Listener. Trả về true nếu có thay đổi.
+    // Khóa ghi: việc đếm, đặt lại số thư và xoá chỉ mục/cache không được xen với một lần gửi thư (deliverTo)
+    // hay hai lần reconcile cùng account, nếu không số thư hoặc chỉ mục có thể lệch với store.
+    private boolean reconcileAccount(String account) throws IOException {
+        boolean created = false;
+        boolean removed = false;
+        Lock lock = mailboxLocks.forAccount(account).writeLock();
+        lock.lock();
+        try {
+            if (!mailboxStore.hasAccount(account)) {
+                AtomicInteger count = messageCounts.remove(account);
+                if (count == null) {
+                    return false;
+                }
+                totalEmails.add(-count.get());
+                inboxIndex.invalidate(account);
+                searchIndex.invalidate(account);
+                replyCache.invalidate(account);
+                removed = true;
+            } else {
+                int stored = mailboxStore.countMessages(account);
+                created = !messageCounts.containsKey(account);
+                int known = messageCount(account).getAndSet(stored);
+                boolean stale = inboxIndex.loadedCount(account) >= 0 && inboxIndex.loadedCount(account) != stored;
+                // Chỉ mục (nạp từ catalog hoặc trước thay đổi bên ngoài) thiếu thư: bỏ đi, lần sau quét lại
+                if (stale) {
+                    inboxIndex.invalidate(account);
+                }
+                if (known == stored && !created && !stale) {
+                    return false;
+                }
+                searchIndex.invalidate(account);
+                replyCache.invalidate(account);
+                totalEmails.add(stored - known);
+            }
+        } finally {
+            lock.unlock();
+        }
+        catalogDirty = true;
+        if (created) {
+            listener.accountCreated(account);
+        } else if (removed) {
+            listener.accountRemoved(account);
+        }
+        return true;
+    }
+
+    // Account mà server đang biết (danh sách của catalog), dùng để làm mới GUI mà không quét store
+    public List<String> accounts() {
+        return new ArrayList<>(messageCounts.keySet());
+    }
+
+    // Theo dõi thư mục của backend "file" để thay đổi từ bên ngoài được cập nhật ngay, không cần quét lại.
+    // Trả về false nếu không theo dõi được mọi thư mục account (khi đó làm mới vẫn phải quét store).
+    public boolean watchStore(Path accountsRoot) throws IOException {
+        MailboxWatcher started = new MailboxWatcher(accountsRoot, new MailboxWatcher.Handler() {
+            @Override
+            public boolean isOwnChange(String account, String name) {
+                return ownWrites.remove(name == null ? account + "/" : account + "/" + name);
+            }
+
+            @Override
+            public void accountsChanged(Set<String> accounts) {
+                int changed = 0;
+                for (String account : accounts) {
+                    try {
+                        if (reconcileAccount(account)) {
+                            changed++;
+                        }
+                    } catch (IOException e) {
+                        log("⚠️ Cannot recount " + account + ": " + e.getMessage());
+                    }
+                }
+                if (changed > 0) {
+                    log("📂 " + changed + " accounts changed outside the server");
+                    listener.emailsDelivered(totalEmails.sum());
+                }
+            }
+
+            @Override
+            public void messageChanged(String account, String name) {
+                replyCache.invalidate(account, name);
+            }
+
+            @Override
+            public void eventsLost() {
+                ownWrites.clear();
+                replyCache.clear();
+                try {
+                    AccountScan scan = scanAccounts();
+                    log("📂 Store watcher overflowed, rescanned " + scan.accounts().size() + " accounts, "
+                            + scan.changedAccounts() + " changed");
+                } catch (IOException e) {
+                    log("⚠️ Cannot rescan accounts: " + e.getMessage());
+                }
+            }
+        }, this::log);
+        if (!started.complete()) {
+            started.close();
+            return false;
+        }
+        watcher = started;
+        started.start();
+        return true;
+    }
+
+    public boolean watchingStore() {
+        MailboxWatcher current = watcher;
+        return current != null && current.complete();
+    }
+
+    private void log(String message) {
+        logger.accept(message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (catalogWriter != null) {
+            catalogWriter.shutdownNow();
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        deliveryPipeline.shutdown();
+        searchIndex.close();
+        try {
+            saveCatalog();
+        } catch (IOException e) {
+            log("⚠️ Cannot save catalog: " + e.getMessage());
+        }
+        mailboxStore.close();
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.mailserver;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Khóa theo mailbox (striped): các request từ nhiều shard/worker cùng chạm vào một account
+// được tuần tự hóa, còn các account khác nhau hầu như không tranh chấp khóa.
+public class MailboxLocks {
+    private final ReadWriteLock[] stripes;
+    private final int mask;
+
+    public MailboxLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new ReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        mask = size - 1;
+    }
+
+    public ReadWriteLock forAccount(String username) {
+        int h = username.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    public int stripeCount() {
+        return stripes.length;
+    }
+}
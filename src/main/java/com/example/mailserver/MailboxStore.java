@@ -0,0 +1,44 @@
+package com.example.mailserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// Nơi lưu trữ thư của các account. Có 2 backend:
+// "file"    - mỗi thư một file trong accounts/<user>/ (như cũ)
+// "segment" - thư được ghi nối tiếp vào các file segment, đọc qua mmap (SegmentMailboxStore)
+public interface MailboxStore extends Closeable {
+
+    void createAccount(String account) throws IOException;
+
+    boolean hasAccount(String account);
+
+    List<String> listAccounts() throws IOException;
+
+    // Ghi thư vào mailbox, messageName là tên thư client dùng trong GET_EMAIL
+    void append(String account, String messageName, String content) throws IOException;
+
+    // Trả về null nếu không có thư
+    String read(String account, String messageName) throws IOException;
+
+    List<String> listMessages(String account) throws IOException;
+
+    int countMessages(String account) throws IOException;
+
+    // fsync mọi thư đã append trước lời gọi này
+    void sync() throws IOException;
+
+    // Backend được bọc bởi JournaledMailboxStore: thư được group-commit vào journal trước
+    static MailboxStore fromConfig() throws IOException {
+        MailboxStore backend;
+        if ("segment".equalsIgnoreCase(ServerConfig.STORE)) {
+            backend = new SegmentMailboxStore(new File(ServerConfig.SEGMENT_DIR), ServerConfig.SEGMENT_SIZE);
+        } else {
+            backend = new FileMailboxStore(new File(ServerConfig.ACCOUNTS_DIR));
+        }
+        return new JournaledMailboxStore(backend, new DeliveryJournal(new File(ServerConfig.JOURNAL_DIR),
+                DeliveryJournal.Durability.parse(ServerConfig.DURABILITY), ServerConfig.JOURNAL_WINDOW_MICROS,
+                ServerConfig.JOURNAL_SIZE));
+    }
+}
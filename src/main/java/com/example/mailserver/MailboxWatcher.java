@@ -0,0 +1,158 @@
+package com.example.mailserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Theo dõi accounts/ (backend "file") bằng WatchService để biết các thay đổi do bên ngoài server gây ra
+// (copy/xoá thư mục account, thêm thư bằng tay...). Thư do chính server ghi được Handler nhận ra và bỏ qua;
+// với phần còn lại, các account bị thay đổi được gom lại trong DEBOUNCE_MILLIS rồi báo một lần,
+// để copy cả nghìn file chỉ dẫn tới một lần đếm lại cho mỗi account.
+// Thư bị ghi đè, xoá hoặc thay bằng file khác cùng tên được báo ngay từng thư (messageChanged)
+// để reply đã cache của thư đó không còn được dùng.
+public class MailboxWatcher implements Closeable {
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    public interface Handler {
+        // name == null: chính thư mục account. Trả về true nếu đây là thay đổi do server vừa ghi
+        boolean isOwnChange(String account, String name);
+
+        void accountsChanged(Set<String> accounts);
+
+        // Nội dung thư có thể đã khác (ghi đè/xoá/thay thế), kể cả khi số thư không đổi
+        void messageChanged(String account, String name);
+
+        // WatchService bị tràn (mất sự kiện): cần quét lại toàn bộ
+        void eventsLost();
+    }
+
+    private final Path root;
+    private final Handler handler;
+    private final Consumer<String> logger;
+    private final WatchService watchService;
+    // key của root ánh xạ tới "", key của thư mục account ánh xạ tới tên account
+    private final Map<WatchKey, String> accounts = new ConcurrentHashMap<>();
+    private final Thread thread;
+    // false nếu không đăng ký được hết thư mục (VD: vượt giới hạn inotify): thay đổi có thể bị bỏ sót
+    private volatile boolean complete = true;
+
+    public MailboxWatcher(Path root, Handler handler, Consumer<String> logger) throws IOException {
+        this.root = root;
+        this.handler = handler;
+        this.logger = logger;
+        this.watchService = root.getFileSystem().newWatchService();
+        accounts.put(root.register(watchService, ENTRY_CREATE, ENTRY_DELETE), "");
+        File[] dirs = root.toFile().listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                register(dir.getName());
+            }
+        }
+        this.thread = new Thread(this::run, "mail-store-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public boolean complete() {
+        return complete;
+    }
+
+    private void register(String account) {
+        if (!complete) {
+            return;
+        }
+        try {
+            accounts.put(root.resolve(account).register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY),
+                    account);
+        } catch (NoSuchFileException e) {
+            // Thư mục đã bị xoá trước khi kịp đăng ký
+        } catch (IOException e) {
+            complete = false;
+            logger.accept("⚠️ Cannot watch " + root.resolve(account) + ": " + e.getMessage()
+                    + " (changes made outside the server need a refresh)");
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Set<String> changed = new HashSet<>();
+                boolean lost = false;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS);
+                while (key != null) {
+                    lost |= drain(key, changed);
+                    key = watchService.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                if (lost) {
+                    handler.eventsLost();
+                } else if (!changed.isEmpty()) {
+                    handler.accountsChanged(changed);
+                }
+                // Thư mục mới không theo dõi được: dừng hẳn, việc làm mới quay lại quét store
+                if (!complete) {
+                    watchService.close();
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // close()
+        } catch (IOException e) {
+            logger.accept("⚠️ Cannot close store watcher: " + e.getMessage());
+        }
+    }
+
+    // Trả về true nếu có sự kiện bị mất (OVERFLOW)
+    private boolean drain(WatchKey key, Set<String> changed) {
+        String account = accounts.get(key);
+        boolean lost = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                lost = true;
+                continue;
+            }
+            String name = event.context().toString();
+            if ("".equals(account)) {
+                // Thư mục account mới: theo dõi luôn để thấy thư được thêm vào sau đó
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(root.resolve(name))) {
+                    register(name);
+                }
+                if (!handler.isOwnChange(name, null)) {
+                    changed.add(name);
+                }
+            } else if (account != null) {
+                if (event.kind() == ENTRY_MODIFY) {
+                    // Ghi đè không đổi số thư: chỉ bỏ cache của thư đó, không cần đếm lại account.
+                    // Thư server vừa ghi cũng sinh MODIFY (sau CREATE), bỏ cache của nó không gây sai.
+                    handler.messageChanged(account, name);
+                } else if (!handler.isOwnChange(account, name)) {
+                    handler.messageChanged(account, name);
+                    changed.add(account);
+                }
+            }
+        }
+        // Thư mục đã bị xoá: key không còn dùng được
+        if (!key.reset()) {
+            accounts.remove(key);
+        }
+        return lost;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+}
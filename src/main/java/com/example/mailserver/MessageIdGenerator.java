@@ -0,0 +1,165 @@
+package com.example.mailserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sinh ID thư 64 bit tăng dần theo thời gian, không khóa:
+//   0 | 41 bit mili giây kể từ EPOCH | 10 bit node | 12 bit số thứ tự trong mili giây
+// Tên file thư là "msg_<16 chữ số hex>.txt" nên sắp xếp theo tên cũng là theo thời gian.
+//
+// - Nhiều thread: CAS trên giá trị cuối cùng đã cấp; hết 4096 số trong một mili giây thì mượn
+//   mili giây kế tiếp thay vì chờ. Đồng hồ hệ thống lùi lại cũng không làm ID giảm.
+// - Khởi động lại: mốc thời gian đã "đặt trước" (vượt hiện tại RESERVE_MILLIS) được ghi ra file;
+//   lần chạy sau bắt đầu sau mốc đó, kể cả khi đồng hồ bị chỉnh lùi.
+// - Nhiều node: mỗi server cần một nodeId khác nhau (mailserver.nodeId); mặc định lấy từ hostname.
+public class MessageIdGenerator {
+    // 2024-01-01T00:00:00Z, 41 bit đủ dùng khoảng 69 năm
+    public static final long EPOCH = 1_704_067_200_000L;
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long RESERVE_MILLIS = 10_000;
+    private static final String PREFIX = "msg_";
+    private static final String SUFFIX = ".txt";
+
+    private final int nodeId;
+    private final File stateFile;
+    private final AtomicLong last;
+    // Mốc thời gian (tính từ EPOCH) đã ghi ra stateFile; chỉ ghi lại khi ID vượt qua mốc
+    private volatile long reservedUntil;
+
+    public MessageIdGenerator(int nodeId, File stateFile) {
+        if (nodeId < 0 || nodeId > MAX_NODE) {
+            throw new IllegalArgumentException("nodeId must be between 0 and " + MAX_NODE);
+        }
+        this.nodeId = nodeId;
+        this.stateFile = stateFile;
+
+        long start = System.currentTimeMillis() - EPOCH;
+        if (stateFile != null && stateFile.exists()) {
+            try {
+                String saved = new String(Files.readAllBytes(stateFile.toPath()), StandardCharsets.US_ASCII).trim();
+                if (!saved.isEmpty()) {
+                    start = Math.max(start, Long.parseLong(saved) + 1);
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Không đọc được mốc cũ thì không thể bảo đảm ID không trùng với lần chạy trước
+                throw new IllegalStateException("Cannot read message id state " + stateFile, e);
+            }
+        }
+        // Coi như mili giây trước start đã dùng hết số thứ tự: ID đầu tiên rơi vào start hoặc muộn hơn
+        this.last = new AtomicLong(compose(start - 1, SEQUENCE_MASK));
+        reserve(start);
+    }
+
+    public static MessageIdGenerator fromConfig() {
+        return new MessageIdGenerator(ServerConfig.NODE_ID >= 0 ? ServerConfig.NODE_ID : defaultNodeId(),
+                new File(ServerConfig.MESSAGE_ID_FILE));
+    }
+
+    private static int defaultNodeId() {
+        try {
+            return (InetAddress.getLocalHost().getHostName().hashCode() & 0x7fffffff) % (MAX_NODE + 1);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long next() {
+        while (true) {
+            long previous = last.get();
+            long now = System.currentTimeMillis() - EPOCH;
+            long time = previous >>> TIME_SHIFT;
+            long candidate;
+            if (now > time) {
+                candidate = compose(now, 0);
+            } else if ((previous & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                candidate = previous + 1;
+            } else {
+                candidate = compose(time + 1, 0);
+            }
+            if (last.compareAndSet(previous, candidate)) {
+                long candidateTime = candidate >>> TIME_SHIFT;
+                if (candidateTime > reservedUntil) {
+                    reserve(candidateTime);
+                }
+                return candidate;
+            }
+        }
+    }
+
+    private long compose(long time, long sequence) {
+        return (time << TIME_SHIFT) | ((long) nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    // Đường chậm, khoảng RESERVE_MILLIS một lần: ghi mốc mới qua file tạm rồi đổi tên.
+    // File tạm được fsync trước khi đổi tên (và thư mục sau đó): nếu không, sau khi mất điện file state
+    // có thể rỗng hoặc còn mốc cũ, và id đã phát ra lại bị dùng lần nữa.
+    private synchronized void reserve(long time) {
+        if (time <= reservedUntil && reservedUntil != 0) {
+            return;
+        }
+        long until = time + RESERVE_MILLIS;
+        if (stateFile != null) {
+            try {
+                File parent = stateFile.getAbsoluteFile().getParentFile();
+                if (parent != null) {
+                    parent.mkdirs();
+                }
+                File temp = new File(stateFile.getPath() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(Long.toString(until).getBytes(StandardCharsets.US_ASCII));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                if (parent != null) {
+                    FileSync.forceDirectory(parent.toPath());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot persist message id reservation", e);
+            }
+        }
+        reservedUntil = until;
+    }
+
+    public static String fileName(long id) {
+        return String.format("%s%016x%s", PREFIX, id, SUFFIX);
+    }
+
+    // -1 nếu không phải tên do generator tạo
+    public static long parseFileName(String name) {
+        if (name.length() != PREFIX.length() + 16 + SUFFIX.length() || !name.startsWith(PREFIX)
+                || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseUnsignedLong(name.substring(PREFIX.length(), PREFIX.length() + 16), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static long timestampMillis(long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    public static int nodeOf(long id) {
+        return (int) (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Transport UDP dùng DatagramChannel + Selector. Buffer nhận/gửi lấy từ BufferPool (direct),
+// CharsetDecoder UTF-8 được dùng lại thay vì tạo mới cho mỗi packet; reply đến từ handler đã mã hoá sẵn.
+// Với shards > 1, mở N channel cùng bind vào một port (SO_REUSEPORT): kernel chia gói tin
+// theo địa chỉ client, mỗi shard có thread nhận và dispatcher (lane xử lý) riêng.
+public class NioTransport {
+    private final int port;
+    private final int shardCount;
+    private final RequestDispatcher.RequestHandler handler;
+    private final BinaryProtocol.Handler binaryHandler;
+    private final Consumer<String> logger;
+    private final BufferPool bufferPool;
+    // Thread khác (PushNotifier) đọc danh sách shard trong lúc start/stop
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+
+    private record PendingReply(ByteBuffer buffer, SocketAddress target) {
+    }
+
+    public NioTransport(int port, RequestDispatcher.RequestHandler handler, Consumer<String> logger) {
+        this(port, ServerConfig.SHARDS, handler, logger);
+    }
+
+    public NioTransport(int port, int shardCount, RequestDispatcher.RequestHandler handler, Consumer<String> logger) {
+        this(port, shardCount, handler, null, logger);
+    }
+
+    public NioTransport(int port, int shardCount, RequestDispatcher.RequestHandler handler,
+                        BinaryProtocol.Handler binaryHandler, Consumer<String> logger) {
+        this.port = port;
+        this.shardCount = Math.max(1, shardCount);
+        this.handler = handler;
+        this.binaryHandler = binaryHandler;
+        this.logger = logger;
+        this.bufferPool = new BufferPool(ServerConfig.PACKET_BUFFER_SIZE, ServerConfig.BUFFER_POOL_SIZE);
+    }
+
+    public void start() throws IOException {
+        int count = shardCount;
+        if (count > 1 && !reusePortSupported()) {
+            logger.accept("⚠️ SO_REUSEPORT not supported on this platform, using 1 shard");
+            count = 1;
+        }
+        int laneWorkers = Math.max(1, ServerConfig.WORKER_THREADS / count);
+
+        running = true;
+        try {
+            for (int i = 0; i < count; i++) {
+                Shard shard = new Shard(i, count > 1, laneWorkers);
+                shards.add(shard);
+                shard.start();
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        shards.clear();
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    public int queueDepth() {
+        int depth = 0;
+        for (Shard shard : shards) {
+            depth += shard.dispatcher.queueDepth();
+        }
+        return depth;
+    }
+
+    // Gói tin do server chủ động gửi (PushNotifier), đi ra từ cùng port với reply
+    public void send(byte[] packet, InetSocketAddress client) throws IOException {
+        Shard[] current = shards.toArray(new Shard[0]);
+        if (current.length == 0) {
+            throw new IOException("Transport stopped");
+        }
+        current[Math.floorMod(client.hashCode(), current.length)].sendPacket(packet, client);
+    }
+
+    private static boolean reusePortSupported() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private class Shard {
+        private final int id;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final RequestDispatcher dispatcher;
+        private final FragmentHandler fragments;
+        private final ConcurrentLinkedQueue<PendingReply> pendingReplies = new ConcurrentLinkedQueue<>();
+        private final Thread receiveThread;
+
+        Shard(int id, boolean reusePort, int laneWorkers) throws IOException {
+            this.id = id;
+            channel = DatagramChannel.open();
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, SelectionKey.OP_READ);
+
+            dispatcher = RequestDispatcher.fromConfig(laneWorkers, handler, binaryHandler, this::sendPacket, logger);
+            // Fragment bị mất khi socket buffer đầy sẽ được gửi lại theo cơ chế ACK của ChunkedTransfer
+            fragments = new FragmentHandler((packet, client) -> channel.send(ByteBuffer.wrap(packet), client),
+                    dispatcher, logger);
+
+            receiveThread = new Thread(this::receiveLoop, "mail-nio-receiver-" + id);
+            receiveThread.setDaemon(true);
+        }
+
+        void start() {
+            receiveThread.start();
+        }
+
+        // Selector do chính thread nhận đóng khi thoát vòng lặp
+        void close() {
+            selector.wakeup();
+            dispatcher.shutdown();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void receiveLoop() {
+            // Decoder và buffer chỉ do thread nhận của shard này sử dụng
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer receiveBuffer = bufferPool.acquire();
+            CharBuffer chars = CharBuffer.allocate(bufferPool.bufferSize());
+            BinaryProtocol.Request binaryRequest = new BinaryProtocol.Request();
+
+            try {
+                while (running) {
+                    selector.select();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey selected = it.next();
+                        it.remove();
+                        if (!selected.isValid()) {
+                            continue;
+                        }
+                        if (selected.isReadable()) {
+                            drainReceive(receiveBuffer, decoder, chars, binaryRequest);
+                        }
+                        if (selected.isValid() && selected.isWritable()) {
+                            flushPending();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    logger.accept("❌ ERROR (shard " + id + "): " + e.getMessage());
+                }
+            } finally {
+                bufferPool.release(receiveBuffer);
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void drainReceive(ByteBuffer receiveBuffer, CharsetDecoder decoder, CharBuffer chars,
+                                  BinaryProtocol.Request binaryRequest) throws IOException {
+            SocketAddress source;
+            while ((source = channel.receive(receiveBuffer)) != null) {
+                receiveBuffer.flip();
+                InetSocketAddress client = (InetSocketAddress) source;
+                if (fragments.handlePacket(receiveBuffer, client)) {
+                    receiveBuffer.clear();
+                    continue;
+                }
+
+                // Khung nhị phân được kiểm tra ngay trên buffer nhận; chỉ copy một lần khi đưa sang worker
+                if (BinaryProtocol.isBinary(receiveBuffer)) {
+                    if (binaryRequest.parse(receiveBuffer)) {
+                        ServerLog.debug(logger, () -> "📨 Received from " + client.getAddress().getHostAddress()
+                                + ":" + client.getPort() + " - " + BinaryProtocol.opcodeName(binaryRequest.opcode()));
+                        dispatcher.dispatch(binaryRequest.detach(), client, this::sendPacket);
+                    }
+                    receiveBuffer.clear();
+                    continue;
+                }
+
+                decoder.reset();
+                chars.clear();
+                decoder.decode(receiveBuffer, chars, true);
+                decoder.flush(chars);
+                chars.flip();
+                String message = chars.toString();
+                receiveBuffer.clear();
+
+                int end = message.indexOf('|');
+                ServerLog.debug(logger, () -> "📨 Received from " + client.getAddress().getHostAddress() + ":"
+                        + client.getPort() + " - " + (end < 0 ? message : message.substring(0, end)));
+
+                dispatcher.dispatch(message, client);
+            }
+        }
+
+        // Gọi từ worker thread của lane; reply đi ra đúng channel đã nhận request
+        private void sendPacket(byte[] packet, InetSocketAddress client) throws IOException {
+            ByteBuffer buffer = bufferPool.acquire();
+            if (packet.length > buffer.capacity()) {
+                bufferPool.release(buffer);
+                throw new IOException("Response too large for one datagram (" + packet.length + " bytes)");
+            }
+            buffer.put(packet).flip();
+            enqueue(buffer, client);
+        }
+
+        private void enqueue(ByteBuffer buffer, InetSocketAddress client) throws IOException {
+            // Socket buffer đầy: để thread selector gửi tiếp khi kênh ghi được
+            if (!pendingReplies.isEmpty() || channel.send(buffer, client) == 0) {
+                pendingReplies.offer(new PendingReply(buffer, client));
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                selector.wakeup();
+            } else {
+                bufferPool.release(buffer);
+            }
+
+            ServerLog.debug(logger, () -> "📤 Sent response to " + client.getAddress().getHostAddress());
+        }
+
+        private void flushPending() throws IOException {
+            PendingReply reply;
+            while ((reply = pendingReplies.peek()) != null) {
+                if (channel.send(reply.buffer(), reply.target()) == 0) {
+                    return;
+                }
+                pendingReplies.poll();
+                bufferPool.release(reply.buffer());
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // Worker có thể vừa thêm reply sau lần kiểm tra ở trên
+            if (!pendingReplies.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+}
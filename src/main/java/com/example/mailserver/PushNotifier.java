@@ -0,0 +1,148 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Thông báo thư mới cho client đã SUBSCRIBE, để client không phải hỏi lại danh sách liên tục.
+// Mỗi đăng ký gắn token phiên với endpoint UDP (địa chỉ + port nguồn của lệnh SUBSCRIBE), hết hạn sau TTL
+// nếu client không gửi lại SUBSCRIBE (keepalive); phiên đăng xuất hoặc hết hạn thì đăng ký cũng mất tác dụng.
+//
+// Thông báo là một datagram, không ACK, không gửi lại:
+//   NEW_MAIL|mốc trước|mốc mới|tên thư|tiêu đề
+// Client đang ở đúng "mốc trước" (xem GET_EMAILS_SINCE) thì thêm thư vào danh sách và chuyển sang "mốc mới";
+// ngược lại (mất thông báo, chỉ mục chưa nạp nên mốc rỗng, thông báo không kèm thư) thì đồng bộ lại.
+public class PushNotifier {
+    public static final String NEW_MAIL = "NEW_MAIL";
+    // Vừa một datagram trên đường truyền thông thường (không bị phân mảnh IP)
+    private static final int MAX_PUSH_BYTES = 1200;
+
+    public interface Sender {
+        void send(byte[] packet, InetSocketAddress client) throws IOException;
+    }
+
+    private static final class Subscription {
+        final String token;
+        volatile long expiresAt;
+
+        Subscription(String token, long expiresAt) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final SessionCache sessions;
+    private final long ttlNanos;
+    private final int maxPerAccount;
+    private final Consumer<String> logger;
+    private final Map<String, Map<InetSocketAddress, Subscription>> subscriptions = new ConcurrentHashMap<>();
+    // null khi server chưa chạy: thông báo bị bỏ, client sẽ đồng bộ khi đăng ký lại
+    private volatile Sender sender;
+    private volatile long lastSweep = System.nanoTime();
+
+    public PushNotifier(SessionCache sessions, long ttlSeconds, int maxPerAccount, Consumer<String> logger) {
+        this.sessions = sessions;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxPerAccount = Math.max(1, maxPerAccount);
+        this.logger = logger;
+    }
+
+    public static PushNotifier fromConfig(SessionCache sessions, Consumer<String> logger) {
+        return new PushNotifier(sessions, ServerConfig.SUBSCRIPTION_TTL_SECONDS, ServerConfig.MAX_SUBSCRIPTIONS,
+                logger);
+    }
+
+    public void setSender(Sender sender) {
+        this.sender = sender;
+    }
+
+    public long ttlSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(ttlNanos);
+    }
+
+    // Đăng ký mới hoặc gia hạn; trả về true nếu là đăng ký mới (client có thể đã bỏ lỡ thông báo)
+    public boolean subscribe(String account, String token, InetSocketAddress endpoint) {
+        long now = System.nanoTime();
+        if (now - lastSweep > ttlNanos) {
+            lastSweep = now;
+            sweep(now);
+        }
+        boolean[] created = new boolean[1];
+        // compute: không xen với sweep() đang bỏ map rỗng của cùng account
+        subscriptions.compute(account, (a, endpoints) -> {
+            Map<InetSocketAddress, Subscription> map = endpoints != null ? endpoints : new ConcurrentHashMap<>();
+            Subscription current = map.get(endpoint);
+            if (current != null && current.token.equals(token) && now - current.expiresAt < 0) {
+                current.expiresAt = now + ttlNanos;
+                return map;
+            }
+            if (current == null && map.size() >= maxPerAccount) {
+                map.values().stream().min(Comparator.comparingLong(s -> s.expiresAt - now))
+                        .ifPresent(oldest -> map.values().remove(oldest));
+            }
+            map.put(endpoint, new Subscription(token, now + ttlNanos));
+            created[0] = true;
+            return map;
+        });
+        return created[0];
+    }
+
+    public void unsubscribe(String account, InetSocketAddress endpoint) {
+        Map<InetSocketAddress, Subscription> endpoints = subscriptions.get(account);
+        if (endpoints != null) {
+            endpoints.remove(endpoint);
+        }
+    }
+
+    // change == null: chỉ mục của account chưa được nạp, client nhận mốc rỗng và tự đồng bộ
+    public void notify(String account, InboxIndex.Change change, InboxIndex.Entry entry) {
+        Map<InetSocketAddress, Subscription> endpoints = subscriptions.get(account);
+        Sender target = sender;
+        if (endpoints == null || endpoints.isEmpty() || target == null) {
+            return;
+        }
+        byte[] packet = packet(change, entry);
+        long now = System.nanoTime();
+        endpoints.forEach((endpoint, subscription) -> {
+            if (now - subscription.expiresAt >= 0 || !sessions.isActive(subscription.token)) {
+                endpoints.remove(endpoint, subscription);
+                return;
+            }
+            try {
+                target.send(packet, endpoint);
+            } catch (IOException e) {
+                logger.accept("⚠️ Cannot notify " + endpoint + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private static byte[] packet(InboxIndex.Change change, InboxIndex.Entry entry) {
+        String marks = NEW_MAIL + "|" + (change == null ? "" : change.previousMark())
+                + "|" + (change == null ? "" : change.mark());
+        byte[] packet = (marks + "|" + entry.filename() + "|" + entry.subject()).getBytes(StandardCharsets.UTF_8);
+        // Tiêu đề quá dài: chỉ báo có thư mới, client tải phần thay đổi bằng GET_EMAILS_SINCE
+        return packet.length <= MAX_PUSH_BYTES ? packet : marks.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Map<InetSocketAddress, Subscription> endpoints : subscriptions.values()) {
+            size += endpoints.size();
+        }
+        return size;
+    }
+
+    private void sweep(long now) {
+        for (String account : subscriptions.keySet()) {
+            subscriptions.computeIfPresent(account, (a, endpoints) -> {
+                endpoints.values().removeIf(subscription -> now - subscription.expiresAt >= 0);
+                return endpoints.isEmpty() ? null : endpoints;
+            });
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.mailserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cache reply đã mã hoá của GET_EMAIL, để thư được mở nhiều lần (thư gửi cho cả hệ thống...) không phải
+// đọc lại từ store mỗi lần. Mỗi thư có tối đa 3 dạng, cache riêng: reply văn bản (UTF-8), khung nhị phân,
+// khung đã nén; reply lấy từ cache được gửi thẳng ra socket, không mã hoá lại.
+// Giới hạn theo tổng số byte, bỏ dạng lâu không dùng nhất (LRU). Thư lớn hơn 1/8 dung lượng không được cache
+// để một thư lớn không đẩy hết các thư khác ra.
+// Server không sửa thư đã giao, nhưng file thư vẫn có thể bị ghi đè hoặc xoá từ bên ngoài: MailboxWatcher
+// báo từng thư bị đổi (invalidate(account, message)), còn store đổi mà không theo dõi được thì xoá theo account.
+public class ReplyCache {
+    public enum Form { TEXT, BINARY, DEFLATE }
+
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes, long capacity) {
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    private record Key(String account, String message, Form form) {
+    }
+
+    private record Value(byte[] reply, long weight) {
+    }
+
+    private final long capacity;
+    private final long maxEntryBytes;
+    private final Map<Key, Value> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    // Tăng mỗi lần xoá cache: reply đọc từ store trước lần xoá có thể đã cũ nên không được thêm vào
+    private long generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ReplyCache(long capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.maxEntryBytes = this.capacity / 8;
+    }
+
+    public static ReplyCache fromConfig() {
+        return new ReplyCache(ServerConfig.REPLY_CACHE_BYTES);
+    }
+
+    // Reply văn bản đã mã hoá UTF-8; null nếu chưa có trong cache
+    public byte[] text(String account, String message) {
+        return get(new Key(account, message, Form.TEXT));
+    }
+
+    public byte[] frame(String account, String message, boolean deflated) {
+        return get(new Key(account, message, deflated ? Form.DEFLATE : Form.BINARY));
+    }
+
+    private byte[] get(Key key) {
+        if (capacity == 0) {
+            return null;
+        }
+        Value value;
+        synchronized (this) {
+            value = entries.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return value.reply();
+    }
+
+    // Gọi trước khi đọc thư từ store; truyền kết quả vào putText/putFrame
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public void putText(String account, String message, byte[] reply, long generation) {
+        put(new Key(account, message, Form.TEXT), reply, generation);
+    }
+
+    public void putFrame(String account, String message, boolean deflated, byte[] frame, long generation) {
+        put(new Key(account, message, deflated ? Form.DEFLATE : Form.BINARY), frame, generation);
+    }
+
+    private synchronized void put(Key key, byte[] reply, long readGeneration) {
+        // Thêm phần tốn cố định của key, map entry và header mảng/chuỗi
+        long weight = reply.length + 2L * (key.account().length() + key.message().length()) + 128;
+        if (capacity == 0 || weight > maxEntryBytes || readGeneration != generation) {
+            return;
+        }
+        Value previous = entries.put(key, new Value(reply, weight));
+        if (previous != null) {
+            bytes -= previous.weight();
+        }
+        bytes += weight;
+        Iterator<Value> oldest = entries.values().iterator();
+        while (bytes > capacity && oldest.hasNext()) {
+            bytes -= oldest.next().weight();
+            oldest.remove();
+            evictions.increment();
+        }
+    }
+
+    // Một thư bị ghi đè hoặc xoá từ bên ngoài server: bỏ cả 3 dạng của nó
+    public synchronized void invalidate(String account, String message) {
+        generation++;
+        for (Form form : Form.values()) {
+            Value value = entries.remove(new Key(account, message, form));
+            if (value != null) {
+                bytes -= value.weight();
+            }
+        }
+    }
+
+    // Thư của account bị đổi/xoá từ bên ngoài server mà không biết là thư nào
+    public synchronized void invalidate(String account) {
+        generation++;
+        Iterator<Map.Entry<Key, Value>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Value> entry = it.next();
+            if (entry.getKey().account().equals(account)) {
+                bytes -= entry.getValue().weight();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    public Stats stats() {
+        int count;
+        long used;
+        synchronized (this) {
+            count = entries.size();
+            used = bytes;
+        }
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), count, used, capacity);
+    }
+}
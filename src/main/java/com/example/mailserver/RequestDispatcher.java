@@ -0,0 +1,157 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// Tách việc xử lý request khỏi thread nhận gói tin: vòng nhận chỉ decode rồi đưa vào đây,
+// handler chạy trên executor và gửi reply ngay từ worker thread.
+public class RequestDispatcher {
+
+    // client: địa chỉ và port nguồn của request (SUBSCRIBE dùng làm endpoint nhận thông báo).
+    // Reply văn bản được trả về đã mã hoá UTF-8: reply lấy từ ReplyCache đi thẳng ra socket
+    public interface RequestHandler {
+        byte[] handle(String request, InetSocketAddress client);
+    }
+
+    // Mọi reply (văn bản UTF-8 hoặc khung BinaryProtocol) đều đã được mã hoá sẵn thành bytes
+    public interface PacketSender {
+        void send(byte[] packet, InetSocketAddress client) throws IOException;
+    }
+
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private static final byte[] BUSY_RESPONSE = "ERROR|Server busy, try again".getBytes(StandardCharsets.UTF_8);
+
+    private final ExecutorService executor;
+    private final RequestHandler handler;
+    private final BinaryProtocol.Handler binaryHandler;
+    private final PacketSender sender;
+    private final Consumer<String> logger;
+    // Giới hạn số request đang chờ/đang chạy (virtual thread không có hàng đợi riêng)
+    private final Semaphore permits;
+    private final int capacity;
+
+    public RequestDispatcher(Mode mode, int workers, int queueCapacity,
+                             RequestHandler handler, PacketSender sender, Consumer<String> logger) {
+        this(mode, workers, queueCapacity, handler, null, sender, logger);
+    }
+
+    // binaryHandler = null: request nhị phân được trả lỗi "not supported"
+    public RequestDispatcher(Mode mode, int workers, int queueCapacity, RequestHandler handler,
+                             BinaryProtocol.Handler binaryHandler, PacketSender sender, Consumer<String> logger) {
+        this.handler = handler;
+        this.binaryHandler = binaryHandler;
+        this.sender = sender;
+        this.logger = logger;
+        this.capacity = workers + queueCapacity;
+        this.permits = new Semaphore(capacity);
+
+        if (mode == Mode.VIRTUAL) {
+            executor = Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("mail-handler-", 0).factory());
+        } else {
+            ThreadFactory factory = Thread.ofPlatform().name("mail-handler-", 0).daemon(true).factory();
+            executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), factory, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    public static RequestDispatcher fromConfig(RequestHandler handler, PacketSender sender, Consumer<String> logger) {
+        return fromConfig(ServerConfig.WORKER_THREADS, handler, sender, logger);
+    }
+
+    public static RequestDispatcher fromConfig(int workers, RequestHandler handler, PacketSender sender,
+                                               Consumer<String> logger) {
+        return fromConfig(workers, handler, null, sender, logger);
+    }
+
+    public static RequestDispatcher fromConfig(int workers, RequestHandler handler,
+                                               BinaryProtocol.Handler binaryHandler, PacketSender sender,
+                                               Consumer<String> logger) {
+        Mode mode = "virtual".equalsIgnoreCase(ServerConfig.EXECUTOR) ? Mode.VIRTUAL : Mode.PLATFORM;
+        return new RequestDispatcher(mode, workers, ServerConfig.QUEUE_CAPACITY, handler, binaryHandler, sender,
+                logger);
+    }
+
+    // Gọi từ thread nhận gói tin. Trả về false nếu quá tải (client đã được báo "Server busy").
+    public boolean dispatch(String request, InetSocketAddress client) {
+        return dispatch(request, client, sender, sender);
+    }
+
+    // replyTo: cách gửi reply riêng cho request này (VD: gửi theo fragment)
+    public boolean dispatch(String request, InetSocketAddress client, PacketSender replyTo) {
+        return dispatch(request, client, replyTo, sender);
+    }
+
+    // busyTo: cách báo "Server busy" cho request này; được gọi từ thread nhận gói tin nên không được chặn
+    public boolean dispatch(String request, InetSocketAddress client, PacketSender replyTo, PacketSender busyTo) {
+        return submit(client, () -> replyTo.send(handler.handle(request, client), client), busyTo);
+    }
+
+    // request phải không còn tham chiếu tới buffer nhận (xem BinaryProtocol.Request.detach())
+    public boolean dispatch(BinaryProtocol.Request request, InetSocketAddress client, PacketSender replyTo) {
+        return dispatch(request, client, replyTo, sender);
+    }
+
+    public boolean dispatch(BinaryProtocol.Request request, InetSocketAddress client, PacketSender replyTo,
+                            PacketSender busyTo) {
+        return submit(client, () -> {
+            byte[] response = binaryHandler == null
+                    ? BinaryProtocol.error("Binary protocol not supported")
+                    : binaryHandler.handle(request, client);
+            replyTo.send(response, client);
+        }, busyTo);
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private boolean submit(InetSocketAddress client, Task task, PacketSender busyTo) {
+        if (!permits.tryAcquire()) {
+            reject(client, busyTo);
+            return false;
+        }
+
+        try {
+            executor.execute(() -> process(task, client));
+            return true;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            reject(client, busyTo);
+            return false;
+        }
+    }
+
+    private void process(Task task, InetSocketAddress client) {
+        try {
+            task.run();
+        } catch (IOException e) {
+            logger.accept("❌ ERROR sending reply to " + client + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            logger.accept("❌ ERROR handling request: " + e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void reject(InetSocketAddress client, PacketSender busyTo) {
+        try {
+            busyTo.send(BUSY_RESPONSE, client);
+        } catch (IOException ignored) {
+        }
+        logger.accept("⚠️ Dispatch queue full, rejected request from " + client);
+    }
+
+    public int queueDepth() {
+        return capacity - permits.availablePermits();
+    }
+
+    // Không nhận thêm request; các request đang chạy vẫn được xử lý xong
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
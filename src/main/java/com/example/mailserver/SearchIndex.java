@@ -0,0 +1,587 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Chỉ mục tìm kiếm (SEARCH) cho từng account: term -> danh sách số thứ tự thư (posting list) chứa term đó.
+// Thư được đánh số 0, 1, 2... theo thứ tự vào chỉ mục (gần đúng thứ tự nhận), nên posting list luôn tăng dần
+// và được lưu dạng hiệu số varint (thường 1 byte/thư). Tìm kiếm = giao các posting list, bắt đầu từ list ngắn
+// nhất; kết quả mới nhất trước, phân trang bằng cursor là số thứ tự của thư cuối trang trước.
+//
+// Term: từ (chữ/số liên tiếp) viết thường, bỏ dấu tiếng Việt ("Chào" và "chao" là một term), lấy từ người gửi,
+// tiêu đề và nội dung thư. Term của người gửi và tiêu đề còn được lưu thêm một bản có tiền tố để tìm theo
+// trường: "from:an subject:họp báo cáo".
+//
+// Chỉ mục được cập nhật khi thư được giao (add), kể cả với account chưa nạp vào bộ nhớ. Có thư mục
+// (mailserver.searchDir, rỗng = chỉ trong bộ nhớ) thì mỗi account có 2 file:
+//   <account>.idx   bản đầy đủ: danh sách thư + posting list đã mã hoá, crc32 ở cuối; ghi qua file tạm rồi đổi tên
+//   <account>.log   các thư được thêm sau bản đầy đủ, mỗi bản ghi có độ dài + crc32; bản ghi hỏng ở cuối bị bỏ
+// Thread nền ghi log định kỳ và gộp log vào bản đầy đủ khi log đủ lớn. Khi nạp, thư có trong store nhưng thiếu
+// trong chỉ mục (server tắt trước khi kịp ghi, file hỏng...) được đọc và thêm vào, thư không còn trong store
+// thì bị bỏ khỏi kết quả.
+public class SearchIndex implements Closeable {
+    private static final int MAGIC = 0x4D534958; // "MSIX"
+    private static final int VERSION = 1;
+    private static final int MAX_TERM_LENGTH = 40;
+    private static final int MAX_QUERY_TERMS = 16;
+    // Log nhỏ hơn thì chưa gộp (tránh ghi lại cả chỉ mục lớn chỉ vì vài thư mới)
+    private static final long MIN_COMPACT_BYTES = 256 * 1024;
+    // Tiền tố của term chỉ thuộc một trường; term không tiền tố thuộc mọi trường
+    private static final String FROM = "\u0001";
+    private static final String SUBJECT = "\u0002";
+
+    public record Hit(String filename, String subject) {
+    }
+
+    // nextCursor rỗng nghĩa là đã hết; total là tổng số thư khớp
+    public record Result(List<Hit> hits, int total, String nextCursor) {
+    }
+
+    // Thư đã tách term, chờ được ghi vào log
+    private record Doc(String filename, String subject, Set<String> terms) {
+    }
+
+    // Posting list mã hoá varint theo hiệu số, chỉ thêm được số lớn hơn số cuối
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        int count;
+        int last = -1;
+
+        void add(int doc) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + 5, data.length * 2));
+            }
+            int delta = doc - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = doc;
+            count++;
+        }
+
+        int[] decode() {
+            int[] docs = new int[count];
+            int position = 0;
+            int doc = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                doc += delta;
+                docs[i] = doc;
+            }
+            return docs;
+        }
+    }
+
+    private static final class AccountIndex {
+        private final List<String> names = new ArrayList<>();
+        private final List<String> subjects = new ArrayList<>();
+        private final Map<String, Integer> byName = new HashMap<>();
+        private final Map<String, Postings> postings = new HashMap<>();
+        // Thư không còn trong store
+        private final BitSet deleted = new BitSet();
+        // Có thư chưa nằm trong file (thêm lúc nạp): lần ghi tới phải ghi lại bản đầy đủ
+        private boolean unsaved;
+
+        synchronized boolean add(Doc doc) {
+            if (byName.containsKey(doc.filename())) {
+                return false;
+            }
+            int id = names.size();
+            names.add(doc.filename());
+            subjects.add(doc.subject());
+            byName.put(doc.filename(), id);
+            for (String term : doc.terms()) {
+                postings.computeIfAbsent(term, t -> new Postings()).add(id);
+            }
+            return true;
+        }
+
+        synchronized boolean contains(String filename) {
+            return byName.containsKey(filename);
+        }
+
+        synchronized void retain(Set<String> present) {
+            deleted.clear();
+            for (int id = 0; id < names.size(); id++) {
+                if (!present.contains(names.get(id))) {
+                    deleted.set(id);
+                }
+            }
+        }
+
+        synchronized Result search(List<String> terms, int before, int limit) {
+            Postings[] lists = new Postings[terms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = postings.get(terms.get(i));
+                if (lists[i] == null) {
+                    return new Result(List.of(), 0, "");
+                }
+            }
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.count));
+            int[] matches = lists[0].decode();
+            int size = matches.length;
+            for (int i = 1; i < lists.length && size > 0; i++) {
+                size = intersect(matches, size, lists[i].decode());
+            }
+            int total = 0;
+            for (int i = 0; i < size; i++) {
+                if (!deleted.get(matches[i])) {
+                    matches[total++] = matches[i];
+                }
+            }
+
+            // Mới nhất trước: duyệt ngược từ thư đứng trước cursor
+            int end = Arrays.binarySearch(matches, 0, total, before);
+            end = end >= 0 ? end : -end - 1;
+            List<Hit> hits = new ArrayList<>(Math.min(limit, end));
+            int i = end - 1;
+            for (; i >= 0 && hits.size() < limit; i--) {
+                hits.add(new Hit(names.get(matches[i]), subjects.get(matches[i])));
+            }
+            String next = i >= 0 ? String.valueOf(matches[i + 1]) : "";
+            return new Result(hits, total, next);
+        }
+
+        // Giữ lại trong matches[0..size) các số có trong other; cả hai tăng dần
+        private static int intersect(int[] matches, int size, int[] other) {
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < size && j < other.length; i++) {
+                while (j < other.length && other[j] < matches[i]) {
+                    j++;
+                }
+                if (j < other.length && other[j] == matches[i]) {
+                    matches[kept++] = matches[i];
+                }
+            }
+            return kept;
+        }
+
+        synchronized byte[] serialize() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            for (int id = 0; id < names.size(); id++) {
+                writeString(out, names.get(id));
+                writeString(out, subjects.get(id));
+            }
+            out.writeInt(postings.size());
+            for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+                Postings list = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(list.count);
+                out.writeInt(list.last);
+                out.writeInt(list.length);
+                out.write(list.data, 0, list.length);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+            unsaved = false;
+            return bytes.toByteArray();
+        }
+
+        // Chỉ dùng khi nạp, trước khi chỉ mục được dùng chung
+        void deserialize(byte[] data) throws IOException {
+            if (data.length < 8) {
+                throw new IOException("Search index truncated");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            in.skipBytes(data.length - 8);
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("Search index checksum mismatch");
+            }
+            in = new DataInputStream(new ByteArrayInputStream(data, 0, data.length - 8));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown search index format");
+            }
+            int docs = in.readInt();
+            for (int id = 0; id < docs; id++) {
+                String name = readString(in);
+                names.add(name);
+                subjects.add(readString(in));
+                byName.put(name, id);
+            }
+            int terms = in.readInt();
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                Postings list = new Postings();
+                list.count = in.readInt();
+                list.last = in.readInt();
+                list.length = in.readInt();
+                if (list.count < 0 || list.length < list.count || list.length > in.available()
+                        || list.last >= docs) {
+                    throw new IOException("Corrupt posting list");
+                }
+                list.data = new byte[list.length];
+                in.readFully(list.data);
+                postings.put(term, list);
+            }
+        }
+
+        synchronized int size() {
+            return names.size();
+        }
+    }
+
+    private final MailboxStore store;
+    // null: chỉ giữ trong bộ nhớ
+    private final File dir;
+    private final Consumer<String> logger;
+    private final ConcurrentHashMap<String, AccountIndex> loaded = new ConcurrentHashMap<>();
+    // Thư đã được giao nhưng chưa ghi vào log của account
+    private final Map<String, List<Doc>> pending = new ConcurrentHashMap<>();
+    private final long flushSeconds;
+    // Chạy từ start(); guarded by this
+    private ScheduledExecutorService writer;
+
+    // Chưa ghi log định kỳ cho đến khi gọi start(), để thread ghi không thấy đối tượng đang khởi tạo dở
+    public SearchIndex(MailboxStore store, File dir, long flushSeconds, Consumer<String> logger) {
+        this.store = store;
+        this.dir = dir;
+        this.flushSeconds = Math.max(1, flushSeconds);
+        this.logger = logger;
+    }
+
+    public static SearchIndex fromConfig(MailboxStore store, Consumer<String> logger) {
+        return new SearchIndex(store, ServerConfig.SEARCH_DIR.isEmpty() ? null : new File(ServerConfig.SEARCH_DIR),
+                ServerConfig.SEARCH_FLUSH_SECONDS, logger).start();
+    }
+
+    // Ghi thư mới vào log của account mỗi flushSeconds (chỉ khi có thư mục lưu)
+    public synchronized SearchIndex start() {
+        if (dir != null && writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "mail-search-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+        }
+        return this;
+    }
+
+    // Thư mới được giao (gọi dưới khóa ghi của mailbox)
+    public void add(String account, InboxIndex.Entry entry, String content) {
+        Doc doc = document(entry, content);
+        AccountIndex index = loaded.get(account);
+        if (index != null) {
+            index.add(doc);
+        }
+        if (dir != null) {
+            pending.compute(account, (a, docs) -> {
+                List<Doc> list = docs != null ? docs : new ArrayList<>();
+                list.add(doc);
+                return list;
+            });
+        }
+    }
+
+    // cursor rỗng = trang đầu tiên
+    public Result search(String account, String query, String cursor, int limit) throws IOException {
+        List<String> terms = parseQuery(query);
+        int before = Integer.MAX_VALUE;
+        if (cursor != null && !cursor.isEmpty()) {
+            try {
+                before = Integer.parseInt(cursor);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor");
+            }
+        }
+        return index(account).search(terms, before, Math.max(1, limit));
+    }
+
+    // Mailbox bị đổi từ bên ngoài: lần tìm kiếm sau nạp lại và đối chiếu với store
+    public void invalidate(String account) {
+        loaded.remove(account);
+    }
+
+    private AccountIndex index(String account) throws IOException {
+        AccountIndex index = loaded.get(account);
+        if (index != null) {
+            return index;
+        }
+        if (!store.hasAccount(account)) {
+            return new AccountIndex();
+        }
+        try {
+            return loaded.computeIfAbsent(account, this::load);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private AccountIndex load(String account) {
+        AccountIndex index = new AccountIndex();
+        if (dir != null) {
+            File base = file(account, ".idx");
+            try {
+                if (base.isFile()) {
+                    index.deserialize(Files.readAllBytes(base.toPath()));
+                }
+            } catch (IOException e) {
+                logger.accept("⚠️ Rebuilding search index of " + account + ": " + e.getMessage());
+                index = new AccountIndex();
+            }
+            readLog(index, file(account, ".log"));
+        }
+        try {
+            List<String> names = store.listMessages(account);
+            index.retain(new HashSet<>(names));
+            List<String> missing = new ArrayList<>();
+            for (String name : names) {
+                if (!index.contains(name)) {
+                    missing.add(name);
+                }
+            }
+            // Thư cũ trước để số thứ tự trong chỉ mục theo thứ tự nhận
+            missing.sort(Comparator.comparingLong((String name) -> InboxIndex.timestampOf(name, ""))
+                    .thenComparing(Comparator.naturalOrder()));
+            for (String name : missing) {
+                String content = store.read(account, name);
+                if (content != null) {
+                    index.add(document(InboxIndex.parseEntry(name, content), content));
+                }
+            }
+            if (missing.size() > 1) {
+                logger.accept("🔎 Indexed " + missing.size() + " emails of " + account + " for search");
+            }
+            if (!missing.isEmpty()) {
+                index.unsaved = true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return index;
+    }
+
+    // Ghi thư mới vào log; gộp vào bản đầy đủ khi log lớn hoặc có thư chỉ nằm trong bộ nhớ
+    public synchronized void flush() {
+        if (dir == null) {
+            return;
+        }
+        for (String account : new ArrayList<>(pending.keySet())) {
+            List<Doc> docs = pending.remove(account);
+            if (docs == null) {
+                continue;
+            }
+            try {
+                appendLog(file(account, ".log"), docs);
+            } catch (IOException e) {
+                logger.accept("⚠️ Cannot save search index of " + account + ": " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, AccountIndex> entry : loaded.entrySet()) {
+            String account = entry.getKey();
+            AccountIndex index = entry.getValue();
+            File base = file(account, ".idx");
+            File log = file(account, ".log");
+            boolean unsaved;
+            synchronized (index) {
+                unsaved = index.unsaved;
+            }
+            if (!unsaved && log.length() <= Math.max(MIN_COMPACT_BYTES, base.length() / 4)) {
+                continue;
+            }
+            try {
+                // Mọi thư trong log đã có trong chỉ mục đang nạp (thư giao sau khi nạp được add() thêm vào).
+                // write() đã fsync .idx mới nên xoá log sau đó là an toàn
+                write(base, index.serialize());
+                Files.deleteIfExists(log.toPath());
+            } catch (IOException e) {
+                logger.accept("⚠️ Cannot save search index of " + account + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void appendLog(File file, List<Doc> docs) throws IOException {
+        file.getParentFile().mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, true)))) {
+            for (Doc doc : docs) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                DataOutputStream record = new DataOutputStream(bytes);
+                writeString(record, doc.filename());
+                writeString(record, doc.subject());
+                record.writeInt(doc.terms().size());
+                for (String term : doc.terms()) {
+                    record.writeUTF(term);
+                }
+                record.flush();
+                CRC32 crc = new CRC32();
+                crc.update(bytes.toByteArray());
+                out.writeInt(bytes.size());
+                out.writeInt((int) crc.getValue());
+                bytes.writeTo(out);
+            }
+        }
+    }
+
+    // Dừng ở bản ghi hỏng/thiếu đầu tiên (server tắt giữa lúc ghi); thư còn thiếu được đọc lại từ store
+    private static void readLog(AccountIndex index, File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length = in.readInt();
+                int expected = in.readInt();
+                if (length < 0 || length > 64 * 1024 * 1024) {
+                    return;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != expected) {
+                    return;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+                String filename = readString(record);
+                String subject = readString(record);
+                int count = record.readInt();
+                Set<String> terms = new HashSet<>(Math.max(16, count * 2));
+                for (int i = 0; i < count; i++) {
+                    terms.add(record.readUTF());
+                }
+                index.add(new Doc(filename, subject, terms));
+            }
+        } catch (IOException e) {
+            // Hết file (EOF) hoặc bản ghi cuối bị cắt
+        }
+    }
+
+    private static Doc document(InboxIndex.Entry entry, String content) {
+        Set<String> terms = new HashSet<>();
+        tokenize(entry.sender(), "", terms);
+        tokenize(entry.sender(), FROM, terms);
+        tokenize(entry.subject(), "", terms);
+        tokenize(entry.subject(), SUBJECT, terms);
+        int separator = content.indexOf(MailMessage.SEPARATOR);
+        tokenize(separator < 0 ? content : content.substring(separator + MailMessage.SEPARATOR.length()), "",
+                terms);
+        return new Doc(entry.filename(), entry.subject(), terms);
+    }
+
+    // "from:an subject:họp báo cáo" -> các term phải có trong thư
+    static List<String> parseQuery(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("from:")) {
+                tokenize(word.substring(5), FROM, terms);
+            } else if (lower.startsWith("subject:")) {
+                tokenize(word.substring(8), SUBJECT, terms);
+            } else {
+                tokenize(word, "", terms);
+            }
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("Empty search query");
+        }
+        if (terms.size() > MAX_QUERY_TERMS) {
+            throw new IllegalArgumentException("Too many search terms");
+        }
+        return new ArrayList<>(terms);
+    }
+
+    static void tokenize(String text, String prefix, Set<String> terms) {
+        // NFD tách dấu khỏi chữ cái: "ờ" -> "o" + dấu, dấu bị bỏ
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder term = new StringBuilder(prefix);
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                term.append(c == 'đ' || c == 'Đ' ? 'd' : Character.toLowerCase(c));
+            } else if (term.length() > prefix.length()) {
+                if (term.length() - prefix.length() <= MAX_TERM_LENGTH) {
+                    terms.add(term.toString());
+                }
+                term.setLength(prefix.length());
+            }
+        }
+    }
+
+    // Tên file an toàn cho mọi tên account
+    private File file(String account, String suffix) {
+        return new File(dir, URLEncoder.encode(account, StandardCharsets.UTF_8).replace(".", "%2E")
+                .replace("*", "%2A") + suffix);
+    }
+
+    // File tạm được fsync trước khi đổi tên, thư mục sau đó: flush() chỉ xoá .log khi hàm này trả về,
+    // nên sau khi mất điện không thể còn .idx rỗng/cũ mà .log chứa phần còn thiếu đã bị xoá
+    private static void write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        FileSync.forceDirectory(file.getParentFile().toPath());
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt search index string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (writer != null) {
+                writer.shutdownNow();
+                writer = null;
+            }
+        }
+        flush();
+    }
+}
@@ -0,0 +1,331 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Backend "segment": thư của mỗi account được ghi nối tiếp vào các file segment
+// (<root>/<user>/seg-000000.log, ...), vị trí từng thư lưu trong file chỉ mục index.idx.
+// Đọc thư bằng mmap vùng segment tương ứng, không mở/đóng file cho mỗi lần đọc; segment đang ghi và
+// index của mỗi account cũng được giữ mở cho đến khi chuyển segment hoặc đóng store.
+// Segment được map theo từng cửa sổ MAP_WINDOW: segment đang ghi dài thêm chỉ phải map lại cửa sổ cuối.
+public class SegmentMailboxStore implements MailboxStore {
+    private static final String INDEX_FILE = "index.idx";
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long MAP_WINDOW = 4L * 1024 * 1024;
+
+    private record Location(int segment, long offset, int length) {
+    }
+
+    private final File rootDir;
+    private final long segmentSize;
+    private final ConcurrentHashMap<String, AccountSegments> accounts = new ConcurrentHashMap<>();
+    // Segment và index đã ghi nhưng chưa fsync
+    private final Set<Path> dirty = ConcurrentHashMap.newKeySet();
+
+    public SegmentMailboxStore(File rootDir, long segmentSize) {
+        this.rootDir = rootDir;
+        // Mỗi segment được map thành một MappedByteBuffer nên không vượt quá 2GB
+        this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+        rootDir.mkdirs();
+    }
+
+    @Override
+    public void createAccount(String account) {
+        new File(rootDir, account).mkdirs();
+    }
+
+    @Override
+    public boolean hasAccount(String account) {
+        return new File(rootDir, account).isDirectory();
+    }
+
+    @Override
+    public List<String> listAccounts() {
+        List<String> result = new ArrayList<>();
+        File[] dirs = rootDir.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                result.add(dir.getName());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void append(String account, String messageName, String content) throws IOException {
+        segments(account, true).append(messageName, Compression.encodeStored(content));
+    }
+
+    @Override
+    public String read(String account, String messageName) throws IOException {
+        AccountSegments segments = segments(account, false);
+        ByteBuffer data = segments == null ? null : segments.slice(messageName);
+        return data == null ? null : Compression.decodeStored(data);
+    }
+
+    @Override
+    public List<String> listMessages(String account) throws IOException {
+        AccountSegments segments = segments(account, false);
+        return segments == null ? new ArrayList<>() : segments.names();
+    }
+
+    @Override
+    public int countMessages(String account) throws IOException {
+        AccountSegments segments = segments(account, false);
+        return segments == null ? 0 : segments.count();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        FileSync.force(dirty);
+    }
+
+    @Override
+    public void close() {
+        for (AccountSegments segments : accounts.values()) {
+            segments.close();
+        }
+        accounts.clear();
+    }
+
+    // create = false: account chưa có thư mục thì trả về null, không giữ trạng thái rỗng trong bộ nhớ
+    private AccountSegments segments(String account, boolean create) throws IOException {
+        AccountSegments existing = accounts.get(account);
+        if (existing != null) {
+            return existing;
+        }
+        if (!create && !new File(rootDir, account).isDirectory()) {
+            return null;
+        }
+        try {
+            return accounts.computeIfAbsent(account, name -> {
+                try {
+                    return new AccountSegments(new File(rootDir, name));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class AccountSegments {
+        private final File dir;
+        private final LinkedHashMap<String, Location> locations = new LinkedHashMap<>();
+        // Khóa: (segment << 32) | số thứ tự cửa sổ
+        private final Map<Long, MappedByteBuffer> mapped = new HashMap<>();
+        private int activeSegment;
+        // Mở khi ghi thư đầu tiên, đóng khi chuyển segment (segmentChannel) hoặc khi đóng store
+        private FileChannel segmentChannel;
+        private FileChannel indexChannel;
+        private boolean closed;
+
+        AccountSegments(File dir) throws IOException {
+            this.dir = dir;
+            loadIndex();
+
+            File[] segmentFiles = dir.listFiles((d, n) -> n.startsWith(SEGMENT_PREFIX) && n.endsWith(SEGMENT_SUFFIX));
+            if (segmentFiles != null) {
+                for (File file : segmentFiles) {
+                    String number = file.getName().substring(SEGMENT_PREFIX.length(),
+                            file.getName().length() - SEGMENT_SUFFIX.length());
+                    activeSegment = Math.max(activeSegment, Integer.parseInt(number));
+                }
+            }
+        }
+
+        // Mỗi bản ghi chỉ mục: segment (int), offset (long), length (int), tên thư (UTF)
+        private void loadIndex() throws IOException {
+            File indexFile = new File(dir, INDEX_FILE);
+            if (!indexFile.exists()) {
+                return;
+            }
+
+            long validLength = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                while (true) {
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    String name = in.readUTF();
+                    locations.put(name, new Location(segment, offset, length));
+                    validLength += 16 + 2 + utfLength(name);
+                }
+            } catch (EOFException e) {
+                // Hết file, hoặc bản ghi cuối bị ghi dở khi server dừng đột ngột
+            }
+
+            if (validLength < indexFile.length()) {
+                try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+            }
+        }
+
+        synchronized void append(String name, byte[] data) throws IOException {
+            if (closed) {
+                throw new IOException("Mailbox store is closed");
+            }
+            dir.mkdirs();
+            long offset = activeChannel().size();
+            if (offset > 0 && offset + data.length > segmentSize) {
+                segmentChannel.close();
+                activeSegment++;
+                segmentChannel = openSegment(segmentPath(activeSegment));
+                offset = 0;
+            }
+            write(segmentChannel, ByteBuffer.wrap(data), offset);
+
+            // Ghi chỉ mục sau dữ liệu: nếu dừng giữa chừng, thư chưa có trong chỉ mục chứ không hỏng
+            ByteArrayOutputStream record = new ByteArrayOutputStream(32 + name.length());
+            try (DataOutputStream out = new DataOutputStream(record)) {
+                out.writeInt(activeSegment);
+                out.writeLong(offset);
+                out.writeInt(data.length);
+                out.writeUTF(name);
+            }
+            Path indexPath = new File(dir, INDEX_FILE).toPath();
+            if (indexChannel == null || !indexChannel.isOpen()) {
+                indexChannel = openAppend(indexPath);
+            }
+            write(indexChannel, ByteBuffer.wrap(record.toByteArray()));
+
+            locations.put(name, new Location(activeSegment, offset, data.length));
+            dirty.add(segmentPath(activeSegment));
+            dirty.add(indexPath);
+        }
+
+        // Đóng channel và bỏ các vùng đã map (được giải phóng khi GC thu hồi buffer)
+        synchronized void close() {
+            closed = true;
+            closeQuietly(segmentChannel);
+            closeQuietly(indexChannel);
+            segmentChannel = null;
+            indexChannel = null;
+            mapped.clear();
+        }
+
+        ByteBuffer slice(String name) throws IOException {
+            Location location;
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Mailbox store is closed");
+                }
+                location = locations.get(name);
+                if (location == null) {
+                    return null;
+                }
+                buffer = mapping(location);
+            }
+
+            int start = (int) (location.offset() % MAP_WINDOW);
+            ByteBuffer view = buffer.duplicate();
+            view.position(start);
+            view.limit(start + location.length());
+            return view;
+        }
+
+        // Cửa sổ chứa đầu thư, kéo dài nếu thư vượt qua cuối cửa sổ. Cửa sổ cuối của segment đang ghi
+        // có thể còn ngắn hơn MAP_WINDOW: chỉ map lại cửa sổ đó khi thư mới nằm ngoài phần đã map
+        private MappedByteBuffer mapping(Location location) throws IOException {
+            long window = location.offset() / MAP_WINDOW;
+            long key = ((long) location.segment() << 32) | window;
+            long start = window * MAP_WINDOW;
+            long end = location.offset() + location.length();
+            MappedByteBuffer buffer = mapped.get(key);
+            if (buffer == null || start + buffer.capacity() < end) {
+                if (location.segment() == activeSegment) {
+                    buffer = map(activeChannel(), start, end);
+                } else {
+                    try (FileChannel channel = FileChannel.open(segmentPath(location.segment()),
+                            StandardOpenOption.READ)) {
+                        buffer = map(channel, start, end);
+                    }
+                }
+                mapped.put(key, buffer);
+            }
+            return buffer;
+        }
+
+        private MappedByteBuffer map(FileChannel channel, long start, long end) throws IOException {
+            long size = Math.max(end, Math.min(start + MAP_WINDOW, channel.size())) - start;
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+
+        // Channel bị đóng do thread ghi bị interrupt thì mở lại
+        private FileChannel activeChannel() throws IOException {
+            if (segmentChannel == null || !segmentChannel.isOpen()) {
+                segmentChannel = openSegment(segmentPath(activeSegment));
+            }
+            return segmentChannel;
+        }
+
+        synchronized List<String> names() {
+            return new ArrayList<>(locations.keySet());
+        }
+
+        synchronized int count() {
+            return locations.size();
+        }
+
+        private Path segmentPath(int segment) {
+            return new File(dir, String.format("%s%06d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX)).toPath();
+        }
+    }
+
+    // Segment đang ghi còn được đọc qua channel này (mapping()) nên cần quyền READ, mà READ không dùng
+    // chung được với APPEND: append() ghi theo vị trí cuối file, trong khi đang giữ khóa của account
+    private static FileChannel openSegment(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static FileChannel openAppend(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
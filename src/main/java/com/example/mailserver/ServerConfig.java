@@ -0,0 +1,98 @@
+package com.example.mailserver;
+
+// Cấu hình server, đọc từ system properties (VD: -Dmailserver.executor=virtual)
+public final class ServerConfig {
+    // "platform" = pool thread cố định có hàng đợi giới hạn, "virtual" = virtual thread cho mỗi request
+    public static final String EXECUTOR = System.getProperty("mailserver.executor", "platform");
+    public static final int WORKER_THREADS = Integer.getInteger("mailserver.workers",
+            Runtime.getRuntime().availableProcessors());
+    public static final int QUEUE_CAPACITY = Integer.getInteger("mailserver.queue", 1024);
+
+    // "socket" = DatagramSocket như cũ, "nio" = DatagramChannel + Selector với buffer pool
+    public static final String TRANSPORT = System.getProperty("mailserver.transport", "socket");
+    // Đủ cho một datagram UDP lớn nhất (65507 byte payload)
+    public static final int PACKET_BUFFER_SIZE = 64 * 1024;
+    public static final int BUFFER_POOL_SIZE = Integer.getInteger("mailserver.bufferPool", 64);
+    // Số channel NIO cùng bind vào port (SO_REUSEPORT), worker được chia đều cho các shard
+    public static final int SHARDS = Integer.getInteger("mailserver.shards", 1);
+    // Giới hạn bộ nhớ cho một request/reply truyền theo fragment
+    public static final long MAX_TRANSFER_SIZE = Long.getLong("mailserver.maxTransfer", 64L * 1024 * 1024);
+    // Giới hạn request FRAG đang ghép dở (mỗi transport/shard): số transfer và số byte, theo từng IP nguồn và tổng
+    public static final int MAX_INBOUND_PER_CLIENT = Integer.getInteger("mailserver.maxInboundPerClient", 16);
+    public static final int MAX_INBOUND = Integer.getInteger("mailserver.maxInbound", 1024);
+    public static final long MAX_INBOUND_BYTES_PER_CLIENT = Long.getLong("mailserver.maxInboundBytesPerClient",
+            MAX_TRANSFER_SIZE);
+    public static final long MAX_INBOUND_BYTES = Long.getLong("mailserver.maxInboundBytes", 4 * MAX_TRANSFER_SIZE);
+
+    // Số khóa mailbox (striped, làm tròn lên lũy thừa 2): càng nhiều thì hai account khác nhau càng ít
+    // khi rơi vào cùng một khóa
+    public static final int LOCK_STRIPES = Integer.getInteger("mailserver.lockStripes", 4096);
+
+    // ID thư (MessageIdGenerator): nodeId phải khác nhau giữa các server dùng chung dữ liệu
+    // (-1 = lấy từ hostname); file lưu mốc thời gian đã cấp để ID không lặp lại sau khi khởi động lại
+    public static final int NODE_ID = Integer.getInteger("mailserver.nodeId", -1);
+    public static final String MESSAGE_ID_FILE = System.getProperty("mailserver.messageIdFile", "message-id.state");
+
+    // "file" = mỗi thư một file trong accounts/<user>/, "segment" = SegmentMailboxStore
+    public static final String STORE = System.getProperty("mailserver.store", "file");
+    public static final String ACCOUNTS_DIR = System.getProperty("mailserver.accountsDir", "accounts/");
+    public static final String SEGMENT_DIR = System.getProperty("mailserver.segmentDir", "mailstore/");
+    public static final long SEGMENT_SIZE = Long.getLong("mailserver.segmentSize", 64L * 1024 * 1024);
+
+    // Journal ghi thư trước khi vào store: "none" = không fsync, không chờ; "batch" = chờ fsync chung
+    // của cả lô (group commit); "per-message" = fsync riêng từng thư. Reply chỉ được gửi sau mốc này.
+    public static final String DURABILITY = System.getProperty("mailserver.durability", "batch");
+    public static final String JOURNAL_DIR = System.getProperty("mailserver.journalDir", "journal/");
+    // Thời gian gom thêm thư vào lô sau thư đầu tiên; 0 = chỉ gom các thư đến trong lúc fsync lô trước
+    public static final long JOURNAL_WINDOW_MICROS = Long.getLong("mailserver.journalWindowMicros", 0);
+    public static final long JOURNAL_SIZE = Long.getLong("mailserver.journalSize", 64L * 1024 * 1024);
+
+    // Nén DEFLATE (Compression): trên đường truyền khi client đề xuất qua HELLO, trong store khi bật storeCompression
+    // (thư cũ không nén vẫn đọc được); dữ liệu nhỏ hơn ngưỡng (byte) được gửi/lưu nguyên dạng
+    public static final boolean WIRE_COMPRESSION = Boolean.parseBoolean(
+            System.getProperty("mailserver.wireCompression", "true"));
+    public static final boolean STORE_COMPRESSION = Boolean.getBoolean("mailserver.storeCompression");
+    public static final int COMPRESSION_THRESHOLD = Integer.getInteger("mailserver.compressionThreshold", 256);
+
+    // Cache reply của GET_EMAIL (ReplyCache), tính theo byte; 0 = tắt
+    public static final long REPLY_CACHE_BYTES = Long.getLong("mailserver.replyCacheBytes", 64L * 1024 * 1024);
+
+    // Catalog (account, số thư, chỉ mục) nạp khi khởi động thay vì duyệt store; ghi lại định kỳ và khi tắt
+    public static final String CATALOG_FILE = System.getProperty("mailserver.catalogFile", "catalog.bin");
+    public static final long CATALOG_INTERVAL_SECONDS = Long.getLong("mailserver.catalogInterval", 60);
+
+    // Chỉ mục tìm kiếm (SearchIndex): thư mục lưu (rỗng = chỉ trong bộ nhớ) và chu kỳ ghi thư mới ra đĩa (giây)
+    public static final String SEARCH_DIR = System.getProperty("mailserver.searchDir", "search-index/");
+    public static final long SEARCH_FLUSH_SECONDS = Long.getLong("mailserver.searchFlushInterval", 30);
+
+    // GET_EMAILS_SINCE: mỗi account nhớ ít nhất bấy nhiêu thư được thêm gần nhất,
+    // mốc cũ hơn thì client nhận lại toàn bộ hộp thư
+    public static final int INBOX_DELTA_HISTORY = Integer.getInteger("mailserver.inboxDeltaHistory", 1024);
+
+    // Gửi một thư cho nhiều người nhận: số thread ghi mailbox song song và số người nhận tối đa
+    public static final int DELIVERY_THREADS = Integer.getInteger("mailserver.deliveryThreads",
+            Runtime.getRuntime().availableProcessors() * 2);
+    public static final int MAX_RECIPIENTS = Integer.getInteger("mailserver.maxRecipients", 10_000);
+
+    // Log: mức tối thiểu (DEBUG gồm cả dòng cho từng gói tin, tắt mặc định), số dòng giữ trên GUI,
+    // file log (rỗng = không ghi file) xoay vòng theo kích thước
+    public static final String LOG_LEVEL = System.getProperty("mailserver.logLevel", "INFO");
+    public static final int LOG_RING_SIZE = Integer.getInteger("mailserver.logRing", 64 * 1024);
+    public static final int LOG_VIEW_LINES = Integer.getInteger("mailserver.logViewLines", 1000);
+    public static final String LOG_FILE = System.getProperty("mailserver.logFile", "");
+    public static final long LOG_FILE_SIZE = Long.getLong("mailserver.logFileSize", 10L * 1024 * 1024);
+    public static final int LOG_FILES = Integer.getInteger("mailserver.logFiles", 5);
+
+    // Mật khẩu băm PBKDF2 với số vòng lặp này; phiên đăng nhập hết hạn sau thời gian không dùng
+    public static final int PASSWORD_ITERATIONS = Integer.getInteger("mailserver.passwordIterations", 310_000);
+    public static final long SESSION_TTL_SECONDS = Long.getLong("mailserver.sessionTtl", 30 * 60);
+    public static final int MAX_SESSIONS = Integer.getInteger("mailserver.maxSessions", 100_000);
+
+    // Thông báo thư mới (SUBSCRIBE): đăng ký hết hạn nếu client không gửi lại trong thời gian này;
+    // mỗi account giữ tối đa bấy nhiêu endpoint (đăng ký sắp hết hạn nhất bị thay khi đầy)
+    public static final long SUBSCRIPTION_TTL_SECONDS = Long.getLong("mailserver.subscriptionTtl", 90);
+    public static final int MAX_SUBSCRIPTIONS = Integer.getInteger("mailserver.maxSubscriptions", 8);
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.mailserver;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Log bất đồng bộ: thread gọi log() chỉ đặt bản ghi vào ring buffer (không khóa, không chờ),
+// một thread nền format rồi ghi ra file (nếu bật, có xoay vòng) và vào hàng đợi hiển thị.
+// GUI lấy các dòng mới theo lô (takeViewLines) ở tốc độ khung hình cố định.
+// Ring buffer đầy thì bản ghi bị bỏ và được đếm trong dropped().
+// Là Consumer<String> để truyền thẳng cho transport/dispatcher; dòng log từng gói tin nên đi qua
+// debug(logger, supplier) để không tạo chuỗi khi DEBUG đang tắt.
+public class ServerLog implements Closeable, Consumer<String> {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR;
+
+        public static Level parse(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private record Entry(long time, Level level, String message) {
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final long IDLE_PARK_NANOS = 2_000_000;
+
+    private final Ring ring;
+    private final int viewCapacity;
+    // Các dòng đã format, chờ GUI lấy; giữ tối đa viewCapacity dòng mới nhất
+    private final ArrayDeque<String> viewLines = new ArrayDeque<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread drainThread;
+    private final RotatingFile file;
+    private volatile Level level;
+    private volatile boolean running = true;
+
+    public ServerLog(int ringCapacity, int viewCapacity, Level level, File logFile, long maxFileSize, int maxFiles) {
+        this.ring = new Ring(ringCapacity);
+        this.viewCapacity = viewCapacity;
+        this.level = level;
+        this.file = logFile == null ? null : new RotatingFile(logFile, maxFileSize, maxFiles);
+        this.drainThread = new Thread(this::drainLoop, "mail-log-drain");
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+    }
+
+    public static ServerLog fromConfig() {
+        String path = ServerConfig.LOG_FILE;
+        return new ServerLog(ServerConfig.LOG_RING_SIZE, ServerConfig.LOG_VIEW_LINES,
+                Level.parse(ServerConfig.LOG_LEVEL), path.isEmpty() ? null : new File(path),
+                ServerConfig.LOG_FILE_SIZE, ServerConfig.LOG_FILES);
+    }
+
+    // Mức được suy ra từ ký hiệu đầu dòng mà các lớp của server dùng thống nhất:
+    // ❌ lỗi, ⚠️ cảnh báo, 📨/📤 từng gói tin (DEBUG), còn lại INFO
+    public void log(String message) {
+        log(levelOf(message), message);
+    }
+
+    @Override
+    public void accept(String message) {
+        log(message);
+    }
+
+    public void log(Level messageLevel, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        if (!ring.offer(new Entry(System.currentTimeMillis(), messageLevel, message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    // Dòng log DEBUG (📨/📤 từng gói tin) chỉ được format khi mức DEBUG đang bật. logger không phải
+    // ServerLog (VD: công cụ chạy không có GUI) thì luôn được gọi.
+    public static void debug(Consumer<String> logger, Supplier<String> message) {
+        if (!(logger instanceof ServerLog log) || log.isEnabled(Level.DEBUG)) {
+            logger.accept(message.get());
+        }
+    }
+
+    static Level levelOf(String message) {
+        if (message.startsWith("❌")) {
+            return Level.ERROR;
+        }
+        if (message.startsWith("⚠️")) {
+            return Level.WARN;
+        }
+        if (message.startsWith("📨") || message.startsWith("📤")) {
+            return Level.DEBUG;
+        }
+        return Level.INFO;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level level() {
+        return level;
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    // Lấy các dòng mới kể từ lần gọi trước (gọi từ FX thread mỗi khung hình)
+    public int takeViewLines(List<String> out) {
+        synchronized (viewLines) {
+            int count = viewLines.size();
+            out.addAll(viewLines);
+            viewLines.clear();
+            return count;
+        }
+    }
+
+    private void drainLoop() {
+        StringBuilder line = new StringBuilder(256);
+        while (running || !ring.isEmpty()) {
+            Entry entry = ring.poll();
+            if (entry == null) {
+                flushFile();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+
+            line.setLength(0);
+            line.append('[');
+            TIME.formatTo(Instant.ofEpochMilli(entry.time()), line);
+            line.append("] ").append(entry.message());
+            String formatted = line.toString();
+
+            synchronized (viewLines) {
+                if (viewLines.size() == viewCapacity) {
+                    viewLines.pollFirst();
+                }
+                viewLines.addLast(formatted);
+            }
+            if (file != null) {
+                file.write(formatted);
+            }
+        }
+        flushFile();
+    }
+
+    private void flushFile() {
+        if (file != null) {
+            file.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            drainThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    // Hàng đợi vòng giới hạn nhiều producer / một consumer: mỗi ô có số thứ tự riêng,
+    // producer giành ô bằng CAS trên tail, consumer (thread drain) chỉ đọc tuần tự.
+    private static final class Ring {
+        private final Entry[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private long head;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new Entry[size];
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        boolean offer(Entry entry) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long diff = sequences.get(index) - position;
+                if (diff == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        slots[index] = entry;
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (diff < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        Entry poll() {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            Entry entry = slots[index];
+            slots[index] = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            return entry;
+        }
+
+        boolean isEmpty() {
+            return sequences.get((int) head & mask) != head + 1;
+        }
+    }
+
+    // server.log -> server.log.1 -> ... -> server.log.<maxFiles-1>, file cũ nhất bị xoá
+    private static final class RotatingFile {
+        private final File file;
+        private final long maxSize;
+        private final int maxFiles;
+        private Writer writer;
+        private long size;
+
+        RotatingFile(File file, long maxSize, int maxFiles) {
+            this.file = file;
+            this.maxSize = maxSize;
+            this.maxFiles = Math.max(1, maxFiles);
+        }
+
+        void write(String line) {
+            try {
+                if (writer == null) {
+                    open();
+                }
+                writer.write(line);
+                writer.write('\n');
+                // size được tính theo byte (khởi tạo từ độ dài file), không theo số ký tự
+                size += utf8Length(line) + 1;
+                if (size >= maxSize) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                // Không ghi được file log thì vẫn còn log trên GUI
+                close();
+            }
+        }
+
+        // Số byte UTF-8 của line mà không phải mã hóa ra mảng; cặp surrogate (emoji) là 4 byte
+        private static long utf8Length(String line) {
+            long length = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < line.length()
+                        && Character.isLowSurrogate(line.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        private void open() throws IOException {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            size = file.length();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8), 64 * 1024);
+        }
+
+        private void rotate() throws IOException {
+            writer.close();
+            writer = null;
+            new File(file.getPath() + "." + (maxFiles - 1)).delete();
+            for (int i = maxFiles - 2; i >= 1; i--) {
+                new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+            if (maxFiles > 1) {
+                file.renameTo(new File(file.getPath() + ".1"));
+            } else {
+                file.delete();
+            }
+        }
+
+        void flush() {
+            try {
+                if (writer != null) {
+                    writer.flush();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+}
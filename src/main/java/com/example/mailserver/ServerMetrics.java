@@ -0,0 +1,102 @@
+package com.example.mailserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Số liệu theo lệnh: số request, số lỗi, histogram thời gian xử lý (trong handler),
+// cộng tổng số byte request/reply. Lệnh không thuộc giao thức được gộp vào "OTHER"
+// để client gửi rác không làm map phình ra.
+public class ServerMetrics {
+    private static final Set<String> COMMANDS = Set.of("HELLO", "REGISTER", "LOGIN", "SEND_EMAIL", "GET_EMAILS",
+            "GET_EMAILS_PAGE", "GET_EMAILS_SINCE", "GET_EMAIL", "SUBSCRIBE", "SEARCH", "STATS", "LOGOUT");
+    private static final String OTHER = "OTHER";
+
+    public record CommandStats(String command, long requests, long errors, long p50Micros, long p99Micros,
+                               long p999Micros, long maxMicros) {
+    }
+
+    private static final class Command {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final Map<String, Command> commands = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final long startedAt = System.currentTimeMillis();
+
+    public void record(String command, long nanos, boolean error, long requestBytes, long responseBytes) {
+        Command stats = commands.computeIfAbsent(COMMANDS.contains(command) ? command : OTHER, c -> new Command());
+        stats.latency.record(nanos);
+        if (error) {
+            stats.errors.increment();
+        }
+        bytesIn.add(requestBytes);
+        bytesOut.add(responseBytes);
+    }
+
+    public List<CommandStats> snapshot() {
+        List<CommandStats> result = new ArrayList<>();
+        commands.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
+            LatencyHistogram.Snapshot latency = entry.getValue().latency.snapshot();
+            result.add(new CommandStats(entry.getKey(), latency.count(), entry.getValue().errors.sum(),
+                    latency.percentile(0.50) / 1000, latency.percentile(0.99) / 1000,
+                    latency.percentile(0.999) / 1000, latency.max() / 1000));
+        });
+        return result;
+    }
+
+    public long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long uptimeSeconds() {
+        return (System.currentTimeMillis() - startedAt) / 1000;
+    }
+
+    // Dạng key=value, mỗi dòng một mục (reply của lệnh STATS)
+    public String report(int queueDepth) {
+        StringBuilder report = new StringBuilder()
+                .append("uptime_s=").append(uptimeSeconds()).append('\n')
+                .append("queue_depth=").append(queueDepth).append('\n')
+                .append("bytes_in=").append(bytesIn()).append('\n')
+                .append("bytes_out=").append(bytesOut()).append('\n');
+        for (CommandStats stats : snapshot()) {
+            report.append("cmd=").append(stats.command())
+                    .append(" requests=").append(stats.requests())
+                    .append(" errors=").append(stats.errors())
+                    .append(" p50_us=").append(stats.p50Micros())
+                    .append(" p99_us=").append(stats.p99Micros())
+                    .append(" p999_us=").append(stats.p999Micros())
+                    .append(" max_us=").append(stats.maxMicros()).append('\n');
+        }
+        return report.toString();
+    }
+
+    // Số byte UTF-8 của chuỗi mà không phải mã hoá ra mảng
+    public static long utf8Length(String s) {
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
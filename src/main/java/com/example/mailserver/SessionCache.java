@@ -0,0 +1,105 @@
+package com.example.mailserver;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Phiên đăng nhập: LOGIN kiểm tra mật khẩu (chậm) một lần rồi cấp token ngẫu nhiên 128 bit
+// (22 ký tự base64url); các lệnh sau chỉ tra token trong map, không băm lại mật khẩu.
+// Phiên hết hạn sau một khoảng không dùng (gia hạn khi được dùng), số phiên có giới hạn:
+// khi đầy, phiên hết hạn bị xoá trước, sau đó tới các phiên sắp hết hạn nhất.
+public class SessionCache {
+    private static final int TOKEN_BYTES = 16;
+
+    private static final class Session {
+        final String username;
+        volatile long expiresAt;
+
+        Session(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlNanos;
+    private final int maxSessions;
+
+    public SessionCache(long ttlSeconds, int maxSessions) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxSessions = Math.max(1, maxSessions);
+    }
+
+    public static SessionCache fromConfig() {
+        return new SessionCache(ServerConfig.SESSION_TTL_SECONDS, ServerConfig.MAX_SESSIONS);
+    }
+
+    public String create(String username) {
+        if (sessions.size() >= maxSessions) {
+            evict();
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username, System.nanoTime() + ttlNanos));
+        return token;
+    }
+
+    // Tên người dùng của phiên, null nếu token không tồn tại hoặc đã hết hạn
+    public String resolve(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - session.expiresAt >= 0) {
+            sessions.remove(token, session);
+            return null;
+        }
+        // Chỉ gia hạn khi đã qua nửa thời hạn để phần lớn request không phải ghi
+        if (session.expiresAt - now < ttlNanos / 2) {
+            session.expiresAt = now + ttlNanos;
+        }
+        return session.username;
+    }
+
+    // Như resolve() nhưng không gia hạn phiên (kiểm tra từ phía server, không phải do client dùng)
+    public boolean isActive(String token) {
+        Session session = sessions.get(token);
+        return session != null && System.nanoTime() - session.expiresAt < 0;
+    }
+
+    public void invalidate(String token) {
+        sessions.remove(token);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private synchronized void evict() {
+        if (sessions.size() < maxSessions) {
+            return;
+        }
+        long now = System.nanoTime();
+        sessions.values().removeIf(session -> now - session.expiresAt >= 0);
+        int excess = sessions.size() - maxSessions * 9 / 10;
+        if (excess <= 0) {
+            return;
+        }
+        // Chụp lại hạn của từng phiên vì expiresAt có thể được gia hạn trong lúc sắp xếp
+        record Candidate(String token, Session session, long expiresAt) {
+        }
+        List<Candidate> oldest = new ArrayList<>(sessions.size());
+        sessions.forEach((token, session) -> oldest.add(new Candidate(token, session, session.expiresAt)));
+        oldest.sort((a, b) -> Long.compare(a.expiresAt() - now, b.expiresAt() - now));
+        for (int i = 0; i < excess && i < oldest.size(); i++) {
+            sessions.remove(oldest.get(i).token(), oldest.get(i).session());
+        }
+    }
+}
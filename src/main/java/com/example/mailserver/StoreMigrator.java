@@ -0,0 +1,72 @@
+package com.example.mailserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Công cụ chuyển dữ liệu giữa hai backend lưu trữ, VD:
+//   java -cp MailServer.jar com.example.mailserver.StoreMigrator file accounts/ segment mailstore/
+// Thư đã có ở đích (cùng tên) được bỏ qua nên có thể chạy lại nếu bị dừng giữa chừng.
+public class StoreMigrator {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: StoreMigrator <file|segment> <sourceDir> <file|segment> <targetDir>");
+            System.exit(1);
+        }
+
+        try (MailboxStore source = open(args[0], args[1]);
+             MailboxStore target = open(args[2], args[3])) {
+            long start = System.currentTimeMillis();
+            int[] totals = migrate(source, target, account -> System.out.println("  " + account + ": done"));
+            System.out.println("Migrated " + totals[1] + " emails (" + totals[2] + " skipped) in "
+                    + totals[0] + " accounts, " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    // Trả về {số account, số thư đã chuyển, số thư bỏ qua}; khi trả về, dữ liệu ở đích đã được fsync
+    public static int[] migrate(MailboxStore source, MailboxStore target) throws IOException {
+        return migrate(source, target, account -> { });
+    }
+
+    // progress được gọi với tên account sau khi chuyển xong account đó
+    public static int[] migrate(MailboxStore source, MailboxStore target, Consumer<String> progress)
+            throws IOException {
+        int accounts = 0;
+        int copied = 0;
+        int skipped = 0;
+
+        for (String account : source.listAccounts()) {
+            target.createAccount(account);
+            Set<String> existing = new HashSet<>(target.listMessages(account));
+
+            for (String name : source.listMessages(account)) {
+                if (existing.contains(name)) {
+                    skipped++;
+                    continue;
+                }
+                String content = source.read(account, name);
+                if (content != null) {
+                    target.append(account, name, content);
+                    copied++;
+                }
+            }
+            accounts++;
+            progress.accept(account);
+        }
+        target.sync();
+        return new int[]{accounts, copied, skipped};
+    }
+
+    private static MailboxStore open(String type, String dir) {
+        if ("segment".equalsIgnoreCase(type)) {
+            return new SegmentMailboxStore(new File(dir), ServerConfig.SEGMENT_SIZE);
+        }
+        if ("file".equalsIgnoreCase(type)) {
+            return new FileMailboxStore(new File(dir));
+        }
+        throw new IllegalArgumentException("Unknown store type: " + type);
+    }
+}
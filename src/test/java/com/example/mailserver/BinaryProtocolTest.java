@@ -0,0 +1,101 @@
+package com.example.mailserver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Request.parse() nhận khung trực tiếp từ mạng: khung bị cắt, độ dài field sai hay quá nhiều field
+// phải bị từ chối (trả về false) mà không ném exception hay đọc ra ngoài khung.
+class BinaryProtocolTest {
+
+    @Test
+    void parsesWellFormedFrame() {
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEND_EMAIL, "token", "bob", "Chào", "");
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        assertTrue(request.parse(ByteBuffer.wrap(frame)));
+        assertEquals(BinaryProtocol.OP_SEND_EMAIL, request.opcode());
+        assertFalse(request.acceptsCompressed());
+        assertEquals(4, request.fieldCount());
+        assertEquals(frame.length, request.frameLength());
+        assertEquals("Chào", request.field(2));
+        assertEquals("", request.field(3));
+        assertTrue(request.fieldEquals(1, "bob"));
+    }
+
+    @Test
+    void deflateFlagIsSeparatedFromOpcode() {
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_GET_EMAIL | BinaryProtocol.FLAG_DEFLATE, "t");
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        assertTrue(request.parse(ByteBuffer.wrap(frame)));
+        assertEquals(BinaryProtocol.OP_GET_EMAIL, request.opcode());
+        assertTrue(request.acceptsCompressed());
+    }
+
+    @Test
+    void rejectsEveryTruncation() {
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_LOGIN, "alice", "secret");
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        for (int length = 0; length < frame.length; length++) {
+            assertFalse(request.parse(ByteBuffer.wrap(Arrays.copyOf(frame, length))), "length " + length);
+        }
+    }
+
+    @Test
+    void rejectsFieldLengthsPastTheFrame() {
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_LOGIN, "alice", "secret");
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        for (int length : new int[]{-1, Integer.MIN_VALUE, Integer.MAX_VALUE, frame.length}) {
+            byte[] bad = frame.clone();
+            ByteBuffer.wrap(bad).putInt(5, length);
+            assertFalse(request.parse(ByteBuffer.wrap(bad)), "field length " + length);
+        }
+    }
+
+    @Test
+    void rejectsTooManyFields() {
+        String[] fields = new String[17];
+        Arrays.fill(fields, "x");
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEND_EMAIL, fields);
+        assertFalse(new BinaryProtocol.Request().parse(ByteBuffer.wrap(frame)));
+
+        // Số field khai báo tới 65535 nhưng không có dữ liệu theo sau
+        byte[] header = {BinaryProtocol.MAGIC, BinaryProtocol.VERSION, BinaryProtocol.OP_LOGIN,
+                (byte) 0xFF, (byte) 0xFF};
+        assertFalse(new BinaryProtocol.Request().parse(ByteBuffer.wrap(header)));
+    }
+
+    @Test
+    void rejectsWrongMagicOrVersion() {
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_STATS);
+        byte[] badMagic = frame.clone();
+        badMagic[0] = 'S';
+        byte[] badVersion = frame.clone();
+        badVersion[1] = BinaryProtocol.VERSION + 1;
+        assertFalse(new BinaryProtocol.Request().parse(ByteBuffer.wrap(badMagic)));
+        assertFalse(new BinaryProtocol.Request().parse(ByteBuffer.wrap(badVersion)));
+    }
+
+    // Phần thừa sau khung (VD: buffer nhận lớn hơn datagram) không thuộc về request
+    @Test
+    void trailingBytesAreNotPartOfTheFrame() {
+        byte[] frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_LOGOUT, "token");
+        byte[] padded = Arrays.copyOf(frame, frame.length + 32);
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        assertTrue(request.parse(ByteBuffer.wrap(padded)));
+        assertEquals(frame.length, request.frameLength());
+        assertEquals("token", request.detach().field(0));
+    }
+
+    @Test
+    void truncatedResponseIsReportedAsMalformed() {
+        byte[] reply = BinaryProtocol.success("one", "two");
+        BinaryProtocol.Response response = BinaryProtocol.decodeResponse(Arrays.copyOf(reply, reply.length - 1));
+        assertFalse(response.success());
+        assertEquals("Malformed response", response.message());
+    }
+}
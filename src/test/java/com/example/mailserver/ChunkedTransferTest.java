@@ -0,0 +1,151 @@
+package com.example.mailserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Outbound và Reassembly nối với nhau trong bộ nhớ: gói tin (FRAG lẫn FACK) bị mất, đảo thứ tự, lặp lại
+// theo seed cố định; dữ liệu ghép lại phải giống hệt dữ liệu gửi.
+class ChunkedTransferTest {
+    private static final int TRANSFER_ID = 7;
+
+    @Test
+    void reassemblesInOrderWithoutLoss() throws Exception {
+        byte[] data = data(10 * ChunkedTransfer.FRAGMENT_PAYLOAD + 17);
+        assertArrayEquals(data, transfer(data, new Random(1), 0, false));
+    }
+
+    @Test
+    void reassemblesDespiteLossReorderingAndDuplicates() throws Exception {
+        byte[] data = data(300 * ChunkedTransfer.FRAGMENT_PAYLOAD - 5);
+        assertArrayEquals(data, transfer(data, new Random(42), 0.15, true));
+    }
+
+    @Test
+    void emptyPayloadIsOneFragment() throws Exception {
+        assertEquals(1, ChunkedTransfer.split(TRANSFER_ID, new byte[0]).length);
+        assertArrayEquals(new byte[0], transfer(new byte[0], new Random(3), 0, false));
+    }
+
+    // Fragment 3 bị mất, các fragment sau tới nơi: SACK phải làm fragment 3 được gửi lại ngay ở lần pump sau
+    // thay vì chờ hết RETRANSMIT_MILLIS
+    @Test
+    void selectiveAckRetransmitsOnlyTheHole() throws Exception {
+        byte[] data = data(8 * ChunkedTransfer.FRAGMENT_PAYLOAD);
+        ChunkedTransfer.Outbound outbound = new ChunkedTransfer.Outbound(TRANSFER_ID, data);
+        ChunkedTransfer.Reassembly reassembly = new ChunkedTransfer.Reassembly(TRANSFER_ID, 8);
+
+        List<byte[]> sent = new ArrayList<>();
+        long firstSend = System.currentTimeMillis();
+        assertFalse(outbound.pump(sent::add));
+        assertEquals(8, sent.size());
+        byte[] ack = null;
+        for (byte[] packet : sent) {
+            ChunkedTransfer.Fragment fragment = ChunkedTransfer.parseFragment(ByteBuffer.wrap(packet));
+            if (fragment.index() != 3) {
+                reassembly.add(fragment);
+                ack = reassembly.ack();
+            }
+        }
+        ChunkedTransfer.Ack parsed = ChunkedTransfer.parseAck(ByteBuffer.wrap(ack));
+        assertEquals(3, parsed.contiguous());
+        assertArrayEquals(new int[]{4, 5, 6, 7}, parsed.selective());
+
+        Thread.sleep(ChunkedTransfer.RETRANSMIT_MILLIS / 4 + 20);
+        outbound.onAck(parsed);
+        sent.clear();
+        assertFalse(outbound.pump(sent::add));
+        if (System.currentTimeMillis() - firstSend < ChunkedTransfer.RETRANSMIT_MILLIS) {
+            assertEquals(1, sent.size());
+        }
+        assertEquals(3, ChunkedTransfer.parseFragment(ByteBuffer.wrap(sent.get(0))).index());
+
+        assertTrue(reassembly.add(ChunkedTransfer.parseFragment(ByteBuffer.wrap(sent.get(0)))));
+        outbound.onAck(ChunkedTransfer.parseAck(ByteBuffer.wrap(reassembly.ack())));
+        assertTrue(outbound.pump(sent::add));
+        assertArrayEquals(data, reassembly.assemble());
+    }
+
+    @Test
+    void fragmentWithDifferentTotalIsIgnored() {
+        ChunkedTransfer.Reassembly reassembly = new ChunkedTransfer.Reassembly(TRANSFER_ID, 2);
+        byte[] foreign = ChunkedTransfer.split(TRANSFER_ID, data(3 * ChunkedTransfer.FRAGMENT_PAYLOAD))[0];
+        assertFalse(reassembly.add(ChunkedTransfer.parseFragment(ByteBuffer.wrap(foreign))));
+        assertEquals("FACK|7|0|", new String(reassembly.ack(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void malformedFragmentHeadersAreRejected() {
+        for (String header : new String[]{"FRAG|1|2|2|", "FRAG|1|0|0|", "FRAG|x|0|1|", "FRAG|1|0|", "FRAG|||1|",
+                "FRAG|1|0|99999999999|"}) {
+            byte[] packet = (header + "payload").getBytes(StandardCharsets.US_ASCII);
+            assertNull(ChunkedTransfer.parseFragment(ByteBuffer.wrap(packet)), header);
+        }
+        assertNull(ChunkedTransfer.parseAck(ByteBuffer.wrap("FACK|1".getBytes(StandardCharsets.US_ASCII))));
+        assertNull(ChunkedTransfer.parseAck(ByteBuffer.wrap("FACK|1|2|a,b".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    // Mỗi vòng: bên gửi pump, gói tin qua "mạng" (mất/đảo/lặp), bên nhận ACK từng fragment, ACK cũng qua mạng
+    private static byte[] transfer(byte[] data, Random random, double loss, boolean reorder) throws Exception {
+        ChunkedTransfer.Outbound outbound = new ChunkedTransfer.Outbound(TRANSFER_ID, data);
+        ChunkedTransfer.Reassembly reassembly = null;
+        List<byte[]> wire = new ArrayList<>();
+        for (int round = 0; round < 500; round++) {
+            if (outbound.pump(wire::add)) {
+                assertTrue(reassembly != null && reassembly.isComplete());
+                return reassembly.assemble();
+            }
+            List<byte[]> acks = new ArrayList<>();
+            for (byte[] packet : network(wire, random, loss, reorder)) {
+                ChunkedTransfer.Fragment fragment = ChunkedTransfer.parseFragment(ByteBuffer.wrap(packet));
+                if (reassembly == null) {
+                    reassembly = new ChunkedTransfer.Reassembly(fragment.transferId(), fragment.total());
+                }
+                reassembly.add(fragment);
+                acks.add(reassembly.ack());
+            }
+            wire.clear();
+            for (byte[] ack : network(acks, random, loss, reorder)) {
+                outbound.onAck(ChunkedTransfer.parseAck(ByteBuffer.wrap(ack)));
+            }
+            if (loss > 0) {
+                Thread.sleep(ChunkedTransfer.RETRANSMIT_MILLIS / 4 + 5);
+            }
+        }
+        throw new AssertionError("Transfer did not finish");
+    }
+
+    private static List<byte[]> network(List<byte[]> packets, Random random, double loss, boolean reorder) {
+        List<byte[]> delivered = new ArrayList<>();
+        for (byte[] packet : packets) {
+            if (random.nextDouble() < loss) {
+                continue;
+            }
+            delivered.add(packet);
+            if (reorder && random.nextDouble() < 0.05) {
+                delivered.add(packet);
+            }
+        }
+        if (reorder) {
+            Collections.shuffle(delivered, random);
+        }
+        return delivered;
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.mailserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Nén/giải nén qua lại, và giới hạn kích thước khi giải nén dữ liệu từ mạng ("zip bomb"):
+// header khai báo quá lớn, hoặc khai báo nhỏ nhưng luồng deflate bung ra nhiều hơn, đều phải bị từ chối.
+class CompressionTest {
+
+    @Test
+    void roundTripsMailText() throws IOException {
+        byte[] data = mail(20).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = Compression.maybeCompress(data);
+        assertTrue(Compression.isCompressed(compressed));
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, Compression.decompress(compressed, data.length));
+        assertEquals(mail(20), Compression.decodeStored(ByteBuffer.wrap(compressed)));
+    }
+
+    @Test
+    void smallOrAlreadyCompressedDataIsLeftAlone() {
+        byte[] small = "SUCCESS|ok".getBytes(StandardCharsets.UTF_8);
+        assertSame(small, Compression.maybeCompress(small));
+        assertFalse(Compression.isCompressed(small));
+
+        byte[] compressed = Compression.compress(mail(20).getBytes(StandardCharsets.UTF_8));
+        assertSame(compressed, Compression.maybeCompress(compressed));
+    }
+
+    @Test
+    void rejectsDeclaredSizeOverLimit() {
+        byte[] bomb = Compression.compress(new byte[10 * 1024 * 1024]);
+        IOException e = assertThrows(IOException.class, () -> Compression.decompress(bomb, 1024 * 1024));
+        assertTrue(e.getMessage().contains("exceeds limit"), e.getMessage());
+    }
+
+    // Header nói dối về độ dài: không được giải nén quá độ dài đã khai báo (đã được kiểm tra với giới hạn)
+    @Test
+    void rejectsStreamLongerThanDeclaredSize() {
+        byte[] bomb = Compression.compress(new byte[10 * 1024 * 1024]);
+        ByteBuffer.wrap(bomb).putInt(2, 1024);
+        IOException e = assertThrows(IOException.class, () -> Compression.decompress(bomb, 1024 * 1024));
+        assertEquals("Corrupt compressed data", e.getMessage());
+    }
+
+    @Test
+    void rejectsTruncatedOrNegativeLengthData() {
+        byte[] compressed = Compression.compress(mail(20).getBytes(StandardCharsets.UTF_8));
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        assertThrows(IOException.class, () -> Compression.decompress(truncated, Integer.MAX_VALUE));
+
+        byte[] negative = compressed.clone();
+        ByteBuffer.wrap(negative).putInt(2, -1);
+        assertThrows(IOException.class, () -> Compression.decompress(negative, Integer.MAX_VALUE));
+    }
+
+    private static String mail(int paragraphs) {
+        StringBuilder text = new StringBuilder("From: alice\nTo: bob\nSubject: Xin chào\nDate: Mon Jan 05 10:00:00 "
+                + "ICT 2026\nIP: 127.0.0.1\n" + MailMessage.SEPARATOR + "\n");
+        for (int i = 0; i < paragraphs; i++) {
+            text.append("Đoạn ").append(i).append(": cảm ơn bạn đã gửi báo cáo tuần này.\n");
+        }
+        return text.toString();
+    }
+}
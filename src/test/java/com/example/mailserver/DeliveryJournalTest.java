@@ -0,0 +1,144 @@
+package com.example.mailserver;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Replay khi khởi động: journal còn lại từ lần chạy trước (thư chưa được báo applied(), như khi server
+// chết giữa chừng) có đuôi ghi dở hoặc sai CRC. Các bản ghi nguyên vẹn trước đó phải vào store,
+// phần hỏng bị bỏ, và thư đã có đủ trong store không bị ghi thêm lần nữa.
+class DeliveryJournalTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void replaysRecordsBeforeTornTail() throws Exception {
+        crashAfter("m1.txt", "m2.txt");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile(), true))) {
+            out.writeInt(100);
+            out.writeInt(0);
+            out.write(new byte[10]);
+        }
+
+        FileMailboxStore store = reopen();
+        assertEquals("body of m1.txt\n", store.read("alice", "m1.txt"));
+        assertEquals("body of m2.txt\n", store.read("alice", "m2.txt"));
+    }
+
+    @Test
+    void stopsAtRecordWithBadChecksum() throws Exception {
+        crashAfter("m1.txt", "m2.txt");
+        try (RandomAccessFile file = new RandomAccessFile(journalFile(), "rw")) {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        FileMailboxStore store = reopen();
+        assertEquals("body of m1.txt\n", store.read("alice", "m1.txt"));
+        assertNull(store.read("alice", "m2.txt"));
+    }
+
+    // Độ dài rác rất lớn ở đuôi không được dẫn tới cấp phát theo độ dài đó
+    @Test
+    void ignoresImplausibleRecordLength() throws Exception {
+        crashAfter("m1.txt");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile(), true))) {
+            out.writeInt(Integer.MAX_VALUE - 10);
+            out.writeInt(0);
+            out.write(new byte[10]);
+        }
+
+        assertEquals("body of m1.txt\n", reopen().read("alice", "m1.txt"));
+    }
+
+    @Test
+    void rewritesEmptyCopyLeftInStore() throws Exception {
+        crashAfter("m1.txt");
+        File stored = new File(dir, "accounts/alice/m1.txt");
+        stored.getParentFile().mkdirs();
+        Files.write(stored.toPath(), new byte[0]);
+
+        assertEquals("body of m1.txt\n", reopen().read("alice", "m1.txt"));
+    }
+
+    // Backend segment chỉ ghi nối tiếp: ghi lại thư đã có sẽ thêm bản thứ hai vào segment
+    @Test
+    void skipsMessagesAlreadyInSegmentStore() throws Exception {
+        File root = new File(dir, "mailstore");
+        DeliveryJournal journal = new DeliveryJournal(new File(dir, "journal"), DeliveryJournal.Durability.BATCH, 0,
+                1 << 20);
+        SegmentMailboxStore store = new SegmentMailboxStore(root, 1 << 20);
+        journal.open(store);
+        journal.append("alice", "m1.txt", "body of m1.txt\n");
+        store.append("alice", "m1.txt", "body of m1.txt\n");
+        store.sync();
+        journal.close();
+        store.close();
+        journalFile();
+        long before = directorySize(root);
+
+        SegmentMailboxStore reopened = new SegmentMailboxStore(root, 1 << 20);
+        DeliveryJournal replayed = new DeliveryJournal(new File(dir, "journal"), DeliveryJournal.Durability.BATCH, 0,
+                1 << 20);
+        replayed.open(reopened);
+        replayed.close();
+        assertEquals(before, directorySize(root));
+        assertEquals(1, reopened.countMessages("alice"));
+        assertEquals("body of m1.txt\n", reopened.read("alice", "m1.txt"));
+        reopened.close();
+    }
+
+    // Thư đã vào journal nhưng store chưa kịp ghi (không gọi applied()): journal được giữ lại khi đóng
+    private void crashAfter(String... names) throws IOException {
+        FileMailboxStore store = new FileMailboxStore(new File(dir, "accounts"));
+        DeliveryJournal journal = new DeliveryJournal(new File(dir, "journal"), DeliveryJournal.Durability.BATCH, 0,
+                1 << 20);
+        journal.open(store);
+        for (String name : names) {
+            journal.append("alice", name, "body of " + name + "\n");
+        }
+        journal.close();
+    }
+
+    private FileMailboxStore reopen() throws IOException {
+        FileMailboxStore store = new FileMailboxStore(new File(dir, "accounts"));
+        DeliveryJournal journal = new DeliveryJournal(new File(dir, "journal"), DeliveryJournal.Durability.BATCH, 0,
+                1 << 20);
+        journal.open(store);
+        journal.close();
+        File[] left = new File(dir, "journal").listFiles();
+        assertTrue(left != null && left.length <= 1, () -> "journal files left after replay");
+        return store;
+    }
+
+    private File journalFile() {
+        File[] files = new File(dir, "journal").listFiles((d, n) -> n.endsWith(".log") && new File(d, n).length() > 0);
+        assertTrue(files != null && files.length == 1, () -> "expected one non-empty journal file");
+        return files[0];
+    }
+
+    private static long directorySize(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += directorySize(child);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.mailserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Kiểm tra tải đồng thời trong tiến trình (không qua mạng): nhiều thread cùng REGISTER các tên trùng nhau
+// và SEND_EMAIL tới nhiều người nhận, sau đó đối chiếu:
+//   - mỗi account được tạo đúng một lần (một REGISTER thành công, một dòng trong users.txt)
+//   - số thư trong store và trong chỉ mục = thư chào mừng + số lần gửi thành công tới account đó
+//   - tổng số thư của server = số account (thư chào mừng) + tổng số lần gửi thành công
+// Mặc định chạy nhỏ để hợp với mvn test; chạy nặng hơn bằng -Dstress.threads=32 -Dstress.ops=50000 ...
+class MailServiceStressTest {
+    private static final int THREADS = Integer.getInteger("stress.threads", 8);
+    private static final int ACCOUNTS = Integer.getInteger("stress.accounts", 50);
+    private static final int OPS = Integer.getInteger("stress.ops", 2000);
+    private static final int MAX_RECIPIENTS = Integer.getInteger("stress.recipients", 4);
+    // Segment nhỏ để lần chạy ngắn cũng chuyển sang segment mới nhiều lần
+    private static final long SEGMENT_SIZE = 64 * 1024;
+
+    @TempDir
+    File dir;
+
+    private final AtomicIntegerArray registered = new AtomicIntegerArray(ACCOUNTS);
+    private final AtomicIntegerArray delivered = new AtomicIntegerArray(ACCOUNTS);
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+    private final AtomicLong totalDelivered = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    // Băm mật khẩu thật (hàng trăm nghìn vòng lặp) sẽ chiếm hết thời gian chạy; đặt -D để dùng giá trị khác.
+    // Phải đặt trước khi ServerConfig được nạp.
+    @BeforeAll
+    static void fastPasswordHashing() {
+        if (System.getProperty("mailserver.passwordIterations") == null) {
+            System.setProperty("mailserver.passwordIterations", "1000");
+        }
+    }
+
+    @Test
+    void fileStoreStaysConsistentUnderConcurrentLoad() throws Exception {
+        assertInvariants(new FileMailboxStore(new File(dir, "accounts")));
+    }
+
+    @Test
+    void segmentStoreStaysConsistentUnderConcurrentLoad() throws Exception {
+        assertInvariants(new SegmentMailboxStore(new File(dir, "mailstore"), SEGMENT_SIZE));
+    }
+
+    private void assertInvariants(MailboxStore store) throws Exception {
+        List<String> errors = run(store);
+        assertTrue(errors.isEmpty(), () -> String.join("\n", errors));
+    }
+
+    private List<String> run(MailboxStore store) throws Exception {
+        File usersFile = new File(dir, "users.txt");
+        MailService service = new MailService(store, usersFile,
+                new MessageIdGenerator(0, new File(dir, "message-id.state")),
+                new SearchIndex(store, new File(dir, "search-index"), ServerConfig.SEARCH_FLUSH_SECONDS,
+                        message -> { }).start(),
+                message -> { },
+                new MailService.Listener() {
+                    @Override
+                    public void accountCreated(String username) {
+                    }
+
+                    @Override
+                    public void emailsDelivered(long totalEmails) {
+                    }
+                });
+
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    while (next.getAndIncrement() < OPS) {
+                        step(service);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "stress-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        List<String> errors = verify(service, usersFile);
+        service.close();
+        return errors;
+    }
+
+    // Một nửa là REGISTER (tên ngẫu nhiên, thường đã tồn tại), một nửa là SEND_EMAIL từ account đã đăng nhập
+    private void step(MailService service) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int account = random.nextInt(ACCOUNTS);
+        String name = name(account);
+
+        if (random.nextBoolean() || registered.get(account) == 0) {
+            if (service.handleRequest("REGISTER|" + name + "|pw", "stress").startsWith("SUCCESS")) {
+                registered.incrementAndGet(account);
+            }
+            return;
+        }
+
+        String token = tokens.computeIfAbsent(name, n -> {
+            String reply = service.handleRequest("LOGIN|" + n + "|pw", "stress");
+            return reply.startsWith("SUCCESS|") ? reply.substring("SUCCESS|".length()) : "";
+        });
+        int count = 1 + random.nextInt(MAX_RECIPIENTS);
+        int[] recipients = random.ints(count, 0, ACCOUNTS).distinct().toArray();
+        StringBuilder to = new StringBuilder();
+        for (int recipient : recipients) {
+            to.append(to.length() > 0 ? "," : "").append(name(recipient));
+        }
+
+        String reply = service.handleRequest("SEND_EMAIL|" + token + "|" + to + "|Stress|Nội dung " + random.nextLong(),
+                "stress");
+        if (recipients.length == 1) {
+            if (reply.startsWith("SUCCESS")) {
+                recordDelivery(recipients[0]);
+            } else if (!reply.equals("ERROR|Recipient account does not exist")) {
+                failures.incrementAndGet();
+            }
+            return;
+        }
+        // SUCCESS|n/m delivered|user=OK;user=NO_SUCH_USER;...
+        String[] parts = reply.split("\\|");
+        if (parts.length < 3) {
+            failures.incrementAndGet();
+            return;
+        }
+        for (String entry : parts[2].split(";")) {
+            String[] status = entry.split("=");
+            if (status.length == 2 && "OK".equals(status[1])) {
+                recordDelivery(Integer.parseInt(status[0].substring("stress".length())));
+            } else if (status.length == 2 && !"NO_SUCH_USER".equals(status[1])) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private void recordDelivery(int account) {
+        delivered.incrementAndGet(account);
+        totalDelivered.incrementAndGet();
+    }
+
+    private List<String> verify(MailService service, File usersFile) throws IOException {
+        List<String> errors = new ArrayList<>();
+        if (failures.get() > 0) {
+            errors.add(failures.get() + " requests failed unexpectedly");
+        }
+
+        Map<String, Integer> userLines = new HashMap<>();
+        for (String line : Files.readAllLines(usersFile.toPath())) {
+            userLines.merge(line.split(":", 2)[0], 1, Integer::sum);
+        }
+
+        for (int i = 0; i < ACCOUNTS; i++) {
+            String name = name(i);
+            int registrations = registered.get(i);
+            if (registrations > 1) {
+                errors.add(name + " registered " + registrations + " times");
+            }
+            if (userLines.getOrDefault(name, 0) != registrations) {
+                errors.add(name + " appears " + userLines.getOrDefault(name, 0) + " times in users.txt");
+            }
+            if (registrations == 0) {
+                continue;
+            }
+
+            int expected = 1 + delivered.get(i);
+            int stored = service.store().countMessages(name);
+            if (stored != expected) {
+                errors.add(name + ": " + stored + " messages in store, expected " + expected);
+            }
+            String token = tokens.computeIfAbsent(name,
+                    n -> service.handleRequest("LOGIN|" + n + "|pw", "stress").substring("SUCCESS|".length()));
+            String listing = service.handleRequest("GET_EMAILS|" + token, "stress");
+            int indexed = listing.substring("SUCCESS|".length()).split(";").length;
+            if (indexed != expected) {
+                errors.add(name + ": " + indexed + " messages in index, expected " + expected);
+            }
+        }
+
+        // Tổng số thư gồm cả thư chào mừng của mỗi account
+        long expectedTotal = totalDelivered.get() + userLines.size();
+        if (service.totalEmails() != expectedTotal) {
+            errors.add("Total emails " + service.totalEmails() + ", expected " + expectedTotal);
+        }
+        return errors;
+    }
+
+    private static String name(int index) {
+        return "stress" + index;
+    }
+}